@@ -9,7 +9,6 @@ import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
@@ -17,6 +16,8 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Main class for gene-prediction: Takes at least one, and up to four
@@ -28,14 +29,55 @@ import java.time.format.DateTimeFormatter;
  * <li>-n: flag whether the prediction should be intronless (this does
  * <b>not</b> quite mean prediction optimized for mRNA-reads, as multiple genes
  * can still be predicted on the same contig!)
+ * <li>-c: whether to keep only checkpoints of the Viterbi-variables instead of
+ * the entire matrix (on, off, or auto: depending on the contig length), cf.
+ * {@link Viterbi.Checkpointing}</li>
+ * <li>--score-storage: how the matrix of Viterbi-variables is stored, e.g. in
+ * half the memory (rounded, so not together with --max-parses above 1), cf.
+ * {@link Viterbi.ScoreStorage}</li>
+ * <li>--split-scaffolds: decode the segments of scaffolds between runs of N
+ * (at least as long as the given number of bases) independently, and in
+ * parallel, cf. {@link DecodingOptions#setSplittingScaffolds(int)}</li>
+ * <li>-b: flag whether to record backpointers during decoding, for a faster
+ * traceback, cf. {@link Viterbi#setRecordingBackpointers(boolean)}</li>
+ * <li>-w (and --overlap): decode contigs longer than the given number of bases
+ * in overlapping windows, in parallel, cf. {@link WindowedViterbi}</li>
+ * <li>-t: number of threads, i.e. of contigs (or windows) decoded at the same
+ * time; the output is the same for any number, cf. {@link ContigScheduler}</li>
+ * <li>--column-threads: number of threads evaluating the states of a column of
+ * the Viterbi-matrix, for single long contigs, cf.
+ * {@link Viterbi#setParallelism(int)}</li>
+ * <li>--beam: approximate decoding, skipping predecessors far below the best
+ * one at their position, cf. {@link Viterbi#setBeamMargin(double)}</li>
+ * <li>--max-parses, --tie-tolerance and --merge-parses: how many of several
+ * (nearly) equally likely parses to write, and whether to write the features
+ * they share only once, cf. {@link ParseGraph}</li>
+ * <li>--online: pass the parse of each contig on as soon as its parts are
+ * fixed, holding only the undecided part, cf. {@link OnlineViterbi}; with
+ * several threads, the fixed parts of a contig are held until all earlier
+ * contigs are written</li>
+ * <li>--best: write the given number of most likely parses, ranked by their
+ * log-likelihood, cf. {@link Viterbi#computeKBestParses(int)}</li>
  * </ol>
  * 
  * If no output file is specified, one will be created in the same directory as
  * the input-file, with date and time-information in its filename.<br>
+ * 
+ * The parameter-file can also be a snapshot of the compiled model, as written
+ * by {@code compile-model -p parameterfile.properties [-n] -o model.snapshot},
+ * which is loaded without parsing or computing anything, cf.
+ * {@link ModelSnapshot}; whether it is intron-less is then stored in it.<br>
  */
 public class App {
 
+	/** upper bound of the overlap of windows, unless given explicitly */
+	private static final int DEFAULT_MAXIMAL_OVERLAP = 50000;
+
 	public static void main(String[] args) throws IOException, ParseException {
+		if (args.length > 0 && args[0].equals("compile-model")) {
+			compileModel(args);
+			return;
+		}
 		LocalDateTime now = LocalDateTime.now();
 
 		/** Setting up command-line options */
@@ -45,7 +87,7 @@ public class App {
 		
 		Option in = new Option("i", "input", true,
 				"the fasta-input-file whereon to perform gene-prediction. Supply contigs, "
-						+ "not scaffolds (no unspecified nucleotides (N) allowed)");
+						+ "not scaffolds (no unspecified nucleotides (N) allowed, unless --split-scaffolds is given)");
 		commandLineOptions.addOption(in);
 		
 		OptionGroup helpGroup = new OptionGroup();
@@ -59,24 +101,179 @@ public class App {
 						+ "in the same directory as the in-file");
 		commandLineOptions.addOption(out);
 		
-		Option param = new Option("p", "parameters", true, "parameter-file in java's properties-format");
+		Option param = new Option("p", "parameters", true,
+				"parameter-file in java's properties-format, or a model snapshot written by compile-model");
 		commandLineOptions.addOption(param);
 		
 		Option noIntrons = new Option("n", "no-introns", false, "if set, RNA-sequences (still TCAG) are assumed, and no introns are predicted");
 		commandLineOptions.addOption(noIntrons);
 		
+		Option checkpointingOption = new Option("c", "checkpointing", true,
+				"on, off or auto (default): whether to keep only checkpoints of the Viterbi-matrix, which bounds "
+						+ "memory by about the square root of the contig length (at the cost of recomputing columns "
+						+ "during traceback); auto does so if the full matrix of a contig would take more than a "
+						+ "quarter of the heap. Predictions are the same either way");
+		commandLineOptions.addOption(checkpointingOption);
+		
+		Option scoreStorageOption = new Option(null, "score-storage", true,
+				"double (default), position-major, float or scaled-integer: how the full Viterbi-matrix is "
+						+ "stored; float and scaled-integer take half the memory, but their rounding may (rarely) "
+						+ "yield a slightly less likely parse, so they cannot be combined with --max-parses above 1 "
+						+ "(--best stores the matrix as double)");
+		commandLineOptions.addOption(scoreStorageOption);
+		
+		Option splitOption = new Option(null, "split-scaffolds", true,
+				"split sequences at their runs of unspecified nucleotides (N), and decode each segment between them "
+						+ "on its own (in parallel, with -t), skipping segments shorter than the given number of bases "
+						+ "(e.g. 500); the predictions keep their positions on the scaffold");
+		commandLineOptions.addOption(splitOption);
+		
+		Option backpointersOption = new Option("b", "backpointers", false,
+				"if set, record where each Viterbi-variable came from (5 bytes per state and position), so that "
+						+ "the traceback does not need to recompute emissions; not combined with checkpoints");
+		commandLineOptions.addOption(backpointersOption);
+		
+		Option windowOption = new Option("w", "window", true,
+				"decode contigs longer than this many bases in overlapping windows (in parallel), which are "
+						+ "stitched together where both predict noncoding sequence; bounds memory by the window size, "
+						+ "but predictions near the stitches may differ from decoding the whole contig");
+		commandLineOptions.addOption(windowOption);
+		
+		Option overlapOption = new Option(null, "overlap", true,
+				"number of bases shared by consecutive windows (default: a tenth of the window, at most "
+						+ DEFAULT_MAXIMAL_OVERLAP + "); should be well above the length of a gene");
+		commandLineOptions.addOption(overlapOption);
+		
+		Option threadsOption = new Option("t", "threads", true,
+				"number of contigs decoded at the same time (default 1); with more than one, the windows of each "
+						+ "contig are decoded one after the other (without -t, the windows of a contig are decoded on "
+						+ "all processors). The output is the same for any number of threads");
+		commandLineOptions.addOption(threadsOption);
+		
+		Option columnThreadsOption = new Option(null, "column-threads", true,
+				"number of threads evaluating the states of one position at the same time (default 1); only "
+						+ "used for contigs (or windows) of at least " + Viterbi.DEFAULT_MINIMUM_PARALLEL_LENGTH
+						+ " bases, and not together with -b");
+		commandLineOptions.addOption(columnThreadsOption);
+		
+		Option beamOption = new Option(null, "beam", true,
+				"approximate, faster decoding for a first look: skip any predecessor whose log-probability is more "
+						+ "than this margin below the best one at its position (reports how many were skipped)");
+		commandLineOptions.addOption(beamOption);
+		
+		Option maxParsesOption = new Option(null, "max-parses", true,
+				"write at most this many of the equally likely parses of a contig (default: all)");
+		commandLineOptions.addOption(maxParsesOption);
+		
+		Option tieToleranceOption = new Option(null, "tie-tolerance", true,
+				"treat steps of the traceback that are less likely than the best one by at most this (natural "
+						+ "log-)margin as ties, too (default 0)");
+		commandLineOptions.addOption(tieToleranceOption);
+		
+		Option mergeParsesOption = new Option(null, "merge-parses", false,
+				"if a contig has several parses, write the features they share once, and mark the other ones "
+						+ "with the parses they belong to");
+		commandLineOptions.addOption(mergeParsesOption);
+
+		Option bestOption = new Option(null, "best", true,
+				"write the given number of most likely parses of each contig (not only the ties of the best one), "
+						+ "ranked, each with its log-likelihood; not for contigs decoded in windows");
+		commandLineOptions.addOption(bestOption);
+
+		Option onlineOption = new Option(null, "online", false,
+				"decode online: write the predictions of a contig as soon as they are certain, keeping only the "
+						+ "undecided part of the contig in memory (one parse per contig)");
+		commandLineOptions.addOption(onlineOption);
+		
 		CommandLine cmd = new DefaultParser().parse(commandLineOptions, args, true);
 		
 		/** Generally nice behaviour: if one simply runs the program without sufficient parameters: provide help */
 		if(cmd.hasOption('h') || !cmd.hasOption('i') || !cmd.hasOption('p')) {
-			new HelpFormatter().printHelp("... -i infile.fasta -p parameterfile.properties [-o outfile] [--no-introns]", commandLineOptions);
+			new HelpFormatter().printHelp("... -i infile.fasta -p parameterfile.properties [-o outfile] [--no-introns] [--split-scaffolds min] [-c on|off|auto] [--score-storage s] [-b] [-w size [--overlap n]] [-t threads] [--column-threads n] [--beam margin] [--max-parses n] [--tie-tolerance e] [--merge-parses] [--best k] [--online]", commandLineOptions);
 			return;
 		}
 		
+		DecodingOptions decodingOptions = new DecodingOptions();
+		if (cmd.hasOption('c')) {
+			try {
+				decodingOptions.setCheckpointing(Viterbi.Checkpointing.valueOf(cmd.getOptionValue('c').trim().toUpperCase()));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Unknown value for --checkpointing: " + cmd.getOptionValue('c'));
+			}
+		}
+		if (cmd.hasOption("score-storage")) {
+			try {
+				decodingOptions.setScoreStorage(Viterbi.ScoreStorage
+						.valueOf(cmd.getOptionValue("score-storage").trim().toUpperCase().replace('-', '_')));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Unknown value for --score-storage: " + cmd.getOptionValue("score-storage"));
+			}
+		}
+		if (cmd.hasOption("split-scaffolds")) {
+			try {
+				decodingOptions.setSplittingScaffolds(Integer.parseInt(cmd.getOptionValue("split-scaffolds").trim()));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid minimum segment length: " + cmd.getOptionValue("split-scaffolds"));
+			}
+		}
+		decodingOptions.setRecordingBackpointers(cmd.hasOption('b'));
+		int threads = 1;
+		if (cmd.hasOption('t')) {
+			try {
+				threads = Integer.parseInt(cmd.getOptionValue('t').trim());
+				decodingOptions.setThreads(threads);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid number of threads: " + cmd.getOptionValue('t'));
+			}
+		}
+		if (cmd.hasOption("beam")) {
+			try {
+				decodingOptions.setBeamMargin(Double.parseDouble(cmd.getOptionValue("beam").trim()));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid beam margin: " + cmd.getOptionValue("beam"));
+			}
+		}
+		try {
+			if (cmd.hasOption("max-parses"))
+				decodingOptions.setMaximumNumberOfParses(Integer.parseInt(cmd.getOptionValue("max-parses").trim()));
+			if (cmd.hasOption("tie-tolerance"))
+				decodingOptions.setTieTolerance(Double.parseDouble(cmd.getOptionValue("tie-tolerance").trim()));
+			if (cmd.hasOption("best"))
+				decodingOptions.setNumberOfBestParses(Integer.parseInt(cmd.getOptionValue("best").trim()));
+		} catch (IllegalArgumentException e) {
+			throw new ParseException("Invalid number of parses or tie tolerance: " + e.getMessage());
+		}
+		if (!decodingOptions.getScoreStorage().isExact() && cmd.hasOption("max-parses")
+				&& decodingOptions.getMaximumNumberOfParses() > 1) {
+			// rounded variables make and break ties
+			throw new ParseException("--score-storage " + cmd.getOptionValue("score-storage")
+					+ " rounds the Viterbi-variables, so it cannot tell several equally likely parses: use "
+					+ "double or position-major with --max-parses " + decodingOptions.getMaximumNumberOfParses());
+		}
+		decodingOptions.setMergingParses(cmd.hasOption("merge-parses"));
+		decodingOptions.setOnline(cmd.hasOption("online"));
+		if (cmd.hasOption("column-threads")) {
+			try {
+				decodingOptions.setColumnThreads(Integer.parseInt(cmd.getOptionValue("column-threads").trim()));
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid number of column-threads: " + cmd.getOptionValue("column-threads"));
+			}
+		}
+		if (cmd.hasOption('w')) {
+			try {
+				int windowSize = Integer.parseInt(cmd.getOptionValue('w').trim());
+				int overlap = cmd.hasOption("overlap") ? Integer.parseInt(cmd.getOptionValue("overlap").trim())
+						: Math.min(windowSize / 10, DEFAULT_MAXIMAL_OVERLAP);
+				decodingOptions.setWindows(windowSize, overlap);
+			} catch (IllegalArgumentException e) {
+				throw new ParseException("Invalid window (" + cmd.getOptionValue('w') + ") or overlap: " + e.getMessage());
+			}
+		}
+		
 		/** File management */
 
 		File input = new File(cmd.getOptionValue('i'));
-		BufferedReader reader = new BufferedReader(new FileReader(input));
+		FastaReader reader = new FastaReader(new FileReader(input));
 
 		File output;
 		BufferedWriter writer;
@@ -94,17 +291,35 @@ public class App {
 		writer = new BufferedWriter(new FileWriter(output));
 
 		File parameterFile = new File(cmd.getOptionValue('p'));
-		final ModelParameters modelParameters = new ModelParameters(new FileReader(parameterFile));
-
-		GHMM ghmm;
-		if(cmd.hasOption('n')) {
-			System.out.println("Running in intron-less mode");
-			ghmm = new LoxodesMagnusIntronless(modelParameters);
+		final ModelParameters modelParameters;
+		final CompiledGHMM compiledGHMM;
+		final boolean intronless;
+		if (ModelSnapshot.isSnapshot(parameterFile)) {
+			ModelSnapshot snapshot = ModelSnapshot.load(parameterFile);
+			if (cmd.hasOption('n') && !snapshot.isIntronless())
+				throw new ParseException("The model snapshot " + parameterFile
+						+ " was compiled with introns: compile it with -n for intron-less prediction");
+			modelParameters = snapshot.getParameters();
+			compiledGHMM = snapshot.getModel();
+			intronless = snapshot.isIntronless();
+			System.out.println("Loaded model snapshot " + parameterFile);
+			if (intronless)
+				System.out.println("Running in intron-less mode");
 		} else {
-			ghmm = new LoxodesMagnusGHMM(modelParameters);
-		}
+			modelParameters = new ModelParameters(new FileReader(parameterFile));
+			intronless = cmd.hasOption('n');
+			GHMM ghmm;
+			if (intronless) {
+				System.out.println("Running in intron-less mode");
+				ghmm = new LoxodesMagnusIntronless(modelParameters);
+			} else {
+				ghmm = new LoxodesMagnusGHMM(modelParameters);
+			}
 
-		System.out.println(ghmm);
+			System.out.println(ghmm);
+			// compile once, the compiled model is shared by all contigs
+			compiledGHMM = ghmm.compile();
+		}
 
 		/** Write some book-keeping information into the output-file */
 		writer.write("##gff-version 3");
@@ -116,7 +331,7 @@ public class App {
 		writer.write("##Parameter file: " + parameterFile.getAbsolutePath());
 		writer.newLine();
 		
-		if(cmd.hasOption('n')) {
+		if(intronless) {
 			writer.write("##INTRON-LESS prediction!");
 			writer.newLine();
 		}
@@ -125,25 +340,13 @@ public class App {
 		 * Now read in the fasta file sequence for sequence, and for each sequence
 		 * generate a gff-output
 		 */
-		String currentHeader = null;
-		String currentSequence = null;
-
-		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-			if (line.startsWith(">")) {
-				if (currentHeader != null) {
-					doPredictions(ghmm, writer, currentHeader, currentSequence, modelParameters);
-				}
-				currentHeader = line.substring(1);
-				currentSequence = "";
-			} else {
-				currentSequence += line;
-			}
-		}
-
-		// on last sequence
-		if (currentHeader != null) {
-			doPredictions(ghmm, writer, currentHeader, currentSequence, modelParameters);
+		ContigScheduler scheduler = new ContigScheduler(compiledGHMM, modelParameters, decodingOptions, writer,
+				threads);
+		for (FastaReader.Record record = reader.next(); record != null; record = reader.next()) {
+			System.out.println("\nRead " + record.getHeader() + " (" + record.length() + " bases)");
+			scheduler.submit(record.getHeader(), record.getSequence());
 		}
+		scheduler.finish();
 
 		reader.close();
 		writer.flush();
@@ -152,34 +355,176 @@ public class App {
 		System.out.println("______________________\nWrote to output-file " + output.getAbsolutePath());
 	}
 
+	/**
+	 * Command compile-model: loads a parameter-file, and writes a snapshot of the
+	 * compiled model, cf. {@link ModelSnapshot}
+	 * 
+	 * @param args starting with "compile-model"
+	 */
+	private static void compileModel(String[] args) throws IOException, ParseException {
+		Options commandLineOptions = new Options();
+		commandLineOptions.addOption(new Option("h", "help", false, "(print this message)"));
+		commandLineOptions.addOption(new Option("p", "parameters", true, "parameter-file in java's properties-format"));
+		commandLineOptions.addOption(new Option("n", "no-introns", false, "compile the intron-less model"));
+		commandLineOptions.addOption(new Option("o", "output", true, "the snapshot-file to be written"));
+
+		CommandLine cmd = new DefaultParser().parse(commandLineOptions, Arrays.copyOfRange(args, 1, args.length), true);
+		if (cmd.hasOption('h') || !cmd.hasOption('p') || !cmd.hasOption('o')) {
+			new HelpFormatter().printHelp("... compile-model -p parameterfile.properties [--no-introns] -o model.snapshot",
+					commandLineOptions);
+			return;
+		}
+
+		File parameterFile = new File(cmd.getOptionValue('p'));
+		ModelParameters modelParameters;
+		try (FileReader reader = new FileReader(parameterFile)) {
+			modelParameters = new ModelParameters(reader);
+		}
+		File output = new File(cmd.getOptionValue('o'));
+		ModelSnapshot.write(modelParameters, cmd.hasOption('n'), output);
+		System.out.println("Wrote model snapshot to " + output.getAbsolutePath());
+	}
+
 	/**
 	 * Performs gene prediction on the given sequence and writes the result as gff
 	 * into the writer.
 	 * 
-	 * @param ghmm
+	 * @param ghmm the compiled model
 	 * @param writer
 	 * @param currentHeader
 	 * @param currentSequence
 	 * @throws IOException              if something goes wrong while trying to
 	 *                                  write into the out-file
-	 * @throws IllegalArgumentException if the sequence contains N, not just TGAC
+	 * @throws IllegalArgumentException if the sequence contains N, not just
+	 *                                  TGAC (and scaffolds are not split)
 	 */
-	public static void doPredictions(GHMM ghmm, BufferedWriter writer, String currentHeader, String currentSequence,
+	public static void doPredictions(CompiledGHMM ghmm, BufferedWriter writer, String currentHeader, CharSequence currentSequence,
 			ModelParameters parameters) throws IOException {
-		
-		System.out.println("\nPredicting genes in " + currentHeader + ":\n");
-		if (currentSequence.contains("N")) { // or three?
-			throw new IllegalArgumentException(
-					"The given sequence contained uncharacterised Nucleotides (N). Please provide contigs, not scaffolds");
+		doPredictions(ghmm, writer, currentHeader, currentSequence, parameters, new DecodingOptions());
+	}
+	
+	/**
+	 * @see #doPredictions(CompiledGHMM, BufferedWriter, String, CharSequence, ModelParameters)
+	 * @param options how to decode, e.g. whether to use checkpoints or windows
+	 */
+	public static void doPredictions(CompiledGHMM ghmm, BufferedWriter writer, String currentHeader, CharSequence currentSequence,
+			ModelParameters parameters, DecodingOptions options) throws IOException {
+		writer.write(predict(ghmm, currentHeader, currentSequence, parameters, options));
+	}
+	
+	/**
+	 * Performs gene prediction on the given sequence, reporting progress and the
+	 * time taken in System.out; safe to be called from several threads at once
+	 * 
+	 * @return the predictions in gff (without header)
+	 * @throws IllegalArgumentException if the sequence contains N, not just
+	 *                                  TGAC, and scaffolds are not split, cf.
+	 *                                  {@link DecodingOptions#setSplittingScaffolds(int)}
+	 */
+	public static String predict(CompiledGHMM ghmm, String currentHeader, CharSequence currentSequence,
+			ModelParameters parameters, DecodingOptions options) {
+		StringBuilder gff = new StringBuilder();
+		try {
+			predict(ghmm, currentHeader, currentSequence, parameters, options, gff);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot happen: the gff is only collected", e);
 		}
+		return gff.toString();
+	}
+	
+	/**
+	 * @see #predict(CompiledGHMM, String, CharSequence, ModelParameters, DecodingOptions)
+	 * @param gff where the predictions are written to; when decoding online,
+	 *            this happens piecewise, while the contig is decoded
+	 * @throws IOException if writing fails
+	 */
+	public static void predict(CompiledGHMM ghmm, String currentHeader, CharSequence currentSequence,
+			ModelParameters parameters, DecodingOptions options, Appendable gff) throws IOException {
+		for (Pair<Integer, Integer> segment : findSegments(currentHeader, currentSequence, options)) {
+			predict(ghmm, currentHeader, currentSequence, segment.getFirst(), segment.getSecond(), parameters, options,
+					gff);
+		}
+	}
+	
+	/**
+	 * @return the segments of the sequence to decode (cf.
+	 *         {@link DecodingOptions#findSegments(CharSequence)}), reporting in
+	 *         System.out how a scaffold is split
+	 */
+	static List<Pair<Integer, Integer>> findSegments(String currentHeader, CharSequence currentSequence,
+			DecodingOptions options) {
+		List<Pair<Integer, Integer>> segments = options.findSegments(currentSequence);
+		if (segments.size() != 1 || segments.get(0).getSecond() - segments.get(0).getFirst() != currentSequence.length()) {
+			int all = Utilities.findSegmentsBetweenNs(currentSequence, 0).size();
+			System.out.println("\nSplitting " + currentHeader + " at its runs of N into " + all + " segment(s), skipping "
+					+ (all - segments.size()) + " shorter than " + options.getMinimumSegmentLength() + " bases");
+		}
+		return segments;
+	}
+	
+	/**
+	 * Performs gene prediction on the segment [start, end) of the sequence, e.g.
+	 * between two runs of N in a scaffold, as on a contig of its own; the
+	 * predictions are written with their positions on the whole sequence
+	 * 
+	 * @see #predict(CompiledGHMM, String, CharSequence, ModelParameters, DecodingOptions)
+	 * @return the predictions in gff (without header)
+	 */
+	static String predict(CompiledGHMM ghmm, String currentHeader, CharSequence currentSequence, int start, int end,
+			ModelParameters parameters, DecodingOptions options) {
+		StringBuilder gff = new StringBuilder();
+		try {
+			predict(ghmm, currentHeader, currentSequence, start, end, parameters, options, gff);
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot happen: the gff is only collected", e);
+		}
+		return gff.toString();
+	}
+	
+	/**
+	 * @see #predict(CompiledGHMM, String, CharSequence, int, int, ModelParameters, DecodingOptions)
+	 * @param gff where the predictions are written to; when decoding online,
+	 *            this happens piecewise, while the segment is decoded
+	 * @throws IOException if writing fails
+	 */
+	static void predict(CompiledGHMM ghmm, String currentHeader, CharSequence currentSequence, int start, int end,
+			ModelParameters parameters, DecodingOptions options, Appendable gff) throws IOException {
+		long startTime = System.nanoTime();
+		String name = end - start == currentSequence.length() ? currentHeader
+				: currentHeader + " [" + (start + 1) + ", " + end + "]";
+		System.out.println("\nPredicting genes in " + name + ":\n");
+		EncodedSequence sequence = new EncodedSequence(currentSequence.subSequence(start, end));
 
-		Viterbi viterbi = new Viterbi(ghmm, currentSequence);
-		viterbi.setAbbreviating(true);
-		for (Parse parse : viterbi.computeParses()) {
-			System.out.println("\n\tWriting parse to file");
-			writer.write(LoxodesMagnusGHMM.parseToGFF(currentHeader, parse, parameters));
+		if (options.isOnline()) {
+			OnlineViterbi online = new OnlineViterbi(ghmm, sequence);
+			online.decode((segment, segmentStart) -> gff
+					.append(LoxodesMagnusGHMM.parseToGFF(currentHeader, segment, parameters, start + segmentStart)));
+			System.out.println("\n\tFixed the parse " + online.getNumberOfCoalescences()
+					+ " time(s) before the end, holding at most " + online.getMaximumUndecidedColumns() + " columns");
+		} else {
+			writeParses(currentHeader, options.decode(ghmm, sequence), parameters, options, start, gff);
 		}
 
-		System.out.println("done");
+		System.out.println(String.format("done with %s (%d bases) in %.2f s", name, end - start,
+				(System.nanoTime() - startTime) / 1e9));
+	}
+	
+	private static void writeParses(String currentHeader, List<Parse> parses, ModelParameters parameters,
+			DecodingOptions options, int offset, Appendable gff) throws IOException {
+		if (options.isMergingParses()) {
+			System.out.println("\n\tWriting " + parses.size() + " parse(s) to file");
+			gff.append(LoxodesMagnusGHMM.parsesToGFF(currentHeader, parses, parameters, offset));
+		} else {
+			for (int i = 0; i < parses.size(); i++) {
+				Parse parse = parses.get(i);
+				System.out.println("\n\tWriting parse to file");
+				if (!Double.isNaN(parse.getLogLikelihood())) {
+					// ranked parses
+					gff.append("# parse " + (i + 1) + ", log-likelihood " + parse.getLogLikelihood())
+							.append(System.lineSeparator());
+				}
+				gff.append(LoxodesMagnusGHMM.parseToGFF(currentHeader, parse, parameters, offset));
+			}
+		}
 	}
 }
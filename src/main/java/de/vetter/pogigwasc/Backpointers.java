@@ -0,0 +1,230 @@
+package de.vetter.pogigwasc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compact record of where each Viterbi-variable V[q][l] came from, filled
+ * during the forward pass of {@link Viterbi} (cf.
+ * {@link Viterbi#setRecordingBackpointers(boolean)}), so the traceback needs
+ * neither the matrix nor any emission-probability: Per cell, only the
+ * predecessor state (one byte) and the emission length (an int) are kept. The
+ * rare cells with several equally probable predecessors additionally keep all
+ * of them in a map, ordered like {@link ViterbiSeed#step(ScoreMatrix)} would
+ * find them.<br>
+ * 
+ * Usage per cell: {@link #begin()}, then {@link #offer(double, int, int)} for
+ * every candidate, then {@link #store(int, int)}.<br>
+ * 
+ * Either all columns are kept, or (cf. {@link #Backpointers(int)}) only those
+ * from the last one passed to {@link #release(int)} on, in a ring that grows
+ * as needed; then every column has to be prepared by
+ * {@link #prepareColumn(int)} before its cells are stored.
+ */
+final class Backpointers {
+
+	/** predecessor-value of cells that are not on any path (V = -infinity) */
+	private static final int NONE = 0xFF;
+
+	/** largest number of states that fits into one (unsigned) byte, besides NONE */
+	static final int MAX_STATES = NONE;
+
+	/** initial number of columns in a ring */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int stateCount;
+	private byte[] predecessors;
+	private int[] lengths;
+	/** column l is stored at l &amp; mask, i.e. at l if all columns are kept (mask -1) */
+	private int mask = -1;
+	/** the first column that is kept (0 if all are kept) */
+	private int firstColumn = 0;
+	/** all argmaxes (as q', l', q', l', ...) of cells with ties, by l * stateCount + q */
+	private final HashMap<Long, int[]> ties = new HashMap<Long, int[]>();
+
+	// the argmaxes of the current cell
+	private double bestValue;
+	private int[] candidates = new int[16];
+	private int candidateCount;
+
+	/**
+	 * @param stateCount number of states (at most {@link #MAX_STATES})
+	 * @param length     length of the sequence
+	 * @throws IllegalArgumentException if there are too many states or cells
+	 */
+	Backpointers(int stateCount, int length) {
+		if (stateCount > MAX_STATES)
+			throw new IllegalArgumentException("Backpointers support at most " + MAX_STATES + " states");
+		if ((long) stateCount * (length + 1) > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many cells for backpointers (" + stateCount + " states, length "
+					+ length + "), use checkpoints instead");
+		this.stateCount = stateCount;
+		predecessors = new byte[stateCount * (length + 1)];
+		lengths = new int[stateCount * (length + 1)];
+		Arrays.fill(predecessors, (byte) NONE);
+	}
+
+	/**
+	 * Backpointers of a sequence that is decoded online: columns are kept in a
+	 * ring, from the one last passed to {@link #release(int)} on
+	 * 
+	 * @param stateCount number of states (at most {@link #MAX_STATES})
+	 * @throws IllegalArgumentException if there are too many states
+	 */
+	Backpointers(int stateCount) {
+		if (stateCount > MAX_STATES)
+			throw new IllegalArgumentException("Backpointers support at most " + MAX_STATES + " states");
+		this.stateCount = stateCount;
+		predecessors = new byte[stateCount * INITIAL_CAPACITY];
+		lengths = new int[stateCount * INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Makes room for column l in the ring (growing it if the columns from the
+	 * first one kept to l do not fit), and marks all its cells as not on any path
+	 */
+	void prepareColumn(int l) {
+		if (l - firstColumn > mask) {
+			int capacity = mask + 1;
+			while (l - firstColumn >= capacity)
+				capacity *= 2;
+			if ((long) stateCount * capacity > Integer.MAX_VALUE - 8)
+				throw new IllegalArgumentException("Too many cells for backpointers (" + stateCount + " states, "
+						+ capacity + " columns)");
+			byte[] grownPredecessors = new byte[stateCount * capacity];
+			int[] grownLengths = new int[stateCount * capacity];
+			for (int column = firstColumn; column < l; column++) {
+				System.arraycopy(predecessors, (column & mask) * stateCount, grownPredecessors,
+						(column & (capacity - 1)) * stateCount, stateCount);
+				System.arraycopy(lengths, (column & mask) * stateCount, grownLengths,
+						(column & (capacity - 1)) * stateCount, stateCount);
+			}
+			predecessors = grownPredecessors;
+			lengths = grownLengths;
+			mask = capacity - 1;
+		}
+		Arrays.fill(predecessors, (l & mask) * stateCount, (l & mask) * stateCount + stateCount, (byte) NONE);
+	}
+
+	/**
+	 * Frees all columns before l (in a ring only)
+	 */
+	void release(int l) {
+		if (mask == -1 || l <= firstColumn)
+			return;
+		firstColumn = l;
+		if (!ties.isEmpty())
+			ties.keySet().removeIf(cell -> cell < (long) l * stateCount);
+	}
+
+	/**
+	 * @return the number of columns that fit into the ring (or all columns)
+	 */
+	int getCapacity() {
+		return mask == -1 ? predecessors.length / stateCount : mask + 1;
+	}
+
+	/**
+	 * Starts collecting the argmaxes of a new cell
+	 */
+	void begin() {
+		bestValue = Double.NEGATIVE_INFINITY;
+		candidateCount = 0;
+	}
+
+	/**
+	 * @param candidate value of V[q][l] if it came from (q', l')
+	 * @param qPrime    the predecessor state
+	 * @param lPrime    the start of the emission
+	 */
+	void offer(double candidate, int qPrime, int lPrime) {
+		if (candidate == Double.NEGATIVE_INFINITY || candidate < bestValue)
+			return;
+		if (candidate > bestValue) {
+			bestValue = candidate;
+			candidateCount = 0;
+		}
+		if (2 * candidateCount + 2 > candidates.length)
+			candidates = Arrays.copyOf(candidates, 2 * candidates.length);
+		candidates[2 * candidateCount] = qPrime;
+		candidates[2 * candidateCount + 1] = lPrime;
+		candidateCount++;
+	}
+
+	/**
+	 * Stores the argmaxes collected since {@link #begin()} for cell (q, l)
+	 */
+	void store(int q, int l) {
+		if (candidateCount == 0)
+			return;
+		int cell = (l & mask) * stateCount + q;
+		if (candidateCount > 1) {
+			// order by predecessor first, then position (insertion sort: there are very few)
+			for (int i = 1; i < candidateCount; i++) {
+				int qPrime = candidates[2 * i], lPrime = candidates[2 * i + 1];
+				int j = i - 1;
+				while (j >= 0 && (candidates[2 * j] > qPrime
+						|| (candidates[2 * j] == qPrime && candidates[2 * j + 1] > lPrime))) {
+					candidates[2 * j + 2] = candidates[2 * j];
+					candidates[2 * j + 3] = candidates[2 * j + 1];
+					j--;
+				}
+				candidates[2 * j + 2] = qPrime;
+				candidates[2 * j + 3] = lPrime;
+			}
+			ties.put((long) l * stateCount + q, Arrays.copyOf(candidates, 2 * candidateCount));
+		}
+		predecessors[cell] = (byte) candidates[0];
+		lengths[cell] = l - candidates[1];
+	}
+
+	/**
+	 * @return the value of the best candidate offered since {@link #begin()}
+	 */
+	double getBestValue() {
+		return bestValue;
+	}
+
+	/**
+	 * @param q state
+	 * @param l position
+	 * @return all argmaxes of cell (q, l) as q', l', q', l', ..., (empty if the
+	 *         cell is not on any path)
+	 */
+	int[] getArgmaxes(int q, int l) {
+		int[] tied = ties.isEmpty() ? null : ties.get((long) l * stateCount + q);
+		if (tied != null)
+			return tied.clone();
+		int cell = (l & mask) * stateCount + q;
+		int predecessor = predecessors[cell] & 0xFF;
+		if (predecessor == NONE)
+			return new int[0];
+		return new int[] { predecessor, l - lengths[cell] };
+	}
+
+	/**
+	 * @return the first argmax q' of cell (q, l) (in the order of
+	 *         {@link #getArgmaxes(int, int)}), or -1 if the cell is not on any
+	 *         path
+	 */
+	int getPredecessorState(int q, int l) {
+		int predecessor = predecessors[(l & mask) * stateCount + q] & 0xFF;
+		return predecessor == NONE ? -1 : predecessor;
+	}
+
+	/**
+	 * @return l' of the first argmax of cell (q, l), cf.
+	 *         {@link #getPredecessorState(int, int)}
+	 */
+	int getPredecessorPosition(int q, int l) {
+		return l - lengths[(l & mask) * stateCount + q];
+	}
+
+	/**
+	 * @return number of cells with more than one argmax
+	 */
+	int getNumberOfTies() {
+		return ties.size();
+	}
+}
@@ -0,0 +1,468 @@
+package de.vetter.pogigwasc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.RequiredMotif;
+
+/**
+ * Frozen, read-only form of a {@link GHMM}, as used by the decoding engine
+ * ({@link Viterbi}, {@link ViterbiSeed}): Instead of the dense transition
+ * matrix, every state only knows its <i>finite</i> incoming transitions, which
+ * are stored as flat primitive arrays (in the style of a compressed sparse
+ * row-matrix). States that do not lie on any path from the initial to the
+ * terminal state are dropped.<br>
+ *
+ * The initial state keeps index 0 and the terminal state keeps index 1; all
+ * other states keep their relative order, but may be re-indexed (cf.
+ * {@link #getOriginalIndex(int)}). Since instances are immutable, a single
+ * instance can be shared by any number of decoding threads. (Properties of the
+ * states, like their fixed emission lengths, are read when compiling: states
+ * must not change these afterwards)
+ *
+ * <b>Usage:</b> set up a {@link GHMM} as usual, then call
+ * {@link GHMM#compile()}
+ */
+public final class CompiledGHMM {
+
+	private final HMMState[] states;
+	private final int[] originalIndices;
+	private final boolean[] independentOfPreviousState;
+	private final int[] fixedEmissionLengths;
+	private final int[] lPrimeStrides;
+	private final RequiredMotif[] requiredMotifs;
+	/** per state: whether it only scores emissions by the String-based method, cf. {@link #withoutEmissionHistory()} */
+	private final boolean[] scoringStrings;
+	private final int maximumEmissionLength;
+	/** whether states that score Strings are handed no emission history */
+	private final boolean omittingEmissionHistory;
+
+	/**
+	 * incoming transitions of state q are found at indices
+	 * predecessorOffsets[q] (inclusive) to predecessorOffsets[q+1] (exclusive) of
+	 * the two arrays below; ordered by ascending predecessor-index
+	 */
+	private final int[] predecessorOffsets;
+	private final int[] predecessorStates;
+	private final double[] predecessorLogTransitions;
+
+	private final double[] logTerminalTransitions;
+
+	/**
+	 * Compiles the given model; it is not referenced afterwards, i.e. later
+	 * changes to it do not affect this instance
+	 *
+	 * @param model has to have a valid transition matrix
+	 * @throws IllegalArgumentException if the transition matrix of the model is
+	 *                                  not set or not normalised
+	 */
+	public CompiledGHMM(GHMM model) {
+		this(model, Topology.of(model));
+	}
+
+	/**
+	 * Restores a compiled model from its transitions (as stored in a
+	 * {@link ModelSnapshot}); the states are taken from the given model, whose
+	 * transitions are not used
+	 *
+	 * @param model                     provides the states
+	 * @param originalIndices           cf. {@link #getOriginalIndex(int)}
+	 * @param predecessorOffsets        cf. {@link #getPredecessorStart(int)}
+	 *                                  (one more than there are states)
+	 * @param predecessorStates         cf. {@link #getPredecessorState(int)}
+	 * @param predecessorLogTransitions cf.
+	 *                                  {@link #getPredecessorLogTransition(int)}
+	 * @param logTerminalTransitions    cf.
+	 *                                  {@link #getLogTransitionToTerminal(int)}
+	 * @throws IllegalArgumentException if the arrays do not fit each other
+	 */
+	CompiledGHMM(GHMM model, int[] originalIndices, int[] predecessorOffsets, int[] predecessorStates,
+			double[] predecessorLogTransitions, double[] logTerminalTransitions) {
+		this(model, new Topology(originalIndices, predecessorOffsets, predecessorStates, predecessorLogTransitions,
+				logTerminalTransitions));
+	}
+
+	private CompiledGHMM(GHMM model, Topology topology) {
+		originalIndices = topology.originalIndices;
+		predecessorOffsets = topology.predecessorOffsets;
+		predecessorStates = topology.predecessorStates;
+		predecessorLogTransitions = topology.predecessorLogTransitions;
+		logTerminalTransitions = topology.logTerminalTransitions;
+
+		int compiledCount = originalIndices.length;
+		states = new HMMState[compiledCount];
+		independentOfPreviousState = new boolean[compiledCount];
+		fixedEmissionLengths = new int[compiledCount];
+		lPrimeStrides = new int[compiledCount];
+		requiredMotifs = new RequiredMotif[compiledCount];
+		scoringStrings = new boolean[compiledCount];
+		for (int q = 0; q < compiledCount; q++) {
+			states[q] = model.getState(originalIndices[q]);
+			independentOfPreviousState[q] = states[q].isIndependentOfPreviousState();
+			fixedEmissionLengths[q] = states[q].getFixedEmissionLength();
+			lPrimeStrides[q] = fixedEmissionLengths[q] == HMMState.VARIABLE_EMISSION_LENGTH
+					? states[q].getLPrimeStride()
+					: 1;
+			requiredMotifs[q] = states[q].getRequiredMotif();
+			scoringStrings[q] = isScoringStrings(states[q]);
+		}
+		
+		int maximum = 0;
+		for (int q = 2; q < compiledCount && maximum < Integer.MAX_VALUE; q++) {
+			maximum = Math.max(maximum, emissionLengthBound(states[q], fixedEmissionLengths[q]));
+		}
+		maximumEmissionLength = maximum;
+		omittingEmissionHistory = false;
+	}
+
+	/**
+	 * @return a view of the same model in which
+	 *         {@link #getLogEmissionProbability(int, int, EncodedSequence, int, int)}
+	 *         hands {@code null} as the emission history to states that only
+	 *         implement {@link HMMState#computeLogEmissionProbability(int, String, String)},
+	 *         instead of building it (cf. {@link Viterbi#setAbbreviating(boolean)})
+	 */
+	CompiledGHMM withoutEmissionHistory() {
+		return omittingEmissionHistory ? this : new CompiledGHMM(this, true);
+	}
+
+	/**
+	 * @return a view of the same model that builds the emission history (as by
+	 *         default), cf. {@link #withoutEmissionHistory()}
+	 */
+	CompiledGHMM withEmissionHistory() {
+		return omittingEmissionHistory ? new CompiledGHMM(this, false) : this;
+	}
+
+	private CompiledGHMM(CompiledGHMM other, boolean omittingEmissionHistory) {
+		states = other.states;
+		originalIndices = other.originalIndices;
+		independentOfPreviousState = other.independentOfPreviousState;
+		fixedEmissionLengths = other.fixedEmissionLengths;
+		lPrimeStrides = other.lPrimeStrides;
+		requiredMotifs = other.requiredMotifs;
+		scoringStrings = other.scoringStrings;
+		maximumEmissionLength = other.maximumEmissionLength;
+		predecessorOffsets = other.predecessorOffsets;
+		predecessorStates = other.predecessorStates;
+		predecessorLogTransitions = other.predecessorLogTransitions;
+		logTerminalTransitions = other.logTerminalTransitions;
+		this.omittingEmissionHistory = omittingEmissionHistory;
+	}
+
+	/**
+	 * @return whether the state does not override
+	 *         {@link HMMState#computeLogEmissionProbability(int, EncodedSequence, int, int)},
+	 *         i.e. leaves it to build the emission history for the String-based
+	 *         method
+	 */
+	private static boolean isScoringStrings(HMMState state) {
+		try {
+			return state.getClass()
+					.getMethod("computeLogEmissionProbability", int.class, EncodedSequence.class, int.class, int.class)
+					.getDeclaringClass() == HMMState.class;
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The states that are kept and their transitions, in the flat arrays of
+	 * {@link CompiledGHMM}
+	 */
+	private static final class Topology {
+		private final int[] originalIndices;
+		private final int[] predecessorOffsets;
+		private final int[] predecessorStates;
+		private final double[] predecessorLogTransitions;
+		private final double[] logTerminalTransitions;
+
+		private Topology(int[] originalIndices, int[] predecessorOffsets, int[] predecessorStates,
+				double[] predecessorLogTransitions, double[] logTerminalTransitions) {
+			int n = originalIndices.length;
+			if (n < 2 || predecessorOffsets.length != n + 1 || logTerminalTransitions.length != n
+					|| predecessorStates.length != predecessorLogTransitions.length
+					|| predecessorOffsets[n] != predecessorStates.length)
+				throw new IllegalArgumentException("The transitions do not fit " + n + " states");
+			for (int q = 0; q < n; q++) {
+				if (predecessorOffsets[q] > predecessorOffsets[q + 1])
+					throw new IllegalArgumentException("The predecessor offsets are not ascending");
+			}
+			for (int qPrime : predecessorStates) {
+				if (qPrime < 0 || qPrime >= n)
+					throw new IllegalArgumentException("Predecessor " + qPrime + " is not a state");
+			}
+			this.originalIndices = originalIndices;
+			this.predecessorOffsets = predecessorOffsets;
+			this.predecessorStates = predecessorStates;
+			this.predecessorLogTransitions = predecessorLogTransitions;
+			this.logTerminalTransitions = logTerminalTransitions;
+		}
+
+		private static Topology of(GHMM model) {
+			if (!(model.isSetTransitionMatrix() && model.checkTransitions())) {
+				throw new IllegalArgumentException(
+						"The given GHMM does not have a valid transition matrix (not set, or not normalised).");
+			}
+
+			int n = model.getNumberOfStates();
+			boolean[] reachable = new boolean[n];
+			boolean[] coreachable = new boolean[n];
+			markReachable(model, 0, reachable, true);
+			markReachable(model, 1, coreachable, false);
+
+			// initial and terminal state are always kept (and keep their indices)
+			List<Integer> kept = new ArrayList<Integer>();
+			kept.add(0);
+			kept.add(1);
+			for (int q = 2; q < n; q++) {
+				if (reachable[q] && coreachable[q])
+					kept.add(q);
+			}
+
+			int compiledCount = kept.size();
+			int[] originalIndices = new int[compiledCount];
+			for (int q = 0; q < compiledCount; q++)
+				originalIndices[q] = kept.get(q);
+
+			// count finite incoming transitions first, then fill the flat arrays; the
+			// initial state only emits the empty word at the very start, and the
+			// terminal state is handled separately, so neither gets predecessors
+			int[] predecessorOffsets = new int[compiledCount + 1];
+			for (int q = 0; q < compiledCount; q++) {
+				int count = 0;
+				if (q > 1) {
+					for (int qPrime = 0; qPrime < compiledCount; qPrime++) {
+						if (qPrime != 1
+								&& model.getLogTransitionProbability(originalIndices[qPrime],
+										originalIndices[q]) > Double.NEGATIVE_INFINITY)
+							count++;
+					}
+				}
+				predecessorOffsets[q + 1] = predecessorOffsets[q] + count;
+			}
+
+			int[] predecessorStates = new int[predecessorOffsets[compiledCount]];
+			double[] predecessorLogTransitions = new double[predecessorOffsets[compiledCount]];
+			for (int q = 2; q < compiledCount; q++) {
+				int k = predecessorOffsets[q];
+				for (int qPrime = 0; qPrime < compiledCount; qPrime++) {
+					double logTransition = model.getLogTransitionProbability(originalIndices[qPrime],
+							originalIndices[q]);
+					if (qPrime != 1 && logTransition > Double.NEGATIVE_INFINITY) {
+						predecessorStates[k] = qPrime;
+						predecessorLogTransitions[k] = logTransition;
+						k++;
+					}
+				}
+			}
+
+			double[] logTerminalTransitions = new double[compiledCount];
+			for (int q = 0; q < compiledCount; q++) {
+				logTerminalTransitions[q] = model.getLogTransitionProbability(originalIndices[q], 1);
+			}
+			return new Topology(originalIndices, predecessorOffsets, predecessorStates, predecessorLogTransitions,
+					logTerminalTransitions);
+		}
+	}
+
+	/**
+	 * @return the length of the longest emission of the state, or
+	 *         Integer.MAX_VALUE if its range of l' is not bounded by its supremum
+	 *         (checked far from the start of the sequence)
+	 */
+	private static int emissionLengthBound(HMMState state, int fixedLength) {
+		if (fixedLength != HMMState.VARIABLE_EMISSION_LENGTH)
+			return fixedLength;
+		int supremum = state.getSupremumPermissibleEmissionLength();
+		int probe = 1 << 30;
+		if (supremum == Integer.MAX_VALUE || probe - state.getMinimumLPrime(probe) > supremum)
+			return Integer.MAX_VALUE;
+		return supremum;
+	}
+
+	/**
+	 * Depth-first search along the finite transitions of the model, marking
+	 * every visited state
+	 *
+	 * @param forward whether to follow transitions from->to (or to->from)
+	 */
+	private static void markReachable(GHMM model, int start, boolean[] marked, boolean forward) {
+		List<Integer> stack = new ArrayList<Integer>();
+		stack.add(start);
+		marked[start] = true;
+		while (!stack.isEmpty()) {
+			int current = stack.remove(stack.size() - 1);
+			for (int other = 0; other < marked.length; other++) {
+				double logTransition = forward ? model.getLogTransitionProbability(current, other)
+						: model.getLogTransitionProbability(other, current);
+				if (!marked[other] && logTransition > Double.NEGATIVE_INFINITY) {
+					marked[other] = true;
+					stack.add(other);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the number of states that were kept; this includes the initial and
+	 *         terminal state
+	 */
+	public int getNumberOfStates() {
+		return states.length;
+	}
+
+	/**
+	 * @param q compiled index
+	 * @return the state at that index (0 is the initial state, 1 is the terminal
+	 *         state)
+	 */
+	public HMMState getState(int q) {
+		return states[q];
+	}
+
+	/**
+	 * @param q compiled index
+	 * @return index of that state in the {@link GHMM} this was compiled from
+	 */
+	public int getOriginalIndex(int q) {
+		return originalIndices[q];
+	}
+
+	/**
+	 * @param q compiled index
+	 * @return whether the emission of that state does not depend on the previous
+	 *         state, cf. {@link HMMState#isIndependentOfPreviousState()}
+	 */
+	public boolean isIndependentOfPreviousState(int q) {
+		return independentOfPreviousState[q];
+	}
+
+	/**
+	 * @return the length of the longest emission of any state (other than the
+	 *         initial one), i.e. how many columns back the recursion has to look;
+	 *         Integer.MAX_VALUE if any state allows arbitrarily long emissions
+	 */
+	public int getMaximumEmissionLength() {
+		return maximumEmissionLength;
+	}
+
+	/**
+	 * @param q compiled index
+	 * @return the motif required by that state, or {@code null}, cf.
+	 *         {@link HMMState#getRequiredMotif()}
+	 */
+	public RequiredMotif getRequiredMotif(int q) {
+		return requiredMotifs[q];
+	}
+
+	/**
+	 * Together with {@link #getLastLPrime(int, int)} and
+	 * {@link #getLPrimeStride(int)}, this describes the permissible starts l' of
+	 * an emission of state q that ends at l, cf.
+	 * {@link HMMState#getMinimumLPrime(int)}; states with a fixed emission length
+	 * are handled without asking the state.
+	 * 
+	 * @param q compiled index of a state
+	 * @param l end (exclusive) of the emission
+	 * @return the first permissible l' (never negative)
+	 */
+	public int getFirstLPrime(int q, int l) {
+		int fixedLength = fixedEmissionLengths[q];
+		return fixedLength == HMMState.VARIABLE_EMISSION_LENGTH ? states[q].getFirstPermissibleLPrime(l)
+				: Math.max(0, l - fixedLength);
+	}
+
+	/**
+	 * @see #getFirstLPrime(int, int)
+	 * @return the last permissible l' (inclusive)
+	 */
+	public int getLastLPrime(int q, int l) {
+		int fixedLength = fixedEmissionLengths[q];
+		return fixedLength == HMMState.VARIABLE_EMISSION_LENGTH ? states[q].getMaximumLPrime(l) : l - fixedLength;
+	}
+
+	/**
+	 * @see #getFirstLPrime(int, int)
+	 * @return the step between consecutive permissible l'
+	 */
+	public int getLPrimeStride(int q) {
+		return lPrimeStrides[q];
+	}
+
+	/**
+	 * @param q compiled index of a state
+	 * @return the first position (inclusive) of q's incoming transitions, cf.
+	 *         {@link #getPredecessorState(int)}
+	 */
+	public int getPredecessorStart(int q) {
+		return predecessorOffsets[q];
+	}
+
+	/**
+	 * @param q compiled index of a state
+	 * @return the last position (exclusive) of q's incoming transitions, cf.
+	 *         {@link #getPredecessorState(int)}
+	 */
+	public int getPredecessorEnd(int q) {
+		return predecessorOffsets[q + 1];
+	}
+
+	/**
+	 * @param k position of an incoming transition, between
+	 *          {@link #getPredecessorStart(int)} and
+	 *          {@link #getPredecessorEnd(int)} of some state
+	 * @return compiled index of the state this transition comes from
+	 */
+	public int getPredecessorState(int k) {
+		return predecessorStates[k];
+	}
+
+	/**
+	 * @param k position of an incoming transition, cf.
+	 *          {@link #getPredecessorState(int)}
+	 * @return log-probability of that transition (always finite)
+	 */
+	public double getPredecessorLogTransition(int k) {
+		return predecessorLogTransitions[k];
+	}
+
+	/**
+	 * @param q compiled index of a state
+	 * @return log-probability of transitioning from q to the terminal state
+	 */
+	public double getLogTransitionToTerminal(int q) {
+		return logTerminalTransitions[q];
+	}
+
+	/**
+	 * Like {@link GHMM#getLogEmissionProbability(int, int, String, String)}, but
+	 * for compiled indices (the state is handed the original index of the previous
+	 * state), and with the new emission being sequence[start, end), cf.
+	 * {@link HMMState#computeLogEmissionProbability(int, EncodedSequence, int, int)}
+	 * (or, in a view {@link #withoutEmissionHistory()}, the String-based method
+	 * without history, for states that only implement that one)
+	 */
+	public double getLogEmissionProbability(int previous, int current, EncodedSequence sequence, int start,
+			int end) {
+		if (omittingEmissionHistory && scoringStrings[current])
+			return states[current].computeLogEmissionProbability(originalIndices[previous], null,
+					sequence.substring(start, end));
+		return states[current].computeLogEmissionProbability(originalIndices[previous], sequence, start, end);
+	}
+
+	public String toString() {
+		StringBuffer result = new StringBuffer();
+		result.append("Compiled GHMM\n");
+		result.append(states.length + " states:\n");
+		for (int q = 0; q < states.length; q++) {
+			result.append("\t" + q + ": " + states[q].getName() + " <-");
+			for (int k = getPredecessorStart(q); k < getPredecessorEnd(q); k++) {
+				result.append(" " + predecessorStates[k]);
+			}
+			result.append("\n");
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,188 @@
+package de.vetter.pogigwasc;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the predictions for a series of contigs (in the order of the input
+ * file) on several threads, and writes their GFF into the writer in exactly
+ * that order: the output does not depend on the number of threads. All
+ * threads share the compiled model; every contig is decoded by its own
+ * {@link Viterbi}-instance. The segments of a scaffold that is split at its
+ * runs of N (cf. {@link DecodingOptions#setSplittingScaffolds(int)}) are
+ * decoded like contigs of their own, i.e. in parallel as well.<br>
+ *
+ * At most twice as many contigs (or segments) as there are threads are held at a time, so
+ * that reading the input does not run far ahead of decoding. With a single
+ * thread, every contig is decoded right away, on the calling thread. With
+ * several threads, the windows of a contig (cf. {@link WindowedViterbi}) are
+ * decoded one after the other, so that no more windows than threads are held
+ * at a time either.<br>
+ *
+ * When decoding online (cf. {@link DecodingOptions#setOnline(boolean)}), the
+ * oldest contig that is not finished writes its fixed parts straight into the
+ * writer; the later contigs hold theirs only until all earlier ones are
+ * written.
+ */
+public class ContigScheduler {
+
+	private final CompiledGHMM model;
+	private final ModelParameters parameters;
+	private final DecodingOptions options;
+	private final BufferedWriter writer;
+	private final int threads;
+
+	/** null if single-threaded */
+	private final ExecutorService pool;
+	/** GFF of the submitted contigs that were not written yet, in input order */
+	private final Deque<Future<String>> pending = new ArrayDeque<Future<String>>();
+	/** only when decoding online: where each of the pending contigs writes to */
+	private final Deque<OrderedOutput> outputs = new ArrayDeque<OrderedOutput>();
+
+	/**
+	 * @param model      compiled model, shared by all threads
+	 * @param parameters for translating parses into GFF
+	 * @param options    how to decode each contig
+	 * @param writer     where the GFF of each contig is written to
+	 * @param threads    number of contigs decoded at the same time
+	 */
+	public ContigScheduler(CompiledGHMM model, ModelParameters parameters, DecodingOptions options,
+			BufferedWriter writer, int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		this.model = model;
+		this.parameters = parameters;
+		if (threads > 1 && options.getThreads() > 1) {
+			this.options = new DecodingOptions(options);
+			this.options.setThreads(1);
+		} else {
+			this.options = options;
+		}
+		this.writer = writer;
+		this.threads = threads;
+		this.pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+	}
+
+	/**
+	 * Schedules the prediction of the given contig; may block until an earlier
+	 * contig is finished (and written)
+	 *
+	 * @throws IOException              if writing the GFF of an earlier contig
+	 *                                  fails
+	 * @throws IllegalArgumentException if the contig contains N (and scaffolds
+	 *                                  are not split)
+	 */
+	public void submit(final String header, final CharSequence sequence) throws IOException {
+		if (pool == null) {
+			// written right away, piecewise if decoding online
+			App.predict(model, header, sequence, parameters, options, writer);
+			return;
+		}
+		List<Pair<Integer, Integer>> segments = App.findSegments(header, sequence, options);
+		for (Pair<Integer, Integer> segment : segments) {
+			while (pending.size() >= 2 * threads)
+				writeNext();
+			int start = segment.getFirst(), end = segment.getSecond();
+			if (options.isOnline()) {
+				OrderedOutput output = new OrderedOutput();
+				if (outputs.isEmpty())
+					output.writeThrough();
+				outputs.add(output);
+				pending.add(pool.submit(() -> {
+					App.predict(model, header, sequence, start, end, parameters, options, output);
+					return "";
+				}));
+			} else {
+				pending.add(pool.submit(() -> App.predict(model, header, sequence, start, end, parameters, options)));
+			}
+		}
+	}
+
+	/**
+	 * @return the options each contig is decoded with
+	 */
+	DecodingOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Waits for all scheduled contigs, writes their GFF and stops the threads
+	 *
+	 * @throws IOException if writing fails
+	 */
+	public void finish() throws IOException {
+		try {
+			while (!pending.isEmpty())
+				writeNext();
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			writer.write(pending.removeFirst().get());
+			if (!outputs.isEmpty()) {
+				outputs.removeFirst();
+				if (!outputs.isEmpty())
+					outputs.getFirst().writeThrough();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a contig", e);
+		} catch (ExecutionException e) {
+			pool.shutdownNow();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * GFF of one contig decoded online: held until all earlier contigs are
+	 * written, and passed straight on to the writer from then on
+	 */
+	private final class OrderedOutput implements Appendable {
+		/** null once writing through */
+		private StringBuilder held = new StringBuilder();
+
+		/**
+		 * Writes what was held, and everything appended from now on
+		 *
+		 * @throws IOException if writing fails
+		 */
+		synchronized void writeThrough() throws IOException {
+			writer.append(held);
+			held = null;
+		}
+
+		@Override
+		public synchronized Appendable append(CharSequence csq) throws IOException {
+			if (held == null)
+				writer.append(csq);
+			else
+				held.append(csq);
+			return this;
+		}
+
+		@Override
+		public synchronized Appendable append(CharSequence csq, int start, int end) throws IOException {
+			return append(csq.subSequence(start, end));
+		}
+
+		@Override
+		public synchronized Appendable append(char c) throws IOException {
+			return append(String.valueOf(c));
+		}
+	}
+}
@@ -0,0 +1,305 @@
+package de.vetter.pogigwasc;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Settings for decoding a contig, as chosen on the command line (cf.
+ * {@link App}); {@link #decode(CompiledGHMM, EncodedSequence)} picks the
+ * decoder accordingly. The defaults correspond to plain Viterbi-decoding with
+ * automatic checkpointing.
+ */
+public class DecodingOptions {
+
+	private Viterbi.Checkpointing checkpointing = Viterbi.Checkpointing.AUTO;
+	private boolean recordingBackpointers = false;
+	private Viterbi.ScoreStorage scoreStorage = Viterbi.ScoreStorage.DOUBLE;
+	private int windowSize = 0;
+	private int windowOverlap = 0;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int columnThreads = 1;
+	private double beamMargin = Double.POSITIVE_INFINITY;
+	private double tieTolerance = 0;
+	private int maximumNumberOfParses = Integer.MAX_VALUE;
+	private boolean mergingParses = false;
+	private int numberOfBestParses = 0;
+	private boolean online = false;
+	/** 0 if scaffolds are not split */
+	private int minimumSegmentLength = 0;
+
+	public DecodingOptions() {
+	}
+
+	/**
+	 * @param other whose settings are copied
+	 */
+	public DecodingOptions(DecodingOptions other) {
+		checkpointing = other.checkpointing;
+		recordingBackpointers = other.recordingBackpointers;
+		scoreStorage = other.scoreStorage;
+		windowSize = other.windowSize;
+		windowOverlap = other.windowOverlap;
+		threads = other.threads;
+		columnThreads = other.columnThreads;
+		beamMargin = other.beamMargin;
+		tieTolerance = other.tieTolerance;
+		maximumNumberOfParses = other.maximumNumberOfParses;
+		mergingParses = other.mergingParses;
+		numberOfBestParses = other.numberOfBestParses;
+		online = other.online;
+		minimumSegmentLength = other.minimumSegmentLength;
+	}
+
+	public Viterbi.Checkpointing getCheckpointing() {
+		return checkpointing;
+	}
+
+	/**
+	 * @see Viterbi#setCheckpointing(Viterbi.Checkpointing)
+	 */
+	public void setCheckpointing(Viterbi.Checkpointing checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+
+	public boolean isRecordingBackpointers() {
+		return recordingBackpointers;
+	}
+
+	/**
+	 * @see Viterbi#setRecordingBackpointers(boolean)
+	 */
+	public void setRecordingBackpointers(boolean record) {
+		this.recordingBackpointers = record;
+	}
+
+	public Viterbi.ScoreStorage getScoreStorage() {
+		return scoreStorage;
+	}
+
+	/**
+	 * @see Viterbi#setScoreStorage(Viterbi.ScoreStorage)
+	 */
+	public void setScoreStorage(Viterbi.ScoreStorage storage) {
+		this.scoreStorage = storage;
+	}
+
+	/**
+	 * @return number of bases per window, or 0 if contigs are never split into
+	 *         windows
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	public int getWindowOverlap() {
+		return windowOverlap;
+	}
+
+	/**
+	 * Contigs longer than the window size are decoded by a
+	 * {@link WindowedViterbi}
+	 *
+	 * @param windowSize number of bases per window, 0 to switch this off
+	 * @param overlap    number of bases shared by consecutive windows
+	 */
+	public void setWindows(int windowSize, int overlap) {
+		if (windowSize != 0 && (overlap < 1 || overlap >= windowSize)) {
+			throw new IllegalArgumentException(
+					"The overlap (" + overlap + ") has to be positive and less than the window size (" + windowSize + ")");
+		}
+		this.windowSize = windowSize;
+		this.windowOverlap = overlap;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads number of windows of a contig decoded at the same time
+	 *                (default: the number of processors); a
+	 *                {@link ContigScheduler} that decodes several contigs at
+	 *                once uses a single thread per contig instead
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		this.threads = threads;
+	}
+
+	public int getColumnThreads() {
+		return columnThreads;
+	}
+
+	/**
+	 * @see Viterbi#setParallelism(int)
+	 */
+	public void setColumnThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		this.columnThreads = threads;
+	}
+
+	public double getBeamMargin() {
+		return beamMargin;
+	}
+
+	/**
+	 * @see Viterbi#setBeamMargin(double)
+	 */
+	public void setBeamMargin(double margin) {
+		if (!(margin >= 0))
+			throw new IllegalArgumentException("The beam margin has to be non-negative, not " + margin);
+		this.beamMargin = margin;
+	}
+
+	public double getTieTolerance() {
+		return tieTolerance;
+	}
+
+	/**
+	 * @see Viterbi#setTieTolerance(double)
+	 */
+	public void setTieTolerance(double tolerance) {
+		if (!(tolerance >= 0))
+			throw new IllegalArgumentException("The tie tolerance has to be non-negative, not " + tolerance);
+		this.tieTolerance = tolerance;
+	}
+
+	public int getMaximumNumberOfParses() {
+		return maximumNumberOfParses;
+	}
+
+	/**
+	 * @see Viterbi#setMaximumNumberOfParses(int)
+	 */
+	public void setMaximumNumberOfParses(int maximum) {
+		if (maximum < 1)
+			throw new IllegalArgumentException("Need to return at least one parse, not " + maximum);
+		this.maximumNumberOfParses = maximum;
+	}
+
+	public boolean isMergingParses() {
+		return mergingParses;
+	}
+
+	/**
+	 * @param merge whether several parses of a contig are written as one, cf.
+	 *              {@link LoxodesMagnusGHMM#parsesToGFF(String, List, ModelParameters)}
+	 */
+	public void setMergingParses(boolean merge) {
+		this.mergingParses = merge;
+	}
+
+	/**
+	 * @return k, if the k most likely parses are decoded, or 0 (the default) for
+	 *         the most likely ones (and their ties) only
+	 */
+	public int getNumberOfBestParses() {
+		return numberOfBestParses;
+	}
+	
+	/**
+	 * @see Viterbi#computeKBestParses(int)
+	 * @param k number of parses, or 0 to switch this off; not used on contigs
+	 *          decoded in windows
+	 */
+	public void setNumberOfBestParses(int k) {
+		if (k < 0)
+			throw new IllegalArgumentException("The number of best parses has to be non-negative, not " + k);
+		this.numberOfBestParses = k;
+	}
+
+	public boolean isOnline() {
+		return online;
+	}
+
+	/**
+	 * @param online whether contigs are decoded by an {@link OnlineViterbi}
+	 *               (which takes precedence over windows and the number of best
+	 *               parses)
+	 */
+	public void setOnline(boolean online) {
+		this.online = online;
+	}
+
+	public boolean isSplittingScaffolds() {
+		return minimumSegmentLength > 0;
+	}
+
+	public int getMinimumSegmentLength() {
+		return minimumSegmentLength;
+	}
+
+	/**
+	 * Sequences that contain unspecified nucleotides (N) are split at each run
+	 * of them, and every segment between two runs is decoded on its own (and
+	 * written with its positions on the whole sequence), cf.
+	 * {@link #findSegments(CharSequence)}
+	 *
+	 * @param minimumLength segments shorter than this are skipped; 0 to switch
+	 *                      splitting off (the default), in which case sequences
+	 *                      with N are rejected
+	 */
+	public void setSplittingScaffolds(int minimumLength) {
+		if (minimumLength < 0)
+			throw new IllegalArgumentException("The minimum segment length has to be non-negative, not " + minimumLength);
+		this.minimumSegmentLength = minimumLength;
+	}
+
+	/**
+	 * @param sequence a contig or scaffold
+	 * @return the parts of the sequence to decode, as (start, end) with the end
+	 *         exclusive: the whole sequence if it contains no N, otherwise its
+	 *         segments between runs of N (at least as long as the minimum
+	 *         segment length)
+	 * @throws IllegalArgumentException if the sequence contains N, but scaffolds
+	 *                                  are not split
+	 */
+	public List<Pair<Integer, Integer>> findSegments(CharSequence sequence) {
+		List<Pair<Integer, Integer>> segments = Utilities.findSegmentsBetweenNs(sequence, 0);
+		if (sequence.length() == 0 || segments.size() == 1
+				&& segments.get(0).getSecond() - segments.get(0).getFirst() == sequence.length())
+			return Collections.singletonList(new Pair<Integer, Integer>(0, sequence.length()));
+		if (!isSplittingScaffolds()) {
+			throw new IllegalArgumentException("The given sequence contained uncharacterised Nucleotides (N). "
+					+ "Please provide contigs, not scaffolds, or split them (--split-scaffolds)");
+		}
+		return Utilities.findSegmentsBetweenNs(sequence, minimumSegmentLength);
+	}
+
+	/**
+	 * @param model    compiled model
+	 * @param sequence the contig
+	 * @return the most likely parses of the contig (a single, stitched one if it
+	 *         was decoded in windows), or the k best ones, cf.
+	 *         {@link #setNumberOfBestParses(int)}
+	 */
+	public List<Parse> decode(CompiledGHMM model, EncodedSequence sequence) {
+		if (online) {
+			Parse parse = new OnlineViterbi(model, sequence).computeParse();
+			return parse == null ? Collections.<Parse>emptyList() : Collections.singletonList(parse);
+		}
+		if (windowSize > 0 && sequence.length() > windowSize) {
+			WindowedViterbi windowed = new WindowedViterbi(model, sequence, windowSize, windowOverlap);
+			windowed.setCheckpointing(checkpointing);
+			windowed.setRecordingBackpointers(recordingBackpointers);
+			windowed.setThreads(threads);
+			windowed.setBeamMargin(beamMargin);
+			windowed.setScoreStorage(scoreStorage);
+			return Collections.singletonList(windowed.computeParse());
+		}
+
+		Viterbi viterbi = new Viterbi(model, sequence);
+		viterbi.setCheckpointing(checkpointing);
+		viterbi.setRecordingBackpointers(recordingBackpointers);
+		viterbi.setParallelism(columnThreads);
+		viterbi.setBeamMargin(beamMargin);
+		viterbi.setScoreStorage(scoreStorage);
+		viterbi.setTieTolerance(tieTolerance);
+		viterbi.setMaximumNumberOfParses(maximumNumberOfParses);
+		if (numberOfBestParses > 0)
+			return viterbi.computeKBestParses(numberOfBestParses);
+		return viterbi.computeParses();
+	}
+}
@@ -0,0 +1,200 @@
+package de.vetter.pogigwasc;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, compact representation of a (contig-)sequence, as handed to the
+ * states by the decoder: Each base is stored in 2 bits (32 bases per long),
+ * using the base-indices of {@link Utilities#baseToIndex(char)} (TCAG), so the
+ * states can score emissions via {@link #baseAt(int)} and start/end-offsets
+ * instead of substrings.<br>
+ *
+ * Sequences that contain anything other than T, C, A and G (in either case)
+ * cannot be packed; they keep their characters instead, so that models with
+ * other alphabets still work via {@link #substring(int, int)} (for these,
+ * {@link #baseAt(int)} is -1 at any non-base). Notice that a packed sequence
+ * reproduces its bases in upper case.<br>
+ *
+ * The reverse complement is computed (once) on demand, cf.
+ * {@link #getReverseComplement()}, so that reverse-strand states can read
+ * their bases in order, at plain offsets.<br>
+ *
+ * Data that states derive from the whole sequence (e.g. cumulative scores) can
+ * be attached via {@link #getPrecomputed(Precomputation)}, so that the states
+ * themselves stay free of per-contig data and can be shared between threads.
+ */
+public final class EncodedSequence {
+
+	private static final String BASES = "TCAG";
+
+	/** bases at 2 bits each, or null if the sequence could not be packed */
+	private final long[] packed;
+	/** the original characters, only kept if the sequence could not be packed */
+	private final String raw;
+	private final int length;
+
+	/** computed on first request; its own reverse complement is this sequence */
+	private volatile EncodedSequence reverseComplement;
+
+	/** results of {@link Precomputation}s, computed on first request */
+	private final ConcurrentHashMap<Precomputation<?>, Object> precomputed = new ConcurrentHashMap<Precomputation<?>, Object>();
+
+	/**
+	 * Something derived from a whole sequence, e.g. a table of cumulative scores.
+	 * Implementations act as keys for {@link EncodedSequence#getPrecomputed(Precomputation)}:
+	 * instances that are equal have to compute the same result.
+	 *
+	 * @param <T> type of the result
+	 */
+	public interface Precomputation<T> {
+		/**
+		 * @param sequence to compute the result for
+		 * @return the result, which must not be modified afterwards
+		 */
+		T compute(EncodedSequence sequence);
+	}
+
+	/**
+	 * @param sequence to be encoded
+	 */
+	public EncodedSequence(CharSequence sequence) {
+		length = sequence.length();
+		long[] words = new long[(length + 31) >>> 5];
+		boolean encodable = true;
+		for (int i = 0; i < length && encodable; i++) {
+			int base = Utilities.baseToIndex(sequence.charAt(i));
+			if (base < 0) {
+				encodable = false;
+			} else {
+				words[i >>> 5] |= ((long) base) << ((i & 31) << 1);
+			}
+		}
+		packed = encodable ? words : null;
+		raw = encodable ? null : sequence.toString();
+	}
+
+	private EncodedSequence(long[] packed, String raw, int length, EncodedSequence reverseComplement) {
+		this.packed = packed;
+		this.raw = raw;
+		this.length = length;
+		this.reverseComplement = reverseComplement;
+	}
+
+	/**
+	 * @return the number of bases (characters) in this sequence
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * @return whether the sequence is stored at 2 bits per base (i.e. only
+	 *         consists of T, C, A and G)
+	 */
+	public boolean isPacked() {
+		return packed != null;
+	}
+
+	/**
+	 * Does not check the bounds of i beyond what the underlying array does
+	 *
+	 * @param i position in the sequence (0-based)
+	 * @return index of the base at that position, cf.
+	 *         {@link Utilities#baseToIndex(char)}
+	 */
+	public int baseAt(int i) {
+		if (packed != null)
+			return (int) (packed[i >>> 5] >>> ((i & 31) << 1)) & 3;
+		return Utilities.baseToIndex(raw.charAt(i));
+	}
+
+	/**
+	 * @param i position in the sequence (0-based)
+	 * @return the character at that position
+	 */
+	public char charAt(int i) {
+		if (packed != null)
+			return BASES.charAt(baseAt(i));
+		return raw.charAt(i);
+	}
+
+	/**
+	 * @param start first position (inclusive)
+	 * @param end   last position (exclusive)
+	 * @return the characters in that range, like {@link String#substring(int, int)}
+	 */
+	public String substring(int start, int end) {
+		if (packed == null)
+			return raw.substring(start, end);
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("Cannot take [" + start + ", " + end + ") of a sequence of length " + length);
+		char[] result = new char[end - start];
+		for (int i = start; i < end; i++)
+			result[i - start] = charAt(i);
+		return new String(result);
+	}
+
+	/**
+	 * @param start first position (inclusive)
+	 * @param end   last position (exclusive)
+	 * @return the bases in that range as a sequence of its own (packed if this one
+	 *         is), e.g. to decode a window of a long contig
+	 */
+	public EncodedSequence subsequence(int start, int end) {
+		return new EncodedSequence(substring(start, end));
+	}
+
+	/**
+	 * The reverse complement of a packed sequence is packed as well; otherwise, any
+	 * character other than T, C, A or G is complemented to N (cf.
+	 * {@link Utilities#reverseComplement(String)}). Position i of the reverse
+	 * complement corresponds to position length() - 1 - i of this sequence.
+	 *
+	 * @return the reverse complement of this sequence (computed only once)
+	 */
+	public EncodedSequence getReverseComplement() {
+		EncodedSequence result = reverseComplement;
+		if (result == null) {
+			if (packed != null) {
+				long[] words = new long[packed.length];
+				for (int i = 0; i < length; i++) {
+					long base = Utilities.complementIndex(baseAt(length - 1 - i));
+					words[i >>> 5] |= base << ((i & 31) << 1);
+				}
+				result = new EncodedSequence(words, null, length, this);
+			} else {
+				result = new EncodedSequence(null, Utilities.reverseComplement(raw), length, this);
+			}
+			reverseComplement = result;
+		}
+		return result;
+	}
+
+	/**
+	 * Computes the result of the given precomputation on this sequence, or returns
+	 * the result of an equal precomputation that was requested before. Safe to be
+	 * called from several threads (each result is computed only once).
+	 *
+	 * @param precomputation which result is demanded
+	 * @return the (shared) result
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T getPrecomputed(Precomputation<T> precomputation) {
+		Object result = precomputed.get(precomputation);
+		if (result == null) {
+			synchronized (precomputed) {
+				result = precomputed.get(precomputation);
+				if (result == null) {
+					result = precomputation.compute(this);
+					precomputed.put(precomputation, result);
+				}
+			}
+		}
+		return (T) result;
+	}
+
+	@Override
+	public String toString() {
+		return substring(0, length);
+	}
+}
@@ -0,0 +1,151 @@
+package de.vetter.pogigwasc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the records of a fasta-file one after the other, without building the
+ * sequence out of its lines: the bases are streamed into a growable buffer
+ * (reused for all records), which is copied once, to its exact length, when the
+ * record is complete. Linear in the length of the file, where appending line by
+ * line to a String is quadratic in the length of a contig.<br>
+ *
+ * Line breaks may be LF or CRLF; whitespace within the sequence is skipped, and
+ * bases are turned to upper case (soft-masked sequence is predicted on like
+ * any other). Lines before the first header may only be empty.
+ */
+public final class FastaReader implements Closeable {
+
+	/** the largest array the JVM reliably allocates */
+	private static final int MAXIMUM_LENGTH = Integer.MAX_VALUE - 8;
+
+	/** A header and its sequence */
+	public static final class Record {
+		private final String header;
+		private final CharSequence sequence;
+
+		private Record(String header, CharSequence sequence) {
+			this.header = header;
+			this.sequence = sequence;
+		}
+
+		/**
+		 * @return the header line without the leading &gt;
+		 */
+		public String getHeader() {
+			return header;
+		}
+
+		/**
+		 * @return the bases in upper case, without line breaks; safe to be read
+		 *         from several threads at once
+		 */
+		public CharSequence getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return the number of bases, known before anything is decoded
+		 */
+		public int length() {
+			return sequence.length();
+		}
+	}
+
+	private final Reader in;
+	private final char[] chunk = new char[1 << 16];
+	private int chunkPosition, chunkLength;
+	/** the bases of the current record */
+	private char[] buffer = new char[1 << 16];
+	/** header of the record to be read next; null at the end of the file */
+	private String nextHeader;
+	private boolean started;
+
+	/**
+	 * @param in the fasta-file; needs no buffering of its own
+	 */
+	public FastaReader(Reader in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return the next record, or null at the end of the file
+	 * @throws IOException if reading fails, there is sequence before the first
+	 *                     header, or a record is too long for an array
+	 */
+	public Record next() throws IOException {
+		if (!started) {
+			started = true;
+			for (int c = read(); c != -1; c = read()) {
+				if (c == '>') {
+					nextHeader = readLine();
+					break;
+				}
+				if (c > ' ')
+					throw new IOException("The fasta-file does not start with a header (>...)");
+			}
+		}
+		if (nextHeader == null)
+			return null;
+
+		String header = nextHeader;
+		nextHeader = null;
+		int length = 0;
+		boolean atLineStart = true;
+		for (int c = read(); c != -1; c = read()) {
+			if (c == '\n') {
+				atLineStart = true;
+			} else if (c == '>' && atLineStart) {
+				nextHeader = readLine();
+				break;
+			} else if (c > ' ') {
+				atLineStart = false;
+				if (length == buffer.length)
+					grow(header);
+				buffer[length++] = (char) (c >= 'a' && c <= 'z' ? c - ('a' - 'A') : c);
+			}
+		}
+		return new Record(header, CharBuffer.wrap(Arrays.copyOf(buffer, length)));
+	}
+
+	private void grow(String header) throws IOException {
+		if (buffer.length == MAXIMUM_LENGTH)
+			throw new IOException("The sequence of " + header + " is longer than " + MAXIMUM_LENGTH + " bases");
+		buffer = Arrays.copyOf(buffer, (int) Math.min(2L * buffer.length, MAXIMUM_LENGTH));
+	}
+
+	/**
+	 * @return the rest of the current line, without CR and LF
+	 */
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (int c = read(); c != -1 && c != '\n'; c = read())
+			line.append((char) c);
+		if (line.length() > 0 && line.charAt(line.length() - 1) == '\r')
+			line.setLength(line.length() - 1);
+		return line.toString();
+	}
+
+	/**
+	 * @return the next character, or -1 at the end of the file
+	 */
+	private int read() throws IOException {
+		if (chunkPosition == chunkLength) {
+			chunkLength = in.read(chunk);
+			chunkPosition = 0;
+			if (chunkLength <= 0) {
+				chunkLength = 0;
+				return -1;
+			}
+		}
+		return chunk[chunkPosition++];
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+}
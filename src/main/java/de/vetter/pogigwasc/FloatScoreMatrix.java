@@ -0,0 +1,66 @@
+package de.vetter.pogigwasc;
+
+import java.util.Arrays;
+
+/**
+ * The entire matrix of Viterbi-variables in half the memory: every column
+ * keeps a double (its <i>base</i>: the best value of the previous column, as
+ * fixed by {@link #startColumn(int)}, or else the first finite value set in
+ * it), and each cell only its difference to that base, as a float
+ * (position-major, as {@link PositionMajorScoreMatrix}). The Viterbi-variables of a column are
+ * close to each other, while they all grow in magnitude along the sequence, so
+ * this keeps the relative error at about 2^-24 of the spread of a column
+ * instead of the magnitude of the values (which would be several hundredths
+ * of a nat after a few hundred thousand bases).<br>
+ *
+ * Rounding may merge candidates that differ by less than that, or split exact
+ * ties, so a parse may be returned that is less likely than the best one by
+ * (roughly) that error times the number of its steps.
+ */
+final class FloatScoreMatrix implements ScoreMatrix {
+
+	private final int stateCount;
+	private final float[] offsets;
+	/** per column, NaN until the column is started or a finite value is set */
+	private final double[] bases;
+
+	/**
+	 * @param stateCount number of states
+	 * @param columns    number of positions (sequence length + 1)
+	 * @throws IllegalArgumentException if there are too many cells for one array
+	 */
+	FloatScoreMatrix(int stateCount, int columns) {
+		this.stateCount = stateCount;
+		offsets = new float[PositionMajorScoreMatrix.cells(stateCount, columns)];
+		bases = new double[columns];
+		Arrays.fill(bases, Double.NaN);
+	}
+
+	@Override
+	public double get(int q, int l) {
+		float offset = offsets[l * stateCount + q];
+		return offset == Float.NEGATIVE_INFINITY ? Double.NEGATIVE_INFINITY : bases[l] + offset;
+	}
+
+	@Override
+	public void set(int q, int l, double value) {
+		if (value == Double.NEGATIVE_INFINITY) {
+			offsets[l * stateCount + q] = Float.NEGATIVE_INFINITY;
+			return;
+		}
+		if (Double.isNaN(bases[l]))
+			bases[l] = value;
+		offsets[l * stateCount + q] = (float) (value - bases[l]);
+	}
+
+	@Override
+	public void startColumn(int l) {
+		// fixed before the column is computed, so that cells set concurrently share it
+		if (l == 0 || !Double.isNaN(bases[l]))
+			return;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int q = 0; q < stateCount; q++)
+			best = Math.max(best, get(q, l - 1));
+		bases[l] = best > Double.NEGATIVE_INFINITY ? best : bases[l - 1];
+	}
+}
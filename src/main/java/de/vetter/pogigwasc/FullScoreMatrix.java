@@ -0,0 +1,34 @@
+package de.vetter.pogigwasc;
+
+/**
+ * The entire matrix of Viterbi-variables, as one row per state
+ */
+public final class FullScoreMatrix implements ScoreMatrix {
+
+	private final double[][] values;
+
+	/**
+	 * @param stateCount number of states
+	 * @param columns    number of positions (sequence length + 1)
+	 */
+	public FullScoreMatrix(int stateCount, int columns) {
+		this(new double[stateCount][columns]);
+	}
+
+	/**
+	 * @param values the matrix to wrap ([state][position]); not copied
+	 */
+	public FullScoreMatrix(double[][] values) {
+		this.values = values;
+	}
+
+	@Override
+	public double get(int q, int l) {
+		return values[q][l];
+	}
+
+	@Override
+	public void set(int q, int l, double value) {
+		values[q][l] = value;
+	}
+}
@@ -17,7 +17,8 @@ import de.vetter.pogigwasc.states.TerminalState;
  * {@link #setTransitionProbability(int, int, double)}, and potentially
  * normalise the matrix via {@link #normaliseExitProbabilities(int)}. Finally,
  * you might want to check the validity of the matrix via
- * {@link #checkTransitions()}
+ * {@link #checkTransitions()}. For decoding, the model is frozen into a
+ * {@link CompiledGHMM} via {@link #compile()}
  * 
  * @author David Emanuel Vetter
  */
@@ -136,6 +137,19 @@ public class GHMM {
 		}
 	}
 	
+	/**
+	 * Freezes the current states and transitions into an immutable
+	 * {@link CompiledGHMM}, which only keeps the finite transitions and the states
+	 * that can actually be part of a parse
+	 * 
+	 * @return the compiled model, which can be shared by several decoders
+	 * @throws IllegalArgumentException if the transition matrix is not set or
+	 *                                  not valid
+	 */
+	public CompiledGHMM compile() {
+		return new CompiledGHMM(this);
+	}
+	
 	/**
 	 * Does NOT check whether the matrix is valid, nor whether it is set. Assert that before calling this method!
 	 * 
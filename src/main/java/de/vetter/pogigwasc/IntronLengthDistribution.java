@@ -0,0 +1,178 @@
+package de.vetter.pogigwasc;
+
+import java.util.Map;
+
+/**
+ * Distribution of the lengths of introns (including GT and AG, and all the rest
+ * of SAS and SDS) between a minimum and maximum length, as chosen in the
+ * parameter file (cf. {@link ModelParameters}): it is tabulated once when the
+ * parameters are loaded, in time linear in the number of lengths, so that
+ * {@link ModelParameters#getLogProbabilityIntronLength(int)} is a lookup.
+ * <ul>
+ * <li>{@link #truncatedPoisson(double)}: the default, a Poisson-distribution
+ * shifted to the minimum, with the probability of all lengths outside the range
+ * spread evenly over it</li>
+ * <li>{@link #histogram(Map, double)}: the empirical distribution of observed
+ * lengths</li>
+ * <li>{@link #withGeometricTail(IntronLengthDistribution, int, double)}: either
+ * of them up to some length, and a geometric decay beyond, for long introns
+ * that are too rare to be counted or fitted</li>
+ * </ul>
+ */
+public abstract class IntronLengthDistribution {
+
+	/**
+	 * @param minimum shortest intron length
+	 * @param maximum longest intron length (at least the minimum)
+	 * @return the log-probabilities of all lengths from minimum to maximum,
+	 *         indexed by length - minimum (they sum up to 1)
+	 * @throws IllegalArgumentException if the distribution does not fit the
+	 *                                  range
+	 */
+	public abstract double[] tabulate(int minimum, int maximum);
+
+	/**
+	 * @param mean the mean intron length
+	 */
+	public static IntronLengthDistribution truncatedPoisson(double mean) {
+		return new TruncatedPoisson(mean);
+	}
+
+	/**
+	 * @param counts      how often each length was observed; lengths that are
+	 *                    not listed were not observed
+	 * @param pseudocount added to the count of every length in the range (0 to
+	 *                    forbid the lengths not observed)
+	 */
+	public static IntronLengthDistribution histogram(Map<Integer, Double> counts, double pseudocount) {
+		return new Histogram(counts, pseudocount);
+	}
+
+	/**
+	 * @param body      the distribution up to tailStart
+	 * @param tailStart the longest length taken from the body; the probability
+	 *                  of all longer lengths under the body is spread over them
+	 *                  geometrically instead
+	 * @param tailMean  the mean of the excess length beyond tailStart (at least
+	 *                  1), disregarding the maximum
+	 */
+	public static IntronLengthDistribution withGeometricTail(IntronLengthDistribution body, int tailStart,
+			double tailMean) {
+		return new GeometricTail(body, tailStart, tailMean);
+	}
+
+	private static final class TruncatedPoisson extends IntronLengthDistribution {
+		private final double mean;
+
+		private TruncatedPoisson(double mean) {
+			this.mean = mean;
+		}
+
+		@Override
+		public double[] tabulate(int minimum, int maximum) {
+			if (!(minimum <= mean && mean <= maximum)) {
+				throw new IllegalArgumentException("intron min, mean and max length do not obey min <= mean <= max");
+			}
+			// to get poisson with smaller variance: shift min to 0 (truncating anyways)
+			double lambda = mean - minimum;
+			double[] logFactorials = Utilities.logFactorials(maximum - minimum);
+
+			// The "normaliser" (an additive constant): since a hard minimum and maximum
+			// are enforced, take the probability of picking a value outside the allowed
+			// range, and add it uniformly to all allowed values
+			double sumOverValid = 0;
+			for (int l = 0; l <= maximum - minimum; l++) {
+				sumOverValid += Math.exp(l * Math.log(lambda) - logFactorials[l]);
+			}
+			double normaliser = Math.log(sumOverValid) - lambda;
+			normaliser = 1 - Math.exp(normaliser);
+			normaliser = normaliser / (maximum - minimum + 1);
+
+			double[] result = new double[maximum - minimum + 1];
+			for (int k = 0; k < result.length; k++) {
+				double poisson = k * Math.log(lambda) - lambda;
+				poisson -= logFactorials[k];
+				result[k] = Math.log(Math.exp(poisson) + normaliser);
+			}
+			return result;
+		}
+	}
+
+	private static final class Histogram extends IntronLengthDistribution {
+		private final Map<Integer, Double> counts;
+		private final double pseudocount;
+
+		private Histogram(Map<Integer, Double> counts, double pseudocount) {
+			if (pseudocount < 0)
+				throw new IllegalArgumentException("The pseudocount of intron lengths must not be negative");
+			for (Map.Entry<Integer, Double> entry : counts.entrySet()) {
+				if (!(entry.getValue() >= 0))
+					throw new IllegalArgumentException(
+							"The count of intron length " + entry.getKey() + " is not a non-negative number");
+			}
+			this.counts = counts;
+			this.pseudocount = pseudocount;
+		}
+
+		@Override
+		public double[] tabulate(int minimum, int maximum) {
+			double[] result = new double[maximum - minimum + 1];
+			for (Map.Entry<Integer, Double> entry : counts.entrySet()) {
+				if (entry.getKey() < minimum || maximum < entry.getKey())
+					throw new IllegalArgumentException("The intron length " + entry.getKey()
+							+ " of the histogram is not within [" + minimum + ", " + maximum + "]");
+				result[entry.getKey() - minimum] = entry.getValue();
+			}
+			double total = 0;
+			for (int k = 0; k < result.length; k++) {
+				result[k] += pseudocount;
+				total += result[k];
+			}
+			if (!(total > 0))
+				throw new IllegalArgumentException("The histogram of intron lengths is empty");
+			for (int k = 0; k < result.length; k++)
+				result[k] = Math.log(result[k] / total);
+			return result;
+		}
+	}
+
+	private static final class GeometricTail extends IntronLengthDistribution {
+		private final IntronLengthDistribution body;
+		private final int tailStart;
+		private final double tailMean;
+
+		private GeometricTail(IntronLengthDistribution body, int tailStart, double tailMean) {
+			if (!(tailMean >= 1))
+				throw new IllegalArgumentException("The mean length of the geometric tail has to be at least 1");
+			this.body = body;
+			this.tailStart = tailStart;
+			this.tailMean = tailMean;
+		}
+
+		@Override
+		public double[] tabulate(int minimum, int maximum) {
+			if (tailStart < minimum)
+				throw new IllegalArgumentException(
+						"The geometric tail of intron lengths starts below the minimum length " + minimum);
+			double[] result = body.tabulate(minimum, maximum);
+			if (tailStart >= maximum)
+				return result;
+
+			double tailMass = 0;
+			for (int k = tailStart + 1 - minimum; k < result.length; k++)
+				tailMass += Math.exp(result[k]);
+			// excess j = 1, 2, ... has weight q^(j-1), with mean 1/(1-q)
+			double logContinuation = Math.log(1 - 1 / tailMean);
+			double logWeight = 0, weights = 0;
+			for (int k = tailStart + 1 - minimum; k < result.length; k++) {
+				result[k] = logWeight;
+				weights += Math.exp(logWeight);
+				logWeight += logContinuation;
+			}
+			double logScale = Math.log(tailMass) - Math.log(weights);
+			for (int k = tailStart + 1 - minimum; k < result.length; k++)
+				result[k] += logScale;
+			return result;
+		}
+	}
+}
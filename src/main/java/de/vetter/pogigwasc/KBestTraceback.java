@@ -0,0 +1,224 @@
+package de.vetter.pogigwasc;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Enumerates the parses of a sequence by descending log-likelihood, from the
+ * Viterbi-variables of the forward pass, using the recursive enumeration
+ * algorithm of Jiménez and Marzal: every node (q, l) keeps the paths to it
+ * found so far (the j-th best path is (u, i): the i-th best path of the
+ * predecessor u, followed by one step), and a heap of candidates for its next
+ * path. The best path of each node is read off the matrix; its next path is
+ * only computed when it is needed, by asking the predecessor of its last path
+ * for the one after that (and so on, towards the start of the sequence).<br>
+ *
+ * Only nodes on the returned parses (and their direct predecessors) are ever
+ * touched: finding the k best parses takes at most k paths per node, and
+ * enumerating the predecessors of each node on them once, i.e. time and memory
+ * grow linearly with k (times the number of steps of a parse). The
+ * recursion runs on an explicit stack, as it can go back over the whole
+ * sequence.<br>
+ *
+ * Scores are summed as in {@link Viterbi}, ((V + transition) + emission), so
+ * that the best path of every node scores exactly its Viterbi-variable.
+ */
+class KBestTraceback {
+
+	private final CompiledGHMM model;
+	private final EncodedSequence sequence;
+	private final ScoreMatrix viterbiVariables;
+
+	/** nodes by l * stateCount + q; the start (0, 0) is created right away */
+	private final Map<Long, Node> nodes = new HashMap<Long, Node>();
+	private final Node start;
+	/** virtual node after the end of the sequence, whose predecessors are the states that enter the terminal one */
+	private final Node end;
+	/** breaks ties between candidates of the same score, in the order of their creation */
+	private long candidates = 0;
+
+	private static final class Node {
+		private final int q, l;
+		/** null until the first path is requested */
+		private PriorityQueue<Candidate> heap;
+		private final List<Candidate> paths = new ArrayList<Candidate>(1);
+		private boolean exhausted;
+
+		private Node(int q, int l) {
+			this.q = q;
+			this.l = l;
+		}
+	}
+
+	/**
+	 * A path to a node: the predecessor's path number predecessorPath, followed
+	 * by one step
+	 */
+	private static final class Candidate {
+		private final double score;
+		private final Node predecessor;
+		private final int predecessorPath;
+		private final double logTransition, logEmission;
+		private final long order;
+		/** whether the path after the predecessor's one was offered to the node yet */
+		private boolean continued;
+
+		private Candidate(double score, Node predecessor, int predecessorPath, double logTransition,
+				double logEmission, long order) {
+			this.score = score;
+			this.predecessor = predecessor;
+			this.predecessorPath = predecessorPath;
+			this.logTransition = logTransition;
+			this.logEmission = logEmission;
+			this.order = order;
+		}
+	}
+
+	/**
+	 * @param viterbiVariables computed exactly (without beam) on the sequence;
+	 *                         read at arbitrary positions
+	 */
+	KBestTraceback(CompiledGHMM model, EncodedSequence sequence, ScoreMatrix viterbiVariables) {
+		this.model = model;
+		this.sequence = sequence;
+		this.viterbiVariables = viterbiVariables;
+		start = new Node(0, 0);
+		start.paths.add(new Candidate(0, null, 0, 0, 0, candidates++));
+		start.exhausted = true;
+		nodes.put(0L, start);
+		end = new Node(1, sequence.length());
+	}
+
+	/**
+	 * @return the next best parse (with its log-likelihood set), or null if there
+	 *         are no more
+	 */
+	Parse next() {
+		int k = end.paths.size();
+		ensurePath(end, k);
+		if (end.paths.size() <= k)
+			return null;
+
+		// walk back to the start, collecting the steps from the last to the first
+		List<Pair<Integer, Integer>> steps = new ArrayList<Pair<Integer, Integer>>();
+		Candidate path = end.paths.get(k);
+		while (path.predecessor != start) {
+			Node node = path.predecessor;
+			ensurePath(node, path.predecessorPath);
+			Candidate previous = node.paths.get(path.predecessorPath);
+			steps.add(new Pair<Integer, Integer>(node.q, node.l - previous.predecessor.l));
+			path = previous;
+		}
+		Collections.reverse(steps);
+
+		Parse parse = new Parse();
+		for (Pair<Integer, Integer> step : steps)
+			parse.add(model.getState(step.getFirst()), step.getSecond());
+		parse.setLogLikelihood(end.paths.get(k).score);
+		return parse;
+	}
+
+	/**
+	 * Computes paths of the given node until there are more than k (or no more
+	 * at all)
+	 */
+	private void ensurePath(Node target, int k) {
+		if (target.paths.size() > k || target.exhausted)
+			return;
+		Deque<Node> nodeStack = new ArrayDeque<Node>();
+		Deque<Integer> pathStack = new ArrayDeque<Integer>();
+		nodeStack.push(target);
+		pathStack.push(k);
+		while (!nodeStack.isEmpty()) {
+			Node node = nodeStack.peek();
+			int wanted = pathStack.peek();
+			if (node.paths.size() > wanted || node.exhausted) {
+				nodeStack.pop();
+				pathStack.pop();
+				continue;
+			}
+			if (node.heap == null) {
+				initialise(node);
+				takeBest(node);
+				continue;
+			}
+			// the next path branches off the last one somewhere before the node:
+			// offer the predecessor's path after the one the last path used
+			Candidate last = node.paths.get(node.paths.size() - 1);
+			if (!last.continued) {
+				Node predecessor = last.predecessor;
+				int following = last.predecessorPath + 1;
+				if (predecessor.paths.size() <= following && !predecessor.exhausted) {
+					nodeStack.push(predecessor);
+					pathStack.push(following);
+					continue;
+				}
+				if (predecessor.paths.size() > following) {
+					node.heap.add(new Candidate(
+							(predecessor.paths.get(following).score + last.logTransition) + last.logEmission,
+							predecessor, following, last.logTransition, last.logEmission, candidates++));
+				}
+				last.continued = true;
+			}
+			takeBest(node);
+		}
+	}
+
+	private void takeBest(Node node) {
+		Candidate best = node.heap.poll();
+		if (best == null) {
+			node.exhausted = true;
+		} else {
+			node.paths.add(best);
+		}
+	}
+
+	/**
+	 * Offers the best path of every predecessor of the node, whose score is read
+	 * off the Viterbi-variables
+	 */
+	private void initialise(Node node) {
+		node.heap = new PriorityQueue<Candidate>((a, b) -> a.score != b.score ? Double.compare(b.score, a.score)
+				: Long.compare(a.order, b.order));
+		if (node == end) {
+			for (int q = 2; q < model.getNumberOfStates(); q++) {
+				double transition = model.getLogTransitionToTerminal(q);
+				double score = viterbiVariables.get(q, node.l) + transition;
+				if (score > Double.NEGATIVE_INFINITY)
+					node.heap.add(new Candidate(score, getNode(q, node.l), 0, transition, 0, candidates++));
+			}
+			return;
+		}
+		new ViterbiSeed(model, sequence, node.q, node.l, null).forEachPredecessor(viterbiVariables,
+				(qPrime, lPrime, logTransition, logEmission) -> {
+					double previous = qPrime == 0 ? 0 : viterbiVariables.get(qPrime, lPrime);
+					double score = (previous + logTransition) + logEmission;
+					if (score > Double.NEGATIVE_INFINITY)
+						node.heap.add(new Candidate(score, getNode(qPrime, lPrime), 0, logTransition, logEmission,
+								candidates++));
+				});
+	}
+
+	private Node getNode(int q, int l) {
+		long key = (long) l * model.getNumberOfStates() + q;
+		Node node = nodes.get(key);
+		if (node == null) {
+			node = new Node(q, l);
+			nodes.put(key, node);
+		}
+		return node;
+	}
+
+	/**
+	 * @return the number of nodes touched so far (including the start)
+	 */
+	int getNumberOfNodes() {
+		return nodes.size();
+	}
+}
@@ -1,5 +1,12 @@
 package de.vetter.pogigwasc;
 
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import de.vetter.pogigwasc.states.CodingState;
 import de.vetter.pogigwasc.states.HMMState;
 import de.vetter.pogigwasc.states.InterruptedCodonState;
@@ -150,8 +157,21 @@ public class LoxodesMagnusGHMM extends GHMM {
 	 * @return The GFF-representation of that parse, ending in a newline
 	 */
 	public static String parseToGFF(String header, Parse parse, ModelParameters parameters) {
+		return parseToGFF(header, parse, parameters, 0);
+	}
+	
+	/**
+	 * Translates a segment of a parse into GFF-format, cf.
+	 * {@link #parseToGFF(String, Parse, ModelParameters)}: the segment has to
+	 * start and end between two noncoding emissions (or at either end of the
+	 * contig), as those passed on by {@link OnlineViterbi}
+	 * 
+	 * @param offset the position on the contig where the segment starts
+	 *               (0-based)
+	 */
+	public static String parseToGFF(String header, Parse parse, ModelParameters parameters, int offset) {
 		StringBuffer result = new StringBuffer();
-		int currentPos = 1;
+		int currentPos = offset + 1;
 
 		GFFFeature currentFeature = null;
 		int startOfCurrentFeature = -1;
@@ -240,4 +260,56 @@ public class LoxodesMagnusGHMM extends GHMM {
 		return result.toString();
 	}
 
+	
+	/**
+	 * Translates several (equally likely) parses of the same contig into
+	 * GFF-format at once: features that all parses agree on are written once, as
+	 * by {@link #parseToGFF(String, Parse, ModelParameters)}; every other
+	 * feature is written once as well, with the attribute parses=i,j,... listing
+	 * the (1-based) parses it belongs to. Features are ordered by their start.
+	 * 
+	 * @param header the contig-name on which prediction was performed
+	 * @param parses parses on that contig
+	 * @return The GFF-representation of the parses, ending in a newline (unless
+	 *         empty)
+	 */
+	public static String parsesToGFF(String header, List<Parse> parses, ModelParameters parameters) {
+		return parsesToGFF(header, parses, parameters, 0);
+	}
+
+	/**
+	 * @see #parsesToGFF(String, List, ModelParameters)
+	 * @param offset the position on the contig where the parses start
+	 *               (0-based), e.g. that of a segment of a scaffold
+	 */
+	public static String parsesToGFF(String header, List<Parse> parses, ModelParameters parameters, int offset) {
+		if (parses.size() == 1)
+			return parseToGFF(header, parses.get(0), parameters, offset);
+
+		// each distinct line, in the order of first occurrence, with the parses it occurs in
+		Map<String, BitSet> occurrences = new LinkedHashMap<String, BitSet>();
+		for (int p = 0; p < parses.size(); p++) {
+			for (String line : parseToGFF(header, parses.get(p), parameters, offset).split(System.lineSeparator())) {
+				if (!line.isEmpty())
+					occurrences.computeIfAbsent(line, key -> new BitSet()).set(p);
+			}
+		}
+		List<String> lines = new ArrayList<String>(occurrences.keySet());
+		lines.sort(Comparator.comparingLong(line -> Long.parseLong(line.split("\t")[3])));
+
+		StringBuffer result = new StringBuffer();
+		for (String line : lines) {
+			BitSet in = occurrences.get(line);
+			if (in.cardinality() == parses.size()) {
+				result.append(line);
+			} else {
+				StringBuffer members = new StringBuffer();
+				for (int p = in.nextSetBit(0); p >= 0; p = in.nextSetBit(p + 1))
+					members.append(members.length() == 0 ? "" : ",").append(p + 1);
+				result.append(line.substring(0, line.lastIndexOf('\t') + 1) + "parses=" + members);
+			}
+			result.append(System.lineSeparator());
+		}
+		return result.toString();
+	}
 }
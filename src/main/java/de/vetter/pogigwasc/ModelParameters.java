@@ -1,9 +1,13 @@
 package de.vetter.pogigwasc;
 
+import java.io.DataOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
 
 /**
  * 
@@ -11,10 +15,21 @@ import java.util.Properties;
  * file can be produced/tweaked manually or by some training-program -- which
  * need not be written by me or in java
  * 
+ * The intron lengths follow a truncated Poisson-distribution with
+ * intron_mean_length by default; with "intron_length_distribution: histogram",
+ * they follow the counts given in intron_length_histogram (e.g. {12: 3, 13:
+ * 10}, plus the optional intron_length_histogram_pseudocount for every length)
+ * instead. Either can be given a geometric tail beyond
+ * intron_length_geometric_tail_start, with the mean excess length
+ * intron_length_geometric_tail_mean, cf. {@link IntronLengthDistribution}
+ * 
  * @author David Emanuel Vetter
  *
  */
 public class ModelParameters {
+	/** the bases in the order of their indices, cf. {@link Utilities#baseToIndex(char)} */
+	private static final String BASES = "TCAG";
+	
 	// A list of the parameters of interest here:
 	private double transitionCDS2CDS;
 	private double transitionCDS2StopGivenLeavingCDS;
@@ -24,7 +39,6 @@ public class ModelParameters {
 	private int startregionSize, stopregionSize;
 	
 	private int intronMin, intronMax;
-	private double intronMean, intronTruncatedPoissonNormaliser;
 	
 	private double[] baseProbabilitiesNCS, baseProbabilitiesIntron, baseProbabilitiesStartregion;
 	
@@ -34,6 +48,27 @@ public class ModelParameters {
 	/** Contains the PROBABILITIES (not log) of some specific codons (could, but shouldn't, be all codons) */
 	private HashMap<String, Double> stopRegionExplicitCodons;
 	
+	/**
+	 * Maximum number of bases upstream of the start-ATG for which all k-mers are
+	 * tabulated (4^k entries)
+	 */
+	private static final int MAX_TABULATED_START_REGION_UPSTREAM = 10;
+	
+	// The same parameters in log, computed once after loading (cf. compileLogTables), so the states never take a logarithm
+	private double[] logBaseProbabilitiesNCS, logBaseProbabilitiesIntron, logBaseProbabilitiesStartregion;
+	
+	/**	(pos, base) */
+	private double[][] logBaseMarginalsCDS, logBaseProbabilitiesSDS, logBaseProbabilitiesSAS;
+	
+	/** indexed by {@link #codonIndex(int, int, int)} */
+	private double[] logCodonProbabilitiesCDS, logCodonProbabilitiesStopRegion;
+	
+	/** indexed by {@link #kmerIndex(int[])}; null if the start region is too long to be tabulated */
+	private double[] logKmerProbabilitiesStartRegionUpstream;
+	
+	/** indexed by length - intronMin */
+	private double[] logProbabilitiesIntronLength;
+	
 	/**
 	 * 
 	 * @param parameterFileReader a reader of a .properties-file containing all required parameters
@@ -47,6 +82,7 @@ public class ModelParameters {
 		// These two are used to give somewhat informative problem-reports to the user (see the catch-response below)
 		String currentParameter = "";
 		String problemDetails = "";
+		IntronLengthDistribution intronLengthDistribution;
 		
 		try {
 
@@ -70,9 +106,31 @@ public class ModelParameters {
 			intronMin = Integer.parseInt(properties.getProperty(currentParameter));
 			currentParameter = "intron_maximum_length";
 			intronMax = Integer.parseInt(properties.getProperty(currentParameter));
-			currentParameter = "intron_mean_length";
-			intronMean = Double.parseDouble(properties.getProperty(currentParameter));
-			computePoissonNormaliser();
+			currentParameter = "intron_length_distribution";
+			String distribution = properties.getProperty(currentParameter, "poisson").trim();
+			if (distribution.equals("poisson")) {
+				currentParameter = "intron_mean_length";
+				intronLengthDistribution = IntronLengthDistribution
+						.truncatedPoisson(Double.parseDouble(properties.getProperty(currentParameter)));
+			} else if (distribution.equals("histogram")) {
+				currentParameter = "intron_length_histogram_pseudocount";
+				double pseudocount = Double.parseDouble(properties.getProperty(currentParameter, "0"));
+				currentParameter = "intron_length_histogram";
+				problemDetails = " or malformatted (has to be a list of pairs length:count)";
+				intronLengthDistribution = IntronLengthDistribution
+						.histogram(parseLengthCounts(properties.getProperty(currentParameter)), pseudocount);
+				problemDetails = "";
+			} else {
+				problemDetails = " or unknown (poisson or histogram), but was " + distribution;
+				throw new IOException(); // this will be caught by the catch below.
+			}
+			currentParameter = "intron_length_geometric_tail_start";
+			if (properties.containsKey(currentParameter)) {
+				int tailStart = Integer.parseInt(properties.getProperty(currentParameter).trim());
+				currentParameter = "intron_length_geometric_tail_mean";
+				intronLengthDistribution = IntronLengthDistribution.withGeometricTail(intronLengthDistribution,
+						tailStart, Double.parseDouble(properties.getProperty(currentParameter)));
+			}
 
 			
 			currentParameter = "base_frequencies_NCS";
@@ -118,6 +176,87 @@ public class ModelParameters {
 		}
 		
 		checkProbabilities();
+		compileLogTables(intronLengthDistribution);
+	}
+	
+	/**
+	 * Reads the parameters back as written by {@link #writeTo(DataOutputStream)},
+	 * including the log tables, i.e. without checking or computing anything
+	 * 
+	 * @param in positioned at the start of the parameters; positioned after them
+	 *           afterwards
+	 * @see ModelSnapshot
+	 */
+	ModelParameters(ByteBuffer in) {
+		transitionCDS2CDS = in.getDouble();
+		transitionCDS2StopGivenLeavingCDS = in.getDouble();
+		transitionNCS2NCS = in.getDouble();
+		startregionSize = in.getInt();
+		stopregionSize = in.getInt();
+		intronMin = in.getInt();
+		intronMax = in.getInt();
+		
+		baseProbabilitiesNCS = ModelSnapshot.readDoubles(in);
+		baseProbabilitiesIntron = ModelSnapshot.readDoubles(in);
+		baseProbabilitiesStartregion = ModelSnapshot.readDoubles(in);
+		baseMarginalsCDS = ModelSnapshot.readMatrix(in);
+		baseMarginalsStopregion = ModelSnapshot.readMatrix(in);
+		baseProbabilitiesSDS = ModelSnapshot.readMatrix(in);
+		baseProbabilitiesSAS = ModelSnapshot.readMatrix(in);
+		stopRegionExplicitCodons = new HashMap<String, Double>();
+		int explicitCodons = in.getInt();
+		for (int i = 0; i < explicitCodons; i++)
+			stopRegionExplicitCodons.put(ModelSnapshot.readString(in), in.getDouble());
+		
+		logBaseProbabilitiesNCS = ModelSnapshot.readDoubles(in);
+		logBaseProbabilitiesIntron = ModelSnapshot.readDoubles(in);
+		logBaseProbabilitiesStartregion = ModelSnapshot.readDoubles(in);
+		logBaseMarginalsCDS = ModelSnapshot.readMatrix(in);
+		logBaseProbabilitiesSDS = ModelSnapshot.readMatrix(in);
+		logBaseProbabilitiesSAS = ModelSnapshot.readMatrix(in);
+		logCodonProbabilitiesCDS = ModelSnapshot.readDoubles(in);
+		logCodonProbabilitiesStopRegion = ModelSnapshot.readDoubles(in);
+		logKmerProbabilitiesStartRegionUpstream = ModelSnapshot.readOptionalDoubles(in);
+		logProbabilitiesIntronLength = ModelSnapshot.readOptionalDoubles(in);
+	}
+	
+	/**
+	 * Writes all parameters, and the log tables computed from them, in binary
+	 * 
+	 * @see ModelSnapshot
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeDouble(transitionCDS2CDS);
+		out.writeDouble(transitionCDS2StopGivenLeavingCDS);
+		out.writeDouble(transitionNCS2NCS);
+		out.writeInt(startregionSize);
+		out.writeInt(stopregionSize);
+		out.writeInt(intronMin);
+		out.writeInt(intronMax);
+		
+		ModelSnapshot.writeDoubles(out, baseProbabilitiesNCS);
+		ModelSnapshot.writeDoubles(out, baseProbabilitiesIntron);
+		ModelSnapshot.writeDoubles(out, baseProbabilitiesStartregion);
+		ModelSnapshot.writeMatrix(out, baseMarginalsCDS);
+		ModelSnapshot.writeMatrix(out, baseMarginalsStopregion);
+		ModelSnapshot.writeMatrix(out, baseProbabilitiesSDS);
+		ModelSnapshot.writeMatrix(out, baseProbabilitiesSAS);
+		out.writeInt(stopRegionExplicitCodons.size());
+		for (Map.Entry<String, Double> entry : stopRegionExplicitCodons.entrySet()) {
+			ModelSnapshot.writeString(out, entry.getKey());
+			out.writeDouble(entry.getValue());
+		}
+		
+		ModelSnapshot.writeDoubles(out, logBaseProbabilitiesNCS);
+		ModelSnapshot.writeDoubles(out, logBaseProbabilitiesIntron);
+		ModelSnapshot.writeDoubles(out, logBaseProbabilitiesStartregion);
+		ModelSnapshot.writeMatrix(out, logBaseMarginalsCDS);
+		ModelSnapshot.writeMatrix(out, logBaseProbabilitiesSDS);
+		ModelSnapshot.writeMatrix(out, logBaseProbabilitiesSAS);
+		ModelSnapshot.writeDoubles(out, logCodonProbabilitiesCDS);
+		ModelSnapshot.writeDoubles(out, logCodonProbabilitiesStopRegion);
+		ModelSnapshot.writeDoubles(out, logKmerProbabilitiesStartRegionUpstream);
+		ModelSnapshot.writeDoubles(out, logProbabilitiesIntronLength);
 	}
 	
 	/**
@@ -147,6 +286,29 @@ public class ModelParameters {
 		return result;
 	}
 	
+	/**
+	 * Decodes a histogram of lengths, given as a comma-separated list of pairs
+	 * length:count, framed by curly brackets
+	 * 
+	 * @param encoded e.g. "{12: 3, 13: 10.5}"
+	 * @return the count of each length
+	 * @throws IllegalArgumentException if the string is malformatted
+	 */
+	static Map<Integer, Double> parseLengthCounts(String encoded) throws IllegalArgumentException {
+		String cleaned = encoded.replaceAll("\\s+", "");
+		if (!cleaned.startsWith("{") || !cleaned.endsWith("}"))
+			throw new IllegalArgumentException("The histogram " + encoded + " is not framed by {}");
+		Map<Integer, Double> result = new TreeMap<Integer, Double>();
+		for (String entry : cleaned.substring(1, cleaned.length() - 1).split(",")) {
+			String[] pair = entry.split(":");
+			if (pair.length != 2)
+				throw new IllegalArgumentException("'" + entry + "' cannot be analysed as a length:count-pair");
+			if (result.put(Integer.parseInt(pair[0]), Double.parseDouble(pair[1])) != null)
+				throw new IllegalArgumentException("The length " + pair[0] + " is listed twice");
+		}
+		return result;
+	}
+	
 	/**
 	 * Helper method to parse a String into a double-array. The string has to be
 	 * correctly formatted, by containing exactly one comma-separated list of the
@@ -191,10 +353,6 @@ public class ModelParameters {
 			throw new IllegalArgumentException("transitions leaving CDS do not sum up to 1");
 		}
 		
-		if(!(intronMin <= intronMean && intronMean <= intronMax)) {
-			throw new IllegalArgumentException("intron min, mean and max length do not obey min <= mean <= max");
-		}
-		
 		Utilities.assertNormalisation(baseProbabilitiesNCS, tolerance, 
 				"The base-frequencies for NCS are not normalised, they sum up to ");
 		
@@ -242,6 +400,99 @@ public class ModelParameters {
 	}
 	
 	
+	/**
+	 * Takes the logarithms of all emission-parameters once, and tabulates the
+	 * log-probabilities of whole codons, of the k-mers upstream of the start-ATG
+	 * and of all intron lengths. Entries are summed in the same order as the
+	 * states did base by base, so the results are exactly the same.
+	 * 
+	 * @param intronLengthDistribution to tabulate the intron lengths from
+	 * @throws IllegalArgumentException if it does not fit the minimum and maximum
+	 *                                  intron length
+	 */
+	private void compileLogTables(IntronLengthDistribution intronLengthDistribution) {
+		logBaseProbabilitiesNCS = logOf(baseProbabilitiesNCS);
+		logBaseProbabilitiesIntron = logOf(baseProbabilitiesIntron);
+		logBaseProbabilitiesStartregion = logOf(baseProbabilitiesStartregion);
+		
+		logBaseMarginalsCDS = new double[baseMarginalsCDS.length][];
+		for (int row = 0; row < baseMarginalsCDS.length; row++)
+			logBaseMarginalsCDS[row] = logOf(baseMarginalsCDS[row]);
+		logBaseProbabilitiesSDS = new double[baseProbabilitiesSDS.length][];
+		for (int row = 0; row < baseProbabilitiesSDS.length; row++)
+			logBaseProbabilitiesSDS[row] = logOf(baseProbabilitiesSDS[row]);
+		logBaseProbabilitiesSAS = new double[baseProbabilitiesSAS.length][];
+		for (int row = 0; row < baseProbabilitiesSAS.length; row++)
+			logBaseProbabilitiesSAS[row] = logOf(baseProbabilitiesSAS[row]);
+		
+		logCodonProbabilitiesCDS = new double[64];
+		logCodonProbabilitiesStopRegion = new double[64];
+		for (int first = 0; first < 4; first++) {
+			for (int second = 0; second < 4; second++) {
+				for (int third = 0; third < 4; third++) {
+					int codon = codonIndex(first, second, third);
+					double result = 0;
+					result += logBaseMarginalsCDS[0][first];
+					result += logBaseMarginalsCDS[1][second];
+					result += logBaseMarginalsCDS[2][third];
+					logCodonProbabilitiesCDS[codon] = result;
+					logCodonProbabilitiesStopRegion[codon] = getLogCodonProbabilityStopRegion(
+							new String(new char[] { BASES.charAt(first), BASES.charAt(second), BASES.charAt(third) }));
+				}
+			}
+		}
+		
+		int upstream = startregionSize - 3;
+		if (upstream >= 0 && upstream <= MAX_TABULATED_START_REGION_UPSTREAM) {
+			logKmerProbabilitiesStartRegionUpstream = new double[1 << (2 * upstream)];
+			int[] kmer = new int[upstream];
+			for (int index = 0; index < logKmerProbabilitiesStartRegionUpstream.length; index++) {
+				// decode the index (first base is the most significant)
+				for (int i = 0; i < upstream; i++)
+					kmer[i] = (index >>> (2 * (upstream - 1 - i))) & 3;
+				double result = 0;
+				for (int i = 0; i < upstream; i++)
+					result += logBaseProbabilitiesStartregion[kmer[i]];
+				logKmerProbabilitiesStartRegionUpstream[index] = result;
+			}
+		}
+		
+		if (intronMin <= intronMax) {
+			logProbabilitiesIntronLength = intronLengthDistribution.tabulate(intronMin, intronMax);
+		}
+	}
+	
+	private static double[] logOf(double[] probabilities) {
+		double[] result = new double[probabilities.length];
+		for (int i = 0; i < probabilities.length; i++)
+			result[i] = Math.log(probabilities[i]);
+		return result;
+	}
+	
+	/**
+	 * @param first  index of the codon's first base, cf.
+	 *               {@link Utilities#baseToIndex(char)}
+	 * @param second index of the second base
+	 * @param third  index of the third base
+	 * @return index of the codon in 0..63 (negative if any base-index is
+	 *         negative)
+	 */
+	public static int codonIndex(int first, int second, int third) {
+		return (first << 4) | (second << 2) | third;
+	}
+	
+	/**
+	 * @param bases base indices, cf. {@link Utilities#baseToIndex(char)}
+	 * @return index of the k-mer in 0..4^k-1, with the first base being the most
+	 *         significant
+	 */
+	public static int kmerIndex(int[] bases) {
+		int index = 0;
+		for (int base : bases)
+			index = (index << 2) | base;
+		return index;
+	}
+	
 	// All the getters for the states/dependents to call and access the parameter-values
 	
 	/**
@@ -289,49 +540,16 @@ public class ModelParameters {
 		return stopregionSize;
 	}
 	
-	/**
-	 * Computes the "normaliser" (an additive constant) for the truncated poisson:
-	 * Since a hard minimum and maximum are enforced, while the poisson-distribution
-	 * generally allows smaller and larger values, just take the porbability of
-	 * picking a value outside the allowed range, and add it uniformly to all
-	 * allowed values (there are max-min+1 allowed values)
-	 */
-	private void computePoissonNormaliser() {
-		double sumOverValid= 0;
-
-		double lambda = intronMean - intronMin;
-		for(int l = 0; l <= intronMax - intronMin; l++) {
-			sumOverValid += Math.exp(l * Math.log(lambda) - Utilities.logFactorial(l));
-		}
-
-		intronTruncatedPoissonNormaliser = Math.log(sumOverValid) - lambda;
-		intronTruncatedPoissonNormaliser = 1-Math.exp(intronTruncatedPoissonNormaliser);
-		intronTruncatedPoissonNormaliser = intronTruncatedPoissonNormaliser/(intronMax - intronMin + 1);
-		// This value will be ADDED to the probability of seeing any length within min-max.
-	}
-	
 	/**
 	 * @param length the intron's length (including GT and AG, and all the rest of SAS and SDS)
-	 * @return log probability of seeing the given intron length
+	 * @return log probability of seeing the given intron length, cf.
+	 *         {@link IntronLengthDistribution}
 	 */
 	public double getLogProbabilityIntronLength(int length) {
-		// Poisson is truncated!
+		// the distribution is truncated!
 		if(length < intronMin || intronMax < length)
 			return Double.NEGATIVE_INFINITY;
-		
-		// to get poisson with smaller variance: shift min to 0 (truncating anyways)
-		double lambda = intronMean - intronMin;
-		int k = length - intronMin;
-		
-		// This would be the normal poisson-probability
-		double poisson = k * Math.log(lambda) - lambda; 
-		poisson -= Utilities.logFactorial(k);
-		// However: Need/Want to add a little bit of normalisation to make up for normalisation:
-		poisson = Math.exp(poisson) + intronTruncatedPoissonNormaliser;
-		// this is no longer in log, so return to log:
-		poisson = Math.log(poisson);
-		
-		return poisson;
+		return logProbabilitiesIntronLength[length - intronMin];
 	}
 	
 	/**
@@ -347,7 +565,25 @@ public class ModelParameters {
 	 * @return <b>log</b> probability of seeing this base at that position
 	 */
 	public double getLogBaseProbabilityCDS(char base, int positionInCodon) {
-		return Math.log(baseMarginalsCDS[positionInCodon][Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilityCDS(Utilities.baseToIndex(base), positionInCodon);
+	}
+	
+	/**
+	 * @param baseIndex       index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @param positionInCodon 0 (first base), 1, 2 (last base)
+	 * @see #getLogBaseProbabilityCDS(char, int)
+	 */
+	public double getLogBaseProbabilityCDS(int baseIndex, int positionInCodon) {
+		return logBaseMarginalsCDS[positionInCodon][baseIndex];
+	}
+	
+	/**
+	 * @param codon index of the codon, cf. {@link #codonIndex(int, int, int)}
+	 * @return <b>log</b> probability of seeing this codon in a CDS, i.e. the sum of
+	 *         {@link #getLogBaseProbabilityCDS(int, int)} over its bases
+	 */
+	public double getLogCodonProbabilityCDS(int codon) {
+		return logCodonProbabilitiesCDS[codon];
 	}
 	
 	/**
@@ -376,12 +612,39 @@ public class ModelParameters {
 		return result;
 	}
 	
+	/**
+	 * @param first  index of the codon's first base, cf.
+	 *               {@link Utilities#baseToIndex(char)}
+	 * @param second index of the second base
+	 * @param third  index of the third base
+	 * @see #getLogCodonProbabilityStopRegion(String)
+	 */
+	public double getLogCodonProbabilityStopRegion(int first, int second, int third) {
+		return getLogCodonProbabilityStopRegion(codonIndex(first, second, third));
+	}
+	
+	/**
+	 * @param codon index of the codon, cf. {@link #codonIndex(int, int, int)}
+	 * @see #getLogCodonProbabilityStopRegion(String)
+	 */
+	public double getLogCodonProbabilityStopRegion(int codon) {
+		return logCodonProbabilitiesStopRegion[codon];
+	}
+	
 	/**
 	 * @param base any of 'T', 'C', 'A', 'G'
 	 * @return <b>log</b> probability of seeing that base in the NCS
 	 */
 	public double getLogBaseProbabilityNCS(char base) {
-		return Math.log(baseProbabilitiesNCS[Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilityNCS(Utilities.baseToIndex(base));
+	}
+	
+	/**
+	 * @param baseIndex index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @see #getLogBaseProbabilityNCS(char)
+	 */
+	public double getLogBaseProbabilityNCS(int baseIndex) {
+		return logBaseProbabilitiesNCS[baseIndex];
 	}
 	
 	/**
@@ -390,7 +653,15 @@ public class ModelParameters {
 	 *         intron (outside the SAS and SDS)
 	 */
 	public double getLogBaseProbabilityIntron(char base) {
-		return Math.log(baseProbabilitiesIntron[Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilityIntron(Utilities.baseToIndex(base));
+	}
+	
+	/**
+	 * @param baseIndex index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @see #getLogBaseProbabilityIntron(char)
+	 */
+	public double getLogBaseProbabilityIntron(int baseIndex) {
+		return logBaseProbabilitiesIntron[baseIndex];
 	}
 	
 	/**
@@ -402,7 +673,40 @@ public class ModelParameters {
 	 *         the start-AUG
 	 */
 	public double getLogBaseProbabilityStartRegion(char base) {
-		return Math.log(baseProbabilitiesStartregion[Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilityStartRegion(Utilities.baseToIndex(base));
+	}
+	
+	/**
+	 * @param baseIndex index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @see #getLogBaseProbabilityStartRegion(char)
+	 */
+	public double getLogBaseProbabilityStartRegion(int baseIndex) {
+		return logBaseProbabilitiesStartregion[baseIndex];
+	}
+	
+	/**
+	 * @param kmer index of the bases upstream of the start-ATG (i.e. of
+	 *             {@link #getStartRegionSize()} - 3 bases), cf.
+	 *             {@link #kmerIndex(int[])}
+	 * @return <b>log</b> probability of seeing these bases upstream of the
+	 *         start-ATG, i.e. the sum of
+	 *         {@link #getLogBaseProbabilityStartRegion(int)} over them
+	 * @throws UnsupportedOperationException if the start region is too long to be
+	 *                                       tabulated, cf.
+	 *                                       {@link #isStartRegionUpstreamTabulated()}
+	 */
+	public double getLogKmerProbabilityStartRegionUpstream(int kmer) {
+		if (logKmerProbabilitiesStartRegionUpstream == null)
+			throw new UnsupportedOperationException("The start region is too long to be tabulated");
+		return logKmerProbabilitiesStartRegionUpstream[kmer];
+	}
+	
+	/**
+	 * @return whether {@link #getLogKmerProbabilityStartRegionUpstream(int)} may be
+	 *         used
+	 */
+	public boolean isStartRegionUpstreamTabulated() {
+		return logKmerProbabilitiesStartRegionUpstream != null;
 	}
 	
 	/**
@@ -412,7 +716,15 @@ public class ModelParameters {
 	 *         donor-site)
 	 */
 	public double getLogBaseProbabilitySDS(char base, int i) {
-		return Math.log(baseProbabilitiesSDS[i][Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilitySDS(Utilities.baseToIndex(base), i);
+	}
+	
+	/**
+	 * @param baseIndex index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @see #getLogBaseProbabilitySDS(char, int)
+	 */
+	public double getLogBaseProbabilitySDS(int baseIndex, int i) {
+		return logBaseProbabilitiesSDS[i][baseIndex];
 	}
 	
 	/**
@@ -424,7 +736,15 @@ public class ModelParameters {
 	 *         acceptor-size)
 	 */
 	public double getLogBaseProbabilitySAS(char base, int i) {
-		return Math.log(baseProbabilitiesSAS[i][Utilities.baseToIndex(base)]);
+		return getLogBaseProbabilitySAS(Utilities.baseToIndex(base), i);
+	}
+	
+	/**
+	 * @param baseIndex index of the base, cf. {@link Utilities#baseToIndex(char)}
+	 * @see #getLogBaseProbabilitySAS(char, int)
+	 */
+	public double getLogBaseProbabilitySAS(int baseIndex, int i) {
+		return logBaseProbabilitiesSAS[i][baseIndex];
 	}
 	
 	/**
@@ -0,0 +1,259 @@
+package de.vetter.pogigwasc;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary snapshot of a compiled model, for starting up without parsing a
+ * parameter file (cf. the command compile-model of {@link App}): it holds the
+ * {@link ModelParameters} as loaded, including all their log tables (so
+ * nothing is recomputed, and every score is exactly the same), which of the
+ * two Loxodes-models is used, and the states and transitions of its
+ * {@link CompiledGHMM}. Loading maps the file into memory and reads it
+ * straight into the arrays; the states themselves are created anew (they only
+ * refer to the parameters), and have to match the stored ones.<br>
+ *
+ * <b>Format</b> (big-endian, as written by {@link DataOutputStream}): the
+ * magic number, the format version, a byte for intron-less models, the
+ * parameters (cf. {@link ModelParameters#writeTo(DataOutputStream)}), then the
+ * number of compiled states with the original index and name of each, and the
+ * arrays of {@link CompiledGHMM} (predecessor offsets, predecessor states,
+ * their log-transitions, and the log-transitions to the terminal state).
+ * Arrays are stored as their length followed by their entries; for optional
+ * arrays, a length of -1 stands for null. Snapshots of another version are
+ * rejected.
+ */
+public final class ModelSnapshot {
+
+	/** "PGMS" */
+	static final int MAGIC = 0x50474D53;
+	/** has to be increased whenever the format changes */
+	static final int VERSION = 2;
+
+	private final ModelParameters parameters;
+	private final boolean intronless;
+	private final CompiledGHMM model;
+
+	private ModelSnapshot(ModelParameters parameters, boolean intronless, CompiledGHMM model) {
+		this.parameters = parameters;
+		this.intronless = intronless;
+		this.model = model;
+	}
+
+	public ModelParameters getParameters() {
+		return parameters;
+	}
+
+	/**
+	 * @return whether the model is a {@link LoxodesMagnusIntronless} (or else a
+	 *         {@link LoxodesMagnusGHMM})
+	 */
+	public boolean isIntronless() {
+		return intronless;
+	}
+
+	public CompiledGHMM getModel() {
+		return model;
+	}
+
+	/**
+	 * Compiles the Loxodes-model for the given parameters, and writes its
+	 * snapshot
+	 *
+	 * @param parameters as loaded from a parameter file
+	 * @param intronless whether to use {@link LoxodesMagnusIntronless}
+	 * @param file       to be (over-)written
+	 * @throws IOException if writing fails
+	 */
+	public static void write(ModelParameters parameters, boolean intronless, File file) throws IOException {
+		CompiledGHMM model = createModel(parameters, intronless).compile();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeBoolean(intronless);
+			parameters.writeTo(out);
+
+			int stateCount = model.getNumberOfStates();
+			out.writeInt(stateCount);
+			for (int q = 0; q < stateCount; q++) {
+				out.writeInt(model.getOriginalIndex(q));
+				writeString(out, model.getState(q).getName());
+			}
+			int[] offsets = new int[stateCount + 1];
+			for (int q = 0; q < stateCount; q++)
+				offsets[q + 1] = model.getPredecessorEnd(q);
+			int[] predecessors = new int[offsets[stateCount]];
+			double[] logTransitions = new double[offsets[stateCount]];
+			for (int k = 0; k < predecessors.length; k++) {
+				predecessors[k] = model.getPredecessorState(k);
+				logTransitions[k] = model.getPredecessorLogTransition(k);
+			}
+			double[] terminal = new double[stateCount];
+			for (int q = 0; q < stateCount; q++)
+				terminal[q] = model.getLogTransitionToTerminal(q);
+			writeInts(out, offsets);
+			writeInts(out, predecessors);
+			writeDoubles(out, logTransitions);
+			writeDoubles(out, terminal);
+		}
+	}
+
+	/**
+	 * @param file a snapshot, cf. {@link #write(ModelParameters, boolean, File)}
+	 * @return the parameters and compiled model stored in it
+	 * @throws IOException if the file cannot be read, is no snapshot, is of
+	 *                     another version, or does not fit the states of the
+	 *                     model
+	 */
+	public static ModelSnapshot load(File file) throws IOException {
+		ByteBuffer in;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		try {
+			if (in.remaining() < 8 || in.getInt() != MAGIC)
+				throw new IOException(file + " is not a model snapshot");
+			int version = in.getInt();
+			if (version != VERSION) {
+				throw new IOException(file + " is a model snapshot of version " + version + ", but version " + VERSION
+						+ " is needed: compile the model again");
+			}
+			boolean intronless = in.get() != 0;
+			ModelParameters parameters = new ModelParameters(in);
+
+			GHMM ghmm = createModel(parameters, intronless);
+			int stateCount = checkLength(in, in.getInt(), 8);
+			int[] originalIndices = new int[stateCount];
+			for (int q = 0; q < stateCount; q++) {
+				originalIndices[q] = in.getInt();
+				String name = readString(in);
+				if (originalIndices[q] < 0 || originalIndices[q] >= ghmm.getNumberOfStates()
+						|| !ghmm.getState(originalIndices[q]).getName().equals(name))
+					throw new IOException("The states of the snapshot " + file + " do not match the model (" + name + ")");
+			}
+			CompiledGHMM model = new CompiledGHMM(ghmm, originalIndices, readInts(in), readInts(in), readDoubles(in),
+					readDoubles(in));
+			return new ModelSnapshot(parameters, intronless, model);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("The model snapshot " + file + " is damaged", e);
+		}
+	}
+
+	/**
+	 * @return whether the file starts like a snapshot (of any version)
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isSnapshot(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			return file.length() >= 4 && in.readInt() == MAGIC;
+		}
+	}
+
+	private static GHMM createModel(ModelParameters parameters, boolean intronless) {
+		return intronless ? new LoxodesMagnusIntronless(parameters) : new LoxodesMagnusGHMM(parameters);
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeInt(value.length());
+		out.writeChars(value);
+	}
+
+	/**
+	 * @param length      the length read for an array that follows
+	 * @param elementSize the least number of bytes each element takes in the
+	 *                    buffer
+	 * @return the length
+	 * @throws BufferUnderflowException if the length is negative, or there are
+	 *                                  not enough bytes left for that many
+	 *                                  elements (checked before the array is
+	 *                                  allocated, so that a damaged file cannot
+	 *                                  exhaust the memory)
+	 */
+	private static int checkLength(ByteBuffer in, int length, int elementSize) {
+		if (length < 0 || length > in.remaining() / elementSize)
+			throw new BufferUnderflowException();
+		return length;
+	}
+
+	static String readString(ByteBuffer in) {
+		char[] result = new char[checkLength(in, in.getInt(), 2)];
+		for (int i = 0; i < result.length; i++)
+			result[i] = in.getChar();
+		return new String(result);
+	}
+
+	static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		out.writeInt(values.length);
+		for (int value : values)
+			out.writeInt(value);
+	}
+
+	static int[] readInts(ByteBuffer in) {
+		int[] result = new int[checkLength(in, in.getInt(), 4)];
+		in.asIntBuffer().get(result);
+		in.position(in.position() + 4 * result.length);
+		return result;
+	}
+
+	/**
+	 * @param values may be null for optional arrays, cf.
+	 *               {@link #readOptionalDoubles(ByteBuffer)}
+	 */
+	static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+		if (values == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(values.length);
+		for (double value : values)
+			out.writeDouble(value);
+	}
+
+	/**
+	 * @return the array
+	 * @throws BufferUnderflowException if it is null (or does not fit the bytes
+	 *                                  left), cf.
+	 *                                  {@link #checkLength(ByteBuffer, int, int)}
+	 */
+	static double[] readDoubles(ByteBuffer in) {
+		return readDoubles(in, in.getInt());
+	}
+
+	/**
+	 * @return the array, or null
+	 */
+	static double[] readOptionalDoubles(ByteBuffer in) {
+		int length = in.getInt();
+		return length == -1 ? null : readDoubles(in, length);
+	}
+
+	private static double[] readDoubles(ByteBuffer in, int length) {
+		double[] result = new double[checkLength(in, length, 8)];
+		in.asDoubleBuffer().get(result);
+		in.position(in.position() + 8 * length);
+		return result;
+	}
+
+	static void writeMatrix(DataOutputStream out, double[][] rows) throws IOException {
+		out.writeInt(rows.length);
+		for (double[] row : rows)
+			writeDoubles(out, row);
+	}
+
+	static double[][] readMatrix(ByteBuffer in) {
+		// every row takes at least its length
+		double[][] result = new double[checkLength(in, in.getInt(), 4)][];
+		for (int r = 0; r < result.length; r++)
+			result[r] = readDoubles(in);
+		return result;
+	}
+}
@@ -0,0 +1,277 @@
+package de.vetter.pogigwasc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.NoncodingState;
+
+/**
+ * Decodes a sequence online: the columns of Viterbi-variables are computed as
+ * by {@link Viterbi} (keeping only the last ones, as the model's emissions are
+ * bounded), together with a backpointer for every cell. Every so often, all
+ * <i>live</i> cells (those that later cells may still come from) are traced
+ * back until their paths coalesce: the steps up to that point are the same on
+ * every parse that may still become the most likely one, so they are fixed,
+ * handed to the {@link SegmentListener} and their backpointers freed. Memory
+ * thereby grows with the distance over which the parse stays undecided
+ * (usually about a gene) instead of the length of the sequence, and the first
+ * predictions are available long before the end of the sequence is
+ * reached.<br>
+ *
+ * The parse is exactly the one found by tracing back the first argmax of each
+ * cell, in the order of {@link ViterbiSeed#step(ScoreMatrix)}; it is a most
+ * likely parse, and the first one {@link Viterbi#computeParses()} yields unless
+ * there are ties.<br>
+ *
+ * Fixed steps are only passed on up to an <i>anchor</i>, i.e. from one
+ * noncoding emission to another (cf. {@link WindowedViterbi}), so that every
+ * segment is a complete part of the parse that can be translated on its own,
+ * cf. {@link LoxodesMagnusGHMM#parseToGFF(String, Parse, ModelParameters, int)}.
+ */
+public class OnlineViterbi {
+
+	/**
+	 * Receives the parse in consecutive segments
+	 */
+	public interface SegmentListener {
+		/**
+		 * @param segment the next steps of the parse
+		 * @param start   the position in the sequence where the segment starts
+		 * @throws IOException if passing the segment on fails
+		 */
+		void accept(Parse segment, int start) throws IOException;
+	}
+
+	private final CompiledGHMM model;
+	private final EncodedSequence sequence;
+	private int checkInterval = 1000;
+
+	private int numberOfCoalescences = 0;
+	private int maximumUndecidedColumns = 0;
+	private double logLikelihood = Double.NEGATIVE_INFINITY;
+
+	// while decoding: the end of the last cell every live path goes through, and
+	// the steps up to it that were not passed on yet
+	private int fixedPosition;
+	private final List<HMMState> pendingStates = new ArrayList<HMMState>();
+	private final List<Integer> pendingLengths = new ArrayList<Integer>();
+	private int pendingStart;
+
+	/**
+	 * @param model    compiled model; its emissions have to be bounded (cf.
+	 *                 {@link CompiledGHMM#getMaximumEmissionLength()})
+	 * @param sequence the sequence to decode
+	 * @throws IllegalArgumentException if the model allows arbitrarily long
+	 *                                  emissions, or has too many states for
+	 *                                  backpointers
+	 */
+	public OnlineViterbi(CompiledGHMM model, EncodedSequence sequence) {
+		if (model.getMaximumEmissionLength() == Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Cannot decode online: the model allows arbitrarily long emissions");
+		if (model.getNumberOfStates() > Backpointers.MAX_STATES)
+			throw new IllegalArgumentException("Cannot decode online: too many states for backpointers");
+		this.model = model;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * @param columns how many columns are computed between two searches for the
+	 *                point of coalescence (1000 by default); smaller intervals
+	 *                pass the parse on earlier, at the cost of more searches
+	 */
+	public void setCheckInterval(int columns) {
+		if (columns < 1)
+			throw new IllegalArgumentException("The check interval has to be positive, not " + columns);
+		this.checkInterval = columns;
+	}
+
+	public int getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * @return how often the parse was fixed before the end of the sequence in
+	 *         the last run
+	 */
+	public int getNumberOfCoalescences() {
+		return numberOfCoalescences;
+	}
+
+	/**
+	 * @return the largest number of columns whose backpointers were held at
+	 *         once in the last run
+	 */
+	public int getMaximumUndecidedColumns() {
+		return maximumUndecidedColumns;
+	}
+
+	/**
+	 * @return the log-likelihood of the parse of the last run (-infinity if the
+	 *         sequence has no parse)
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+
+	/**
+	 * @return the whole parse, or null if the sequence has none
+	 */
+	public Parse computeParse() {
+		final Parse result = new Parse();
+		try {
+			decode((segment, start) -> {
+				for (int i = 0; i < segment.getNumberOfSteps(); i++)
+					result.add(segment.get(i).getFirst(), segment.get(i).getSecond());
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot happen: the segments are only collected", e);
+		}
+		return logLikelihood == Double.NEGATIVE_INFINITY ? null : result;
+	}
+
+	/**
+	 * Decodes the sequence, passing the parse on in segments as soon as they are
+	 * fixed (and reporting progress in System.out); nothing is passed on if the
+	 * sequence has no parse
+	 *
+	 * @throws IOException if the listener fails
+	 */
+	public void decode(SegmentListener listener) throws IOException {
+		int stateCount = model.getNumberOfStates();
+		int window = model.getMaximumEmissionLength();
+		Viterbi viterbi = new Viterbi(model, sequence);
+		viterbi.prepareForwardPass();
+		RingScoreMatrix scores = new RingScoreMatrix(stateCount, window + 1);
+		Backpointers backpointers = new Backpointers(stateCount);
+		numberOfCoalescences = 0;
+		maximumUndecidedColumns = 0;
+		fixedPosition = 0;
+		pendingStates.clear();
+		pendingLengths.clear();
+		pendingStart = 0;
+
+		viterbi.initialiseFirstColumn(scores);
+		backpointers.prepareColumn(0);
+		for (int l = 1; l <= sequence.length(); l++) {
+			backpointers.prepareColumn(l);
+			viterbi.computeColumn(scores, l, backpointers);
+			// (a cell beyond the window cannot come from the initial state directly)
+			if (l % checkInterval == 0 && l >= window && l < sequence.length()) {
+				maximumUndecidedColumns = Math.max(maximumUndecidedColumns, l - fixedPosition + 1);
+				if (findCoalescence(backpointers, l, window)) {
+					numberOfCoalescences++;
+					backpointers.release(fixedPosition);
+					passOn(listener, false);
+				}
+			}
+			if (l % 5000 == 0) {
+				System.out.println(" progress: l=" + l + "/" + (sequence.length() + 1) + ", fixed up to " + fixedPosition);
+			}
+		}
+		maximumUndecidedColumns = Math.max(maximumUndecidedColumns, sequence.length() - fixedPosition + 1);
+
+		// the end: trace back from the most likely state entering the terminal one
+		logLikelihood = Double.NEGATIVE_INFINITY;
+		int last = -1;
+		for (int q = 2; q < stateCount; q++) {
+			double score = scores.get(q, sequence.length()) + model.getLogTransitionToTerminal(q);
+			if (score > logLikelihood) {
+				logLikelihood = score;
+				last = q;
+			}
+		}
+		if (last < 0)
+			return;
+		fix(backpointers, last, sequence.length());
+		passOn(listener, true);
+	}
+
+	/**
+	 * Traces all live cells (with a finite Viterbi-variable, in the last window
+	 * columns up to l) back, always stepping the one at the largest position,
+	 * until only one is left; if that is after the last fixed cell, the steps up
+	 * to it are fixed
+	 *
+	 * @return whether the parse was fixed further
+	 */
+	private boolean findCoalescence(Backpointers backpointers, int l, int window) {
+		int stateCount = model.getNumberOfStates();
+		// cells by l * stateCount + q
+		TreeSet<Long> live = new TreeSet<Long>();
+		for (int column = Math.max(fixedPosition + 1, l - window + 1); column <= l; column++) {
+			for (int q = 2; q < stateCount; q++) {
+				if (backpointers.getPredecessorState(q, column) >= 0)
+					live.add((long) column * stateCount + q);
+			}
+		}
+		while (live.size() > 1) {
+			long cell = live.pollLast();
+			int q = (int) (cell % stateCount), position = (int) (cell / stateCount);
+			if (position <= fixedPosition)
+				return false;
+			live.add((long) backpointers.getPredecessorPosition(q, position) * stateCount
+					+ backpointers.getPredecessorState(q, position));
+		}
+		if (live.isEmpty())
+			return false;
+		long coalescence = live.first();
+		int position = (int) (coalescence / stateCount);
+		if (position <= fixedPosition)
+			return false;
+		fix(backpointers, (int) (coalescence % stateCount), position);
+		return true;
+	}
+
+	/**
+	 * Appends the steps from the last fixed cell to the given one to the pending
+	 * ones, and fixes the given cell
+	 */
+	private void fix(Backpointers backpointers, int q, int l) {
+		int end = l;
+		List<HMMState> states = new ArrayList<HMMState>();
+		List<Integer> lengths = new ArrayList<Integer>();
+		while (l > fixedPosition) {
+			int qPrime = backpointers.getPredecessorState(q, l);
+			int lPrime = backpointers.getPredecessorPosition(q, l);
+			states.add(model.getState(q));
+			lengths.add(l - lPrime);
+			q = qPrime;
+			l = lPrime;
+		}
+		for (int i = states.size() - 1; i >= 0; i--) {
+			pendingStates.add(states.get(i));
+			pendingLengths.add(lengths.get(i));
+		}
+		fixedPosition = end;
+	}
+
+	/**
+	 * Passes the pending steps on, up to the last anchor among them (or all of
+	 * them, at the end)
+	 */
+	private void passOn(SegmentListener listener, boolean all) throws IOException {
+		int cut = pendingStates.size();
+		if (!all) {
+			cut--;
+			while (cut > 0 && !(pendingStates.get(cut) instanceof NoncodingState
+					&& pendingStates.get(cut - 1) instanceof NoncodingState)) {
+				cut--;
+			}
+		}
+		if (cut <= 0)
+			return;
+		Parse segment = new Parse();
+		int length = 0;
+		for (int i = 0; i < cut; i++) {
+			segment.add(pendingStates.get(i), pendingLengths.get(i));
+			length += pendingLengths.get(i);
+		}
+		listener.accept(segment, pendingStart);
+		pendingStart += length;
+		pendingStates.subList(0, cut).clear();
+		pendingLengths.subList(0, cut).clear();
+	}
+}
@@ -21,6 +21,9 @@ public class Parse {
 	
 	private List<Pair<HMMState, Integer>> parse;
 	
+	/** NaN unless known, cf. {@link #getLogLikelihood()} */
+	private double logLikelihood = Double.NaN;
+	
 	public Parse() {
 		parse = new ArrayList<Pair<HMMState, Integer>>();
 	}
@@ -48,6 +51,19 @@ public class Parse {
 		return length;
 	}
 	
+	/**
+	 * @return the log-probability of this parse together with its sequence, if
+	 *         the decoder provided it (e.g. for ranking alternative parses),
+	 *         otherwise NaN
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+	
+	public void setLogLikelihood(double logLikelihood) {
+		this.logLikelihood = logLikelihood;
+	}
+	
 	/**
 	 * @return The number of steps -- this corresponds to the {@link List#size()}-method.
 	 */
@@ -0,0 +1,295 @@
+package de.vetter.pogigwasc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * All most likely parses of a sequence, as found by the traceback of
+ * {@link Viterbi}, stored as a directed acyclic graph: every node is a pair
+ * (q, l) of a state and the end of its emission, and points to the nodes it
+ * (equally likely) came from. Parses that tie only somewhere share all other
+ * nodes, so the graph stays small even if the number of parses is huge; parses
+ * are only built on demand, cf. {@link #iterator()}.<br>
+ *
+ * Node 0 is the start, i.e. the initial state at position 0; the
+ * <i>ends</i> are the nodes at the end of the sequence (from which the
+ * terminal state is entered).
+ */
+public final class ParseGraph implements Iterable<Parse> {
+
+	private final CompiledGHMM model;
+
+	private int size = 0;
+	private int[] states = new int[16];
+	private int[] positions = new int[16];
+	private int[][] predecessors = new int[16][];
+	private int[] ends = new int[0];
+
+	/** number of steps from each node to the start, computed on first request */
+	private int[] minimumSteps, maximumSteps;
+
+	/**
+	 * @param model the model whose parses are stored
+	 */
+	ParseGraph(CompiledGHMM model) {
+		this.model = model;
+		addNode(0, 0);
+	}
+
+	/**
+	 * @return id of the new node
+	 */
+	int addNode(int q, int l) {
+		if (size == states.length) {
+			states = Arrays.copyOf(states, 2 * size);
+			positions = Arrays.copyOf(positions, 2 * size);
+			predecessors = Arrays.copyOf(predecessors, 2 * size);
+		}
+		states[size] = q;
+		positions[size] = l;
+		predecessors[size] = new int[0];
+		minimumSteps = null;
+		return size++;
+	}
+
+	/**
+	 * @param predecessors ids of the nodes the given node came from, in the order
+	 *                     in which parses are to be enumerated
+	 */
+	void setPredecessors(int node, int[] predecessors) {
+		this.predecessors[node] = predecessors;
+		minimumSteps = null;
+	}
+
+	void setEnds(int[] ends) {
+		this.ends = ends;
+		minimumSteps = null;
+	}
+
+	/**
+	 * @return the number of nodes (including the start)
+	 */
+	public int getNumberOfNodes() {
+		return size;
+	}
+
+	/**
+	 * @return the number of nodes at which parses branch, i.e. that came from
+	 *         more than one node (the ends count as one node as well)
+	 */
+	public int getNumberOfBranchingNodes() {
+		int count = ends.length > 1 ? 1 : 0;
+		for (int node = 0; node < size; node++) {
+			if (predecessors[node].length > 1)
+				count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return compiled index of the state of the node
+	 */
+	public int getState(int node) {
+		return states[node];
+	}
+
+	/**
+	 * @return the position at which the emission of the node's state ends
+	 */
+	public int getPosition(int node) {
+		return positions[node];
+	}
+
+	/**
+	 * @return ids of the nodes the given one came from (do not modify)
+	 */
+	public int[] getPredecessors(int node) {
+		return predecessors[node];
+	}
+
+	/**
+	 * @return ids of the nodes at the end of the sequence (do not modify)
+	 */
+	public int[] getEnds() {
+		return ends;
+	}
+
+	/**
+	 * @return the number of distinct parses, or Long.MAX_VALUE if there are at
+	 *         least that many
+	 */
+	public long countParses() {
+		long[] counts = new long[size];
+		counts[0] = 1;
+		for (int node : nodesByPosition()) {
+			for (int predecessor : predecessors[node])
+				counts[node] = saturatedSum(counts[node], counts[predecessor]);
+		}
+		long total = 0;
+		for (int end : ends)
+			total = saturatedSum(total, counts[end]);
+		return total;
+	}
+
+	private static long saturatedSum(long a, long b) {
+		return a > Long.MAX_VALUE - b ? Long.MAX_VALUE : a + b;
+	}
+
+	/**
+	 * @return ids of all nodes except the start, by ascending position (so that
+	 *         the predecessors of a node come before it)
+	 */
+	private int[] nodesByPosition() {
+		long[] keys = new long[size - 1];
+		for (int node = 1; node < size; node++)
+			keys[node - 1] = ((long) positions[node] << 32) | node;
+		Arrays.sort(keys);
+		int[] order = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+			order[i] = (int) keys[i];
+		return order;
+	}
+
+	private void computeSteps() {
+		if (minimumSteps != null)
+			return;
+		int[] minimum = new int[size];
+		int[] maximum = new int[size];
+		// nodes that do not lead to the start are never used
+		Arrays.fill(minimum, Integer.MAX_VALUE);
+		Arrays.fill(maximum, -1);
+		minimum[0] = 0;
+		maximum[0] = 0;
+		for (int node : nodesByPosition()) {
+			for (int predecessor : predecessors[node]) {
+				if (maximum[predecessor] >= 0) {
+					minimum[node] = Math.min(minimum[node], minimum[predecessor] + 1);
+					maximum[node] = Math.max(maximum[node], maximum[predecessor] + 1);
+				}
+			}
+		}
+		minimumSteps = minimum;
+		maximumSteps = maximum;
+	}
+
+	/**
+	 * @param maximum number of parses to return at most
+	 * @return the first parses, cf. {@link #iterator()}
+	 */
+	public List<Parse> getParses(int maximum) {
+		List<Parse> result = new ArrayList<Parse>();
+		for (Iterator<Parse> parses = iterator(); parses.hasNext() && result.size() < maximum;)
+			result.add(parses.next());
+		return result;
+	}
+
+	/**
+	 * Enumerates the parses lazily: those with fewer steps first, and parses with
+	 * the same number of steps in the order of the ends and predecessors, going
+	 * backwards from the end of the sequence (this is the order in which a
+	 * breadth-first traceback finds them)
+	 */
+	@Override
+	public Iterator<Parse> iterator() {
+		computeSteps();
+		return new Iterator<Parse>() {
+			private int steps = Integer.MAX_VALUE, lastSteps = -1;
+			/** path from an end towards the start, and the next predecessor to try at each node */
+			private int[] path, nextChoice;
+			private int depth = -1;
+			private int nextChoiceOfEnds = -1;
+			private Parse next;
+
+			{
+				for (int end : ends) {
+					if (maximumSteps[end] >= 0) {
+						steps = Math.min(steps, minimumSteps[end]);
+						lastSteps = Math.max(lastSteps, maximumSteps[end]);
+					}
+				}
+				if (lastSteps >= 0) {
+					path = new int[lastSteps + 1];
+					nextChoice = new int[lastSteps + 1];
+				}
+				advance();
+			}
+
+			private boolean feasible(int node, int remaining) {
+				return minimumSteps[node] <= remaining && remaining <= maximumSteps[node];
+			}
+
+			/**
+			 * Depth-first search for the next path with exactly the current number of
+			 * steps, continuing where the last one was found (depth -1: start with the
+			 * first end)
+			 */
+			private void advance() {
+				next = null;
+				while (steps <= lastSteps) {
+					if (depth < 0) {
+						// choose the next end
+						while (++nextChoiceOfEnds < ends.length) {
+							if (feasible(ends[nextChoiceOfEnds], steps)) {
+								depth = 0;
+								path[0] = ends[nextChoiceOfEnds];
+								nextChoice[0] = 0;
+								break;
+							}
+						}
+						if (depth < 0) {
+							steps++;
+							nextChoiceOfEnds = -1;
+							continue;
+						}
+					}
+					int node = path[depth];
+					if (depth == steps) {
+						// node is the start; go back up for the next search
+						next = toParse();
+						depth--;
+						return;
+					}
+					int[] choices = predecessors[node];
+					boolean descended = false;
+					while (nextChoice[depth] < choices.length) {
+						int candidate = choices[nextChoice[depth]++];
+						if (feasible(candidate, steps - depth - 1)) {
+							depth++;
+							path[depth] = candidate;
+							nextChoice[depth] = 0;
+							descended = true;
+							break;
+						}
+					}
+					if (!descended)
+						depth--;
+				}
+			}
+
+			private Parse toParse() {
+				Parse parse = new Parse();
+				for (int i = steps - 1; i >= 0; i--) {
+					parse.add(model.getState(states[path[i]]), positions[path[i]] - positions[path[i + 1]]);
+				}
+				return parse;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public Parse next() {
+				if (next == null)
+					throw new NoSuchElementException();
+				Parse result = next;
+				advance();
+				return result;
+			}
+		};
+	}
+}
@@ -0,0 +1,44 @@
+package de.vetter.pogigwasc;
+
+/**
+ * The entire matrix of Viterbi-variables, as one column after the other: the
+ * states of a column, which are read together by every later cell, lie next to
+ * each other in memory (unlike in {@link FullScoreMatrix}, where they lie a
+ * row apart)
+ */
+final class PositionMajorScoreMatrix implements ScoreMatrix {
+
+	private final int stateCount;
+	private final double[] values;
+
+	/**
+	 * @param stateCount number of states
+	 * @param columns    number of positions (sequence length + 1)
+	 * @throws IllegalArgumentException if there are too many cells for one array
+	 */
+	PositionMajorScoreMatrix(int stateCount, int columns) {
+		this.stateCount = stateCount;
+		values = new double[cells(stateCount, columns)];
+	}
+
+	/**
+	 * @return the number of cells, if they fit into one array
+	 * @throws IllegalArgumentException otherwise
+	 */
+	static int cells(int stateCount, int columns) {
+		if ((long) stateCount * columns > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many cells for one array (" + stateCount + " states, " + columns
+					+ " columns), use checkpoints instead");
+		return stateCount * columns;
+	}
+
+	@Override
+	public double get(int q, int l) {
+		return values[l * stateCount + q];
+	}
+
+	@Override
+	public void set(int q, int l, double value) {
+		values[l * stateCount + q] = value;
+	}
+}
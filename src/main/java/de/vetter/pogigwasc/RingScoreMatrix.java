@@ -0,0 +1,39 @@
+package de.vetter.pogigwasc;
+
+/**
+ * Keeps only the most recent columns of Viterbi-variables: column l is stored
+ * at l modulo the capacity (a power of two), so any range of at most
+ * {@link #getCapacity()} consecutive columns can be held. Keeping the range
+ * consistent is up to the caller.
+ */
+final class RingScoreMatrix implements ScoreMatrix {
+
+	private final double[][] values;
+	private final int mask;
+
+	/**
+	 * @param stateCount number of states
+	 * @param columns    minimum number of consecutive columns to hold
+	 */
+	RingScoreMatrix(int stateCount, int columns) {
+		int capacity = Integer.highestOneBit(Math.max(1, columns));
+		if (capacity < columns)
+			capacity <<= 1;
+		values = new double[stateCount][capacity];
+		mask = capacity - 1;
+	}
+
+	int getCapacity() {
+		return mask + 1;
+	}
+
+	@Override
+	public double get(int q, int l) {
+		return values[q][l & mask];
+	}
+
+	@Override
+	public void set(int q, int l, double value) {
+		values[q][l & mask] = value;
+	}
+}
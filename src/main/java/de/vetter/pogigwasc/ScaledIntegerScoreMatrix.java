@@ -0,0 +1,71 @@
+package de.vetter.pogigwasc;
+
+import java.util.Arrays;
+
+/**
+ * The entire matrix of Viterbi-variables in half the memory, in fixed point:
+ * as {@link FloatScoreMatrix}, every column keeps a base (the best value of
+ * the previous column, or the first finite value set in it), and each cell its
+ * difference to that base, in units of
+ * 1/{@link #SCALE} nat, rounded to an int. The error is thereby at most half a
+ * unit (about 0.0005 nats) per cell, independently of the values; differences
+ * beyond the range of an int (about two million nats) count as -infinity.<br>
+ *
+ * Rounding may merge candidates that differ by less than a unit, or split
+ * exact ties, so a parse may be returned that is less likely than the best one
+ * by up to half a unit per step.
+ */
+final class ScaledIntegerScoreMatrix implements ScoreMatrix {
+
+	/** units per nat; a power of two, so that scaling back is exact */
+	static final double SCALE = 1024;
+
+	/** stands for -infinity */
+	private static final int NONE = Integer.MIN_VALUE;
+
+	private final int stateCount;
+	private final int[] offsets;
+	/** per column, NaN until the column is started or a finite value is set */
+	private final double[] bases;
+
+	/**
+	 * @param stateCount number of states
+	 * @param columns    number of positions (sequence length + 1)
+	 * @throws IllegalArgumentException if there are too many cells for one array
+	 */
+	ScaledIntegerScoreMatrix(int stateCount, int columns) {
+		this.stateCount = stateCount;
+		offsets = new int[PositionMajorScoreMatrix.cells(stateCount, columns)];
+		bases = new double[columns];
+		Arrays.fill(bases, Double.NaN);
+	}
+
+	@Override
+	public double get(int q, int l) {
+		int offset = offsets[l * stateCount + q];
+		return offset == NONE ? Double.NEGATIVE_INFINITY : bases[l] + offset / SCALE;
+	}
+
+	@Override
+	public void set(int q, int l, double value) {
+		if (value == Double.NEGATIVE_INFINITY) {
+			offsets[l * stateCount + q] = NONE;
+			return;
+		}
+		if (Double.isNaN(bases[l]))
+			bases[l] = value;
+		long units = Math.round((value - bases[l]) * SCALE);
+		offsets[l * stateCount + q] = units <= NONE ? NONE : (int) Math.min(units, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public void startColumn(int l) {
+		// fixed before the column is computed, so that cells set concurrently share it
+		if (l == 0 || !Double.isNaN(bases[l]))
+			return;
+		double best = Double.NEGATIVE_INFINITY;
+		for (int q = 0; q < stateCount; q++)
+			best = Math.max(best, get(q, l - 1));
+		bases[l] = best > Double.NEGATIVE_INFINITY ? best : bases[l - 1];
+	}
+}
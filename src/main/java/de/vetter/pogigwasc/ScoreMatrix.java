@@ -0,0 +1,36 @@
+package de.vetter.pogigwasc;
+
+/**
+ * Storage of the Viterbi-variables V[q][l] (log-probabilities) of a model on a
+ * sequence, as filled by {@link Viterbi} and read by {@link ViterbiSeed}.
+ * Implementations may keep only part of the matrix, and recompute or reject
+ * the rest.
+ */
+public interface ScoreMatrix {
+
+	/**
+	 * @param q state (compiled index)
+	 * @param l position in the sequence (0 to length, inclusive)
+	 * @return V[q][l]
+	 */
+	double get(int q, int l);
+
+	/**
+	 * @param q     state (compiled index)
+	 * @param l     position in the sequence
+	 * @param value the new value of V[q][l]
+	 * @throws UnsupportedOperationException if this matrix is read-only
+	 */
+	void set(int q, int l, double value);
+
+	/**
+	 * Called (on one thread) before any value of column l is set, when a column
+	 * is computed; afterwards, the cells of the column may be set from several
+	 * threads at once (cf. {@link Viterbi#setParallelism(int)}). Nothing to do by
+	 * default.
+	 *
+	 * @param l position in the sequence (at least 1)
+	 */
+	default void startColumn(int l) {
+	}
+}
@@ -1,5 +1,8 @@
 package de.vetter.pogigwasc;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Collection of some general methods with no particular place. This class implements the base-index-correspondence:
  * TCAG<br>
@@ -44,13 +47,21 @@ public class Utilities {
 		}
 	}
 	
+	/**
+	 * @param baseIndex index of a base (T-C-A-G)
+	 * @return index of the complementary base (T-A, C-G)
+	 */
+	public static int complementIndex(int baseIndex) {
+		return baseIndex ^ 2;
+	}
+	
 	/**
 	 * @param sequence (preferably <i>not</i> containing N
 	 * @return reverse complement of that sequence -- if some other base than the
 	 *         standard TCAG is found in the sequence, its complement is will be N.
 	 */
 	public static String reverseComplement(String sequence) {
-		StringBuffer result = new StringBuffer();
+		StringBuilder result = new StringBuilder(sequence.length());
 		for(char b : sequence.toCharArray()) {
 			switch(b) {
 			case 'T':
@@ -77,6 +88,28 @@ public class Utilities {
 		return result.reverse().toString();
 	}
 	
+	/**
+	 * Splits a scaffold at its runs of unspecified nucleotides (N or n, of any
+	 * length)
+	 * 
+	 * @param sequence      the scaffold
+	 * @param minimumLength segments shorter than this are left out
+	 * @return the segments between the runs, as (start, end) with the end
+	 *         exclusive, in order
+	 */
+	public static List<Pair<Integer, Integer>> findSegmentsBetweenNs(CharSequence sequence, int minimumLength) {
+		List<Pair<Integer, Integer>> segments = new ArrayList<Pair<Integer, Integer>>();
+		int start = 0;
+		for(int i = 0; i <= sequence.length(); i++) {
+			if(i == sequence.length() || sequence.charAt(i) == 'N' || sequence.charAt(i) == 'n') {
+				if(i > start && i - start >= minimumLength)
+					segments.add(new Pair<Integer, Integer>(start, i));
+				start = i + 1;
+			}
+		}
+		return segments;
+	}
+	
 	/**
 	 * @param k
 	 * @return ln(k!)
@@ -92,6 +125,25 @@ public class Utilities {
 			return result;
 		}
 	}
+	
+	/**
+	 * All values of {@link #logFactorial(int)} up to n at once, in linear time
+	 * (the sum is carried over from one k to the next, in the same order, so the
+	 * values are exactly the same)
+	 * 
+	 * @param n
+	 * @return ln(k!) for k = 0..n
+	 */
+	public static double[] logFactorials(int n) {
+		double[] result = new double[n + 1];
+		double sum = 0;
+		for(int k = 0; k <= n; k++) {
+			if(k >= 2)
+				sum += Math.log(k);
+			result[k] = k < LOG_FACTORIALS.length ? LOG_FACTORIALS[k] : sum;
+		}
+		return result;
+	}
 
 	
 	public static double sumVector(double[] vector) {
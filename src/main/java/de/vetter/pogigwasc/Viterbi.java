@@ -1,7 +1,18 @@
 package de.vetter.pogigwasc;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.SiteIndex;
 
 /**
  * Implements the Viterbi algorithm as described by Stanke (AUGUSTUS): Construct
@@ -12,22 +23,84 @@ import java.util.List;
  *
  */
 public class Viterbi {
-	private double[][] viterbiVariables;
-	private GHMM model;
-	private String sequence;
+	private ScoreMatrix viterbiVariables;
+	private CompiledGHMM model;
+	private EncodedSequence sequence;
+	
+	/** per state: the sites, or motif-occurrences, it is restricted to (or null) */
+	private SiteIndex[] sites;
+	private BitSet[] motifSites;
 	
 	private boolean abbreviating = false;
 	
+	private Checkpointing checkpointing = Checkpointing.OFF;
+	private int checkpointInterval = 0;
+	private ScoreStorage scoreStorage = ScoreStorage.DOUBLE;
+	
+	private boolean recordingBackpointers = false;
+	/** null unless backpointers were recorded in the last run */
+	private Backpointers backpointers;
+	
 	/**
-	 * Constructor: Checks given model for transition-validity
+	 * default of {@link #setMinimumParallelLength(int)}: below this, a run is too
+	 * short for parallel columns to make up for handing tasks to other threads
+	 */
+	public static final int DEFAULT_MINIMUM_PARALLEL_LENGTH = 10000;
+	
+	private int parallelism = 1;
+	private int minimumParallelLength = DEFAULT_MINIMUM_PARALLEL_LENGTH;
+	/** only while computing the variables in parallel: the pool, and the states evaluated by each task */
+	private ForkJoinPool pool;
+	private int[][] stateGroups;
+	
+	private double beamMargin = Double.POSITIVE_INFINITY;
+	/** only with a beam: the maximum of each of the recent columns, at l & columnMaximaMask */
+	private double[] columnMaxima;
+	private int columnMaximaMask;
+	/**
+	 * only with a beam: for each state of the recent columns (at
+	 * (l & columnMaximaMask) * number of states + q), an upper bound of the
+	 * exact Viterbi-variable, cf. {@link #getLossBound()}
+	 */
+	private double[] upperBounds;
+	/** cf. {@link #getLossBound()} */
+	private double lossBound;
+	private final LongAdder prunedCells = new LongAdder();
+	/** the last column computed in the forward pass (columns up to it may be recomputed for the traceback) */
+	private int computedColumns;
+	
+	private double logLikelihood = Double.NEGATIVE_INFINITY;
+	
+	private double tieTolerance = 0;
+	private int maximumNumberOfParses = Integer.MAX_VALUE;
+	
+	/**
+	 * Constructor: Checks given model for transition-validity and compiles it. If
+	 * the same model is used for several sequences, prefer compiling it once and
+	 * using {@link #Viterbi(CompiledGHMM, String)}
+	 * 
 	 * @param model: Has to have its transition matrix set and valid
 	 * @throws IllegalArgumentException if the model is (trivially) invalid.
 	 */
 	public Viterbi(GHMM model, String sequence) {
-		// check model validity and potentially throw exceptions
-		if(!(model.isSetTransitionMatrix() && model.checkTransitions())) {
-			throw new IllegalArgumentException("The given GHMM does not have a valid transition matrix (not set, or not normalised).");
-		}
+		this(model.compile(), sequence);
+	}
+	
+	/**
+	 * @param model    an already compiled (and thereby validated) model; may be
+	 *                 shared with other Viterbi-instances
+	 * @param sequence the sequence to decode
+	 */
+	public Viterbi(CompiledGHMM model, String sequence) {
+		this(model, new EncodedSequence(sequence));
+	}
+	
+	/**
+	 * @param model    an already compiled (and thereby validated) model; may be
+	 *                 shared with other Viterbi-instances
+	 * @param sequence the (encoded) sequence to decode
+	 */
+	public Viterbi(CompiledGHMM model, EncodedSequence sequence) {
 		this.model = model;
 		this.sequence = sequence;
 	}
@@ -35,13 +108,17 @@ public class Viterbi {
 	/**
 	 * This determines whether the emission history is constructed and handed to the
 	 * states when computing the emission probabilities -- this is often not needed,
-	 * in particular, i do not make use of the emission history here (so far)
+	 * in particular, i do not make use of the emission history here (so far).
+	 * Only concerns states that score emissions by
+	 * {@link HMMState#computeLogEmissionProbability(int, String, String)} alone;
+	 * those that score the encoded sequence directly never build a history.
 	 * 
 	 * @param abbreviate whether to omit the emission history (make sure the model
 	 *                   does not need it!)
 	 */
 	public void setAbbreviating(boolean abbreviate) {
 		this.abbreviating = abbreviate;
+		this.model = abbreviate ? model.withoutEmissionHistory() : model.withEmissionHistory();
 	}
 	
 	/**
@@ -52,115 +129,890 @@ public class Viterbi {
 		return abbreviating;
 	}
 	
+	/**
+	 * Whether the entire matrix of Viterbi-variables is kept (OFF), or only
+	 * checkpoints from which the traceback recomputes the columns it needs (ON).
+	 * AUTO uses checkpoints if the entire matrix would take more than a quarter of
+	 * the maximum heap size. Either way, the parses are exactly the same.
+	 */
+	public enum Checkpointing {
+		OFF, ON, AUTO
+	}
+	
+	/**
+	 * @param checkpointing whether to keep only checkpoints instead of the entire
+	 *                      matrix of Viterbi-variables (OFF by default); has no
+	 *                      effect (other than a note) if the model allows
+	 *                      arbitrarily long emissions, cf.
+	 *                      {@link CompiledGHMM#getMaximumEmissionLength()}
+	 */
+	public void setCheckpointing(Checkpointing checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+	
+	/**
+	 * @return the mode set via {@link #setCheckpointing(Checkpointing)}
+	 */
+	public Checkpointing getCheckpointing() {
+		return checkpointing;
+	}
+	
+	/**
+	 * How the entire matrix of Viterbi-variables is stored (if it is kept, cf.
+	 * {@link Viterbi#setCheckpointing(Checkpointing)}): DOUBLE as one row per
+	 * state, POSITION_MAJOR as one column after the other, so that the states of
+	 * a column, which are read together, are next to each other in memory. FLOAT
+	 * and SCALED_INTEGER store columns the same way in half the memory, as
+	 * differences to a base per column (cf. {@link FloatScoreMatrix} and
+	 * {@link ScaledIntegerScoreMatrix}); their rounding may turn nearly equal
+	 * candidates into ties or break exact ties, so the parse may differ from the
+	 * exact one by a slightly smaller likelihood (and {@link #computeKBestParses(int)}
+	 * does not use them).
+	 */
+	public enum ScoreStorage {
+		DOUBLE(8, true), POSITION_MAJOR(8, true), FLOAT(4, false), SCALED_INTEGER(4, false);
+		
+		private final int bytesPerCell;
+		private final boolean exact;
+		
+		private ScoreStorage(int bytesPerCell, boolean exact) {
+			this.bytesPerCell = bytesPerCell;
+			this.exact = exact;
+		}
+		
+		/**
+		 * @return whether the Viterbi-variables are read back exactly as computed
+		 */
+		public boolean isExact() {
+			return exact;
+		}
+		
+		/**
+		 * @return memory per Viterbi-variable, in bytes (not counting the base per
+		 *         column)
+		 */
+		public int getBytesPerCell() {
+			return bytesPerCell;
+		}
+		
+		ScoreMatrix create(int stateCount, int columns) {
+			switch(this) {
+			case POSITION_MAJOR:
+				return new PositionMajorScoreMatrix(stateCount, columns);
+			case FLOAT:
+				return new FloatScoreMatrix(stateCount, columns);
+			case SCALED_INTEGER:
+				return new ScaledIntegerScoreMatrix(stateCount, columns);
+			default:
+				return new FullScoreMatrix(stateCount, columns);
+			}
+		}
+	}
+	
+	/**
+	 * @param storage how the entire matrix of Viterbi-variables is stored (DOUBLE
+	 *                by default); not used with checkpoints or backpointers,
+	 *                which only keep a few columns
+	 */
+	public void setScoreStorage(ScoreStorage storage) {
+		this.scoreStorage = storage;
+	}
+	
+	/**
+	 * @return the storage set via {@link #setScoreStorage(ScoreStorage)}
+	 */
+	public ScoreStorage getScoreStorage() {
+		return scoreStorage;
+	}
+	
+	/**
+	 * @return the distance between two checkpoints in the last run of
+	 *         {@link #computeParses()}, or 0 if the entire matrix was kept
+	 */
+	public int getCheckpointInterval() {
+		return checkpointInterval;
+	}
+	
+	/**
+	 * @param record whether the forward pass records, for each cell, where its
+	 *               value came from (off by default): The traceback is then a
+	 *               simple walk, without recomputing any emission probability,
+	 *               and only the last columns of Viterbi-variables are kept (if
+	 *               the model's emissions are bounded). This takes 5 bytes per
+	 *               cell (instead of 8 for the entire matrix); it is not done if
+	 *               checkpoints are used (cf.
+	 *               {@link #setCheckpointing(Checkpointing)}), or if the model
+	 *               has more than 255 states.
+	 */
+	public void setRecordingBackpointers(boolean record) {
+		this.recordingBackpointers = record;
+	}
+	
+	/**
+	 * @param threads number of threads evaluating the states of a column (1, i.e.
+	 *                serially, by default): Within a column, the states only
+	 *                read earlier columns, so they are split into groups of
+	 *                about the same cost, which are evaluated at the same time
+	 *                on the common {@link ForkJoinPool} (shared by all
+	 *                instances, so no threads are started per contig). Each
+	 *                column is synchronised on, which only pays off if a column
+	 *                costs clearly more than a few microseconds; sequences
+	 *                shorter than {@link #setMinimumParallelLength(int)} are
+	 *                always decoded serially. It does not change the parses.
+	 *                Not used when recording backpointers.
+	 */
+	public void setParallelism(int threads) {
+		if(threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		this.parallelism = threads;
+	}
+	
+	/**
+	 * @return the number of threads set via {@link #setParallelism(int)}
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+	
+	/**
+	 * @param length sequences shorter than this are decoded serially, whatever
+	 *               {@link #getParallelism()} is (default
+	 *               {@link #DEFAULT_MINIMUM_PARALLEL_LENGTH})
+	 */
+	public void setMinimumParallelLength(int length) {
+		this.minimumParallelLength = length;
+	}
+	
+	/**
+	 * Beam-pruning (off by default): a predecessor (q', l') is skipped if its
+	 * Viterbi-variable falls more than margin below the maximum of column l'.
+	 * This is approximate: if the most likely parse passes through a pruned cell,
+	 * a less likely one is returned instead (cf. {@link #getLogLikelihood()}).
+	 * 
+	 * @param margin in natural log-units, or Double.POSITIVE_INFINITY to decode
+	 *               exactly
+	 */
+	public void setBeamMargin(double margin) {
+		if(!(margin >= 0))
+			throw new IllegalArgumentException("The beam margin has to be non-negative, not " + margin);
+		this.beamMargin = margin;
+	}
+	
+	/**
+	 * @return the margin set via {@link #setBeamMargin(double)}
+	 */
+	public double getBeamMargin() {
+		return beamMargin;
+	}
+	
+	/**
+	 * @return the number of (finite) predecessors skipped by the beam in the last
+	 *         run of {@link #computeParses()} (counting every cell once for each
+	 *         cell it was skipped for)
+	 */
+	public long getNumberOfPrunedCells() {
+		return prunedCells.sum();
+	}
+	
+	/**
+	 * Bounds the score lost to the beam, alongside the pruned variables: the
+	 * bound of a cell is the maximum over all its predecessors, pruned or not,
+	 * of the bound of the predecessor plus transition and emission, which
+	 * follows the exact recursion and so is tight. The emission of a pruned
+	 * predecessor is only scored if the predecessor could still raise the bound
+	 * (emissions are log-probabilities, i.e. at most 0), which is rarely the
+	 * case far below the beam; still, keeping the bound costs time, so the beam
+	 * saves less than it prunes.
+	 * 
+	 * @return how much more likely (in natural log-units) than
+	 *         {@link #getLogLikelihood()} the exact maximum can be at most, for
+	 *         the last run of {@link #computeParses()} (0 without beam;
+	 *         +infinity if the beam lost every parse)
+	 */
+	public double getLossBound() {
+		return lossBound;
+	}
+	
+	/**
+	 * @return the log-likelihood of the parses found in the last run of
+	 *         {@link #computeParses()}; with a beam, this is a lower bound of the
+	 *         exact maximum, which exceeds it by at most {@link #getLossBound()}
+	 */
+	public double getLogLikelihood() {
+		return logLikelihood;
+	}
+	
+	/**
+	 * @param tolerance how much less likely (in natural log-units) than the best
+	 *                  one a step of the traceback may be to still count as a
+	 *                  tie (0, i.e. exact ties only, by default). This applies to
+	 *                  every single step, so parses can differ by more than that
+	 *                  in total. Not used with backpointers, which only record
+	 *                  exact ties.
+	 */
+	public void setTieTolerance(double tolerance) {
+		if(!(tolerance >= 0))
+			throw new IllegalArgumentException("The tie tolerance has to be non-negative, not " + tolerance);
+		this.tieTolerance = tolerance;
+	}
+	
+	/**
+	 * @return the tolerance set via {@link #setTieTolerance(double)}
+	 */
+	public double getTieTolerance() {
+		return tieTolerance;
+	}
+	
+	/**
+	 * @param maximum how many parses {@link #computeParses()} returns at most
+	 *                (all of them by default)
+	 */
+	public void setMaximumNumberOfParses(int maximum) {
+		if(maximum < 1)
+			throw new IllegalArgumentException("Need to return at least one parse, not " + maximum);
+		this.maximumNumberOfParses = maximum;
+	}
+	
+	/**
+	 * @return the number set via {@link #setMaximumNumberOfParses(int)}
+	 */
+	public int getMaximumNumberOfParses() {
+		return maximumNumberOfParses;
+	}
+	
+	/**
+	 * @return whether backpointers are to be recorded, cf.
+	 *         {@link #setRecordingBackpointers(boolean)}
+	 */
+	public boolean isRecordingBackpointers() {
+		return recordingBackpointers;
+	}
+	
+	private boolean isUsingCheckpoints(int window) {
+		if(checkpointing == Checkpointing.OFF)
+			return false;
+		if(window == Integer.MAX_VALUE) {
+			System.out.println("Cannot use checkpoints: the model allows arbitrarily long emissions");
+			return false;
+		}
+		if(checkpointing == Checkpointing.ON)
+			return true;
+		double fullMatrixBytes = (double) scoreStorage.getBytesPerCell() * model.getNumberOfStates() * (sequence.length() + 1);
+		return fullMatrixBytes > Runtime.getRuntime().maxMemory() / 4d;
+	}
+	
 	private void computeViterbiVariables() {
+		if(parallelism > 1 && sequence.length() >= minimumParallelLength && !recordingBackpointers
+				&& model.getNumberOfStates() > 3) {
+			stateGroups = partitionStates();
+			pool = ForkJoinPool.commonPool();
+			try {
+				computeViterbiVariablesInColumns();
+			} finally {
+				pool = null;
+			}
+		} else {
+			computeViterbiVariablesInColumns();
+		}
+	}
+	
+	/**
+	 * Splits the states (other than initial and terminal) into at most
+	 * {@link #getParallelism()} groups of about the same cost (longest first,
+	 * each into the cheapest group so far), where the cost of a state is the
+	 * number of its predecessors times the number of its l' at the end of the
+	 * sequence
+	 */
+	private int[][] partitionStates() {
 		int stateCount = model.getNumberOfStates();
-		// NOTE! Compute in logarithm, i.e. probability 1 is entry 0 etc; Addition instead of multiplication
-		viterbiVariables = new double[stateCount][sequence.length() + 1];
+		int groupCount = Math.min(parallelism, stateCount - 2);
+		int l = sequence.length();
+		long[] costs = new long[stateCount];
+		List<Integer> order = new ArrayList<Integer>();
+		for(int q = 2; q < stateCount; q++) {
+			long lPrimes = Math.max(1, (model.getLastLPrime(q, l) - model.getFirstLPrime(q, l)) / model.getLPrimeStride(q) + 1);
+			costs[q] = (model.getPredecessorEnd(q) - model.getPredecessorStart(q)) * lPrimes;
+			order.add(q);
+		}
+		order.sort((a, b) -> Long.compare(costs[b], costs[a]));
 		
-		// Initialisation:
-		viterbiVariables[0][0] = 0; 
-		for(int state = 1; state < stateCount; state++) {
-			viterbiVariables[state][0] = Double.NEGATIVE_INFINITY;
+		long[] loads = new long[groupCount];
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for(int g = 0; g < groupCount; g++)
+			groups.add(new ArrayList<Integer>());
+		for(int q : order) {
+			int cheapest = 0;
+			for(int g = 1; g < groupCount; g++) {
+				if(loads[g] < loads[cheapest])
+					cheapest = g;
+			}
+			loads[cheapest] += costs[q];
+			groups.get(cheapest).add(q);
 		}
 		
-		// collect the longest possible emission that could start the sequence:
-		int maxInitialEmissionLength = 0;
+		int[][] result = new int[groupCount][];
+		for(int g = 0; g < groupCount; g++) {
+			result[g] = new int[groups.get(g).size()];
+			for(int i = 0; i < result[g].length; i++)
+				result[g][i] = groups.get(g).get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Prepares computing columns by {@link #computeColumn(ScoreMatrix, int, Backpointers)}:
+	 * indexes the sites of each state, and resets the statistics of the last run
+	 */
+	void prepareForwardPass() {
+		int stateCount = model.getNumberOfStates();
+		sites = new SiteIndex[stateCount];
+		motifSites = new BitSet[stateCount];
 		for(int q = 2; q < stateCount; q++) {
-			if(model.getLogTransitionProbability(0, q) > Double.NEGATIVE_INFINITY)
-				maxInitialEmissionLength = Math.max(maxInitialEmissionLength, model.getState(q).getSupremumPermissibleEmissionLength());
-		}
-		
-		System.out.println(" Viterbi: Maximum initial emission length = " + maxInitialEmissionLength + "\n");
-		
-		// 'Recursion'
-		for(int l = 1; l < sequence.length() + 1; l++) {
-			for(int q = 0; q < stateCount; q++) {
-				if(q == 1)
-					continue;
-				double max = Double.NEGATIVE_INFINITY;
-				for (int qPrime = 0; qPrime < stateCount; qPrime++) {
-					if(model.getLogTransitionProbability(qPrime, q) > Double.NEGATIVE_INFINITY && qPrime != 1) {
-						if(qPrime == 0 && l < maxInitialEmissionLength) {
-							max = Math.max(max,
-									viterbiVariables[qPrime][0] + model.getLogTransitionProbability(qPrime, q)
-											+ model.getLogEmissionProbability(0, q, "",
-													sequence.substring(0, l)));
-						} else {
-							// q' \in Q, i.e. neither initial nor terminal state (cannot come from the terminal state)
-							for(int lPrime : model.getState(q).iteratePermissibleLPrimes(l)) {
-								max = Math.max(max,
-										viterbiVariables[qPrime][lPrime] + model.getLogTransitionProbability(qPrime, q)
-												+ model.getLogEmissionProbability(qPrime, q,
-														abbreviating ? null : sequence.substring(0, lPrime),
-														sequence.substring(lPrime, l)));
+			sites[q] = model.getState(q).getPermissibleSites(sequence);
+			if(model.getRequiredMotif(q) != null) {
+				motifSites[q] = sequence.getPrecomputed(model.getRequiredMotif(q));
+			}
+		}
+		
+		int window = model.getMaximumEmissionLength();
+		backpointers = null;
+		prunedCells.reset();
+		computedColumns = 0;
+		lossBound = 0;
+		if(beamMargin < Double.POSITIVE_INFINITY) {
+			// only the columns that can be read by the current one are needed
+			int columns = window == Integer.MAX_VALUE ? sequence.length() + 1 : window + 1;
+			int capacity = Integer.highestOneBit(Math.max(1, columns));
+			if(capacity < columns)
+				capacity <<= 1;
+			columnMaxima = new double[capacity];
+			columnMaximaMask = capacity - 1;
+			upperBounds = new double[capacity * stateCount];
+		} else {
+			columnMaxima = null;
+			upperBounds = null;
+		}
+	}
+	
+	private void computeViterbiVariablesInColumns() {
+		int stateCount = model.getNumberOfStates();
+		int window = model.getMaximumEmissionLength();
+		prepareForwardPass();
+		if(isUsingCheckpoints(window)) {
+			// memory ~ (L/k)*window + k columns, which is minimal for k = sqrt(L*window)
+			checkpointInterval = Math.max(window, (int) Math.ceil(Math.sqrt((double) sequence.length() * window)));
+			System.out.println("Using checkpoints every " + checkpointInterval + " columns");
+			Checkpoints checkpoints = new Checkpoints(window, checkpointInterval);
+			RingScoreMatrix recent = new RingScoreMatrix(stateCount, window + 1);
+			initialiseFirstColumn(recent);
+			for(int l = 1; l < sequence.length() + 1; l++) {
+				computeColumn(recent, l, null);
+				if(l % checkpointInterval == 0) {
+					checkpoints.save(recent, l);
+				}
+				reportProgress(l);
+			}
+			// the traceback starts at the very end
+			checkpoints.load(sequence.length());
+			viterbiVariables = checkpoints;
+		} else if(recordingBackpointers && stateCount <= Backpointers.MAX_STATES) {
+			checkpointInterval = 0;
+			backpointers = new Backpointers(stateCount, sequence.length());
+			// the traceback only needs the last column
+			ScoreMatrix scores = window == Integer.MAX_VALUE ? new FullScoreMatrix(stateCount, sequence.length() + 1)
+					: new RingScoreMatrix(stateCount, window + 1);
+			initialiseFirstColumn(scores);
+			for(int l = 1; l < sequence.length() + 1; l++) {
+				computeColumn(scores, l, backpointers);
+				reportProgress(l);
+			}
+			viterbiVariables = scores;
+		} else {
+			checkpointInterval = 0;
+			// NOTE! Compute in logarithm, i.e. probability 1 is entry 0 etc; Addition instead of multiplication
+			ScoreMatrix full = scoreStorage.create(stateCount, sequence.length() + 1);
+			initialiseFirstColumn(full);
+			for(int l = 1; l < sequence.length() + 1; l++) {
+				computeColumn(full, l, null);
+				reportProgress(l);
+			}
+			viterbiVariables = full;
+		}
+		
+		System.out.println("Computed variables!");
+	}
+	
+	private void reportProgress(int l) {
+		if (l % 5000 == 0) {
+			System.out.println(" progress: l=" + l + "/" + (sequence.length() + 1));
+		}
+	}
+	
+	/**
+	 * Initialisation: only the initial state may be in column 0
+	 */
+	void initialiseFirstColumn(ScoreMatrix scores) {
+		scores.set(0, 0, 0);
+		for(int state = 1; state < model.getNumberOfStates(); state++) {
+			scores.set(state, 0, Double.NEGATIVE_INFINITY);
+		}
+		if(columnMaxima != null) {
+			columnMaxima[0] = 0;
+			Arrays.fill(upperBounds, 0, model.getNumberOfStates(), Double.NEGATIVE_INFINITY);
+			upperBounds[0] = 0;
+		}
+	}
+	
+	/**
+	 * 'Recursion': computes column l (l >= 1) from the previous columns, only
+	 * going over the actual predecessors (finite incoming transitions) of each
+	 * state. Only reads columns l - {@link CompiledGHMM#getMaximumEmissionLength()}
+	 * to l - 1 (apart from V[0][0], which is always 0), so the states of the
+	 * column may be evaluated in parallel (cf. {@link #setParallelism(int)})
+	 * 
+	 * @param backpointers where to record the argmaxes of each cell, or null
+	 */
+	void computeColumn(ScoreMatrix scores, int l, Backpointers backpointers) {
+		scores.startColumn(l);
+		// the initial state only emits the empty word at the very start; the terminal state is not used here
+		scores.set(0, l, Double.NEGATIVE_INFINITY);
+		scores.set(1, l, Double.NEGATIVE_INFINITY);
+		if(pool != null && backpointers == null) {
+			// the calling thread takes the first group itself
+			ForkJoinTask<?>[] forked = new ForkJoinTask<?>[stateGroups.length - 1];
+			for(int g = 1; g < stateGroups.length; g++) {
+				final int[] group = stateGroups[g];
+				forked[g - 1] = pool.submit(() -> {
+					for(int q : group)
+						computeCell(scores, q, l, null);
+				});
+			}
+			for(int q : stateGroups[0])
+				computeCell(scores, q, l, null);
+			for(ForkJoinTask<?> task : forked)
+				task.join();
+		} else {
+			for(int q = 2; q < model.getNumberOfStates(); q++) {
+				computeCell(scores, q, l, backpointers);
+			}
+		}
+		if(columnMaxima != null) {
+			updateColumnMaximum(scores, l);
+		}
+		computedColumns = Math.max(computedColumns, l);
+	}
+	
+	private void updateColumnMaximum(ScoreMatrix scores, int l) {
+		double max = Double.NEGATIVE_INFINITY;
+		for(int q = 2; q < model.getNumberOfStates(); q++) {
+			max = Math.max(max, scores.get(q, l));
+		}
+		columnMaxima[l & columnMaximaMask] = max;
+	}
+	
+	/**
+	 * @return the least Viterbi-variable in column l that is not pruned by the
+	 *         beam (-infinity without a beam)
+	 */
+	private double getBeamFloor(int l) {
+		return columnMaxima == null ? Double.NEGATIVE_INFINITY : columnMaxima[l & columnMaximaMask] - beamMargin;
+	}
+	
+	/**
+	 * @return the index of the bound of V[q][l] in {@link #upperBounds}
+	 */
+	private int upperBoundIndex(int q, int l) {
+		return (l & columnMaximaMask) * model.getNumberOfStates() + q;
+	}
+	
+	/**
+	 * @param bound the bound of a predecessor, plus the transition
+	 * @param sofar the bound of the cell so far
+	 * @return bound plus the emission, if that can exceed sofar at all (else
+	 *         just bound)
+	 */
+	private double boundCandidate(double bound, double sofar, int qPrime, int q, int lPrime, int l) {
+		if(bound > sofar) {
+			bound += model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
+		}
+		return bound;
+	}
+	
+	/**
+	 * Computes V[q][l], cf. {@link #computeColumn(ScoreMatrix, int, Backpointers)}
+	 */
+	private void computeCell(ScoreMatrix scores, int q, int l, Backpointers backpointers) {
+		HMMState state = model.getState(q);
+		SiteIndex stateSites = sites[q];
+		if((stateSites != null && !stateSites.isPermissibleEnd(l))
+				|| (motifSites[q] != null && !motifSites[q].get(l))) {
+			scores.set(q, l, Double.NEGATIVE_INFINITY);
+			if(upperBounds != null && l > computedColumns) {
+				upperBounds[upperBoundIndex(q, l)] = Double.NEGATIVE_INFINITY;
+			}
+			return;
+		}
+		if(backpointers != null) {
+			backpointers.begin();
+		}
+		int firstLPrime = model.getFirstLPrime(q, l);
+		int lastLPrime = model.getLastLPrime(q, l);
+		int stride = model.getLPrimeStride(q);
+		if(stateSites != null) {
+			firstLPrime = stateSites.getNextStart(firstLPrime, l, stride);
+		}
+		double max = Double.NEGATIVE_INFINITY;
+		long pruned = 0;
+		// with a beam (and not recomputing for the traceback): the bound of the exact variable
+		boolean bounding = upperBounds != null && l > computedColumns;
+		double upper = Double.NEGATIVE_INFINITY;
+		for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+			int qPrime = model.getPredecessorState(k);
+			double logTransition = model.getPredecessorLogTransition(k);
+			if(qPrime == 0) {
+				// coming from the initial state means emitting the entire prefix (V[0][0] = 0)
+				if(l <= state.getSupremumPermissibleEmissionLength()) {
+					double candidate = 0 + logTransition + model.getLogEmissionProbability(0, q, sequence, 0, l);
+					max = Math.max(max, candidate);
+					upper = Math.max(upper, candidate);
+					if(backpointers != null) {
+						backpointers.offer(candidate, 0, 0);
+					}
+				}
+			} else if(!model.isIndependentOfPreviousState(q)) {
+				for(int lPrime = firstLPrime; lPrime <= lastLPrime; lPrime = nextLPrime(stateSites, lPrime, l, stride)) {
+					double previous = scores.get(qPrime, lPrime);
+					if(previous < getBeamFloor(lPrime)) {
+						if(previous > Double.NEGATIVE_INFINITY)
+							pruned++;
+						if(bounding) {
+							upper = Math.max(upper, boundCandidate(upperBounds[upperBoundIndex(qPrime, lPrime)]
+									+ logTransition, upper, qPrime, q, lPrime, l));
+						}
+						continue;
+					}
+					double emission = model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
+					double candidate = previous + logTransition + emission;
+					max = Math.max(max, candidate);
+					if(bounding) {
+						upper = Math.max(upper, upperBounds[upperBoundIndex(qPrime, lPrime)] + logTransition + emission);
+					}
+					if(backpointers != null) {
+						backpointers.offer(candidate, qPrime, lPrime);
+					}
+				}
+			}
+		}
+		
+		if(model.isIndependentOfPreviousState(q)) {
+			// score each emission once, and add it to the best predecessor (adding the
+			// same value is monotone, so this yields exactly the same maximum)
+			for(int lPrime = firstLPrime; lPrime <= lastLPrime; lPrime = nextLPrime(stateSites, lPrime, l, stride)) {
+				double bestPredecessor = Double.NEGATIVE_INFINITY;
+				int bestQPrime = -1;
+				double bestUpper = Double.NEGATIVE_INFINITY;
+				int upperQPrime = -1;
+				double floor = getBeamFloor(lPrime);
+				for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+					int qPrime = model.getPredecessorState(k);
+					if(qPrime == 0)
+						continue;
+					double previous = scores.get(qPrime, lPrime);
+					if(bounding) {
+						double bound = upperBounds[upperBoundIndex(qPrime, lPrime)] + model.getPredecessorLogTransition(k);
+						if(bound > bestUpper) {
+							bestUpper = bound;
+							upperQPrime = qPrime;
+						}
+					}
+					if(previous < floor) {
+						if(previous > Double.NEGATIVE_INFINITY)
+							pruned++;
+						continue;
+					}
+					double candidate = previous + model.getPredecessorLogTransition(k);
+					if(candidate > bestPredecessor) {
+						bestPredecessor = candidate;
+						bestQPrime = qPrime;
+					}
+				}
+				if(bestPredecessor > Double.NEGATIVE_INFINITY) {
+					double emission = model.getLogEmissionProbability(bestQPrime, q, sequence, lPrime, l);
+					max = Math.max(max, bestPredecessor + emission);
+					upper = Math.max(upper, bestUpper + emission);
+					if(backpointers != null) {
+						// all predecessors that tie, exactly as the traceback would compare them
+						for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+							int qPrime = model.getPredecessorState(k);
+							if(qPrime != 0 && scores.get(qPrime, lPrime) >= floor) {
+								backpointers.offer(scores.get(qPrime, lPrime) + model.getPredecessorLogTransition(k)
+										+ emission, qPrime, lPrime);
 							}
 						}
 					}
+				} else if(upperQPrime >= 0) {
+					upper = Math.max(upper, boundCandidate(bestUpper, upper, upperQPrime, q, lPrime, l));
 				}
-				
-				viterbiVariables[q][l] = max;
 			}
-			if (l % 5000 == 0) {
-				System.out.println(" progress: l=" + l + "/" + (sequence.length() + 1));
+		}
+		
+		scores.set(q, l, max);
+		if(bounding) {
+			upperBounds[upperBoundIndex(q, l)] = upper;
+		}
+		if(backpointers != null) {
+			backpointers.store(q, l);
+		}
+		if(pruned > 0 && l > computedColumns) {
+			prunedCells.add(pruned);
+		}
+	}
+	
+	/**
+	 * Read-only view of the Viterbi-variables, for the traceback: keeps a
+	 * checkpoint (the last window columns) every interval columns, and
+	 * recomputes a block of consecutive columns from the nearest checkpoint
+	 * whenever a column outside the current block is requested
+	 */
+	private final class Checkpoints implements ScoreMatrix {
+		private final int window, interval;
+		/** the j-th entry holds columns (j+1)*interval - window + 1 to (j+1)*interval, as [state][column] */
+		private final List<double[][]> saved = new ArrayList<double[][]>();
+		private final RingScoreMatrix block;
+		private int blockFrom = 1, blockTo = 0;
+		
+		private Checkpoints(int window, int interval) {
+			this.window = window;
+			this.interval = interval;
+			block = new RingScoreMatrix(model.getNumberOfStates(), interval + 3 * window + 1);
+		}
+		
+		private void save(ScoreMatrix scores, int column) {
+			double[][] columns = new double[model.getNumberOfStates()][window];
+			for(int q = 0; q < columns.length; q++) {
+				for(int i = 0; i < window; i++) {
+					columns[q][i] = scores.get(q, column - window + 1 + i);
+				}
 			}
-				
+			saved.add(columns);
 		}
 		
-		System.out.println("Computed variables!");
+		/**
+		 * Recomputes the columns around l (at least l - window to l + window, within
+		 * the sequence), starting at the last checkpoint before that range
+		 */
+		private void load(int l) {
+			int j = Math.max(0, (l - window - 1) / interval);
+			int checkpoint = j * interval;
+			int from = j == 0 ? 0 : checkpoint - window + 1;
+			int to = Math.min(sequence.length(), l + window);
+			if(j == 0) {
+				initialiseFirstColumn(block);
+			} else {
+				double[][] columns = saved.get(j - 1);
+				for(int q = 0; q < columns.length; q++) {
+					for(int i = 0; i < window; i++) {
+						block.set(q, from + i, columns[q][i]);
+					}
+				}
+				if(columnMaxima != null) {
+					for(int i = 0; i < window; i++) {
+						updateColumnMaximum(block, from + i);
+					}
+				}
+			}
+			for(int column = checkpoint + 1; column <= to; column++) {
+				computeColumn(block, column, null);
+			}
+			blockFrom = from;
+			blockTo = to;
+		}
+		
+		@Override
+		public double get(int q, int l) {
+			if(l < blockFrom || l > blockTo) {
+				load(l);
+			}
+			return block.get(q, l);
+		}
+		
+		@Override
+		public void set(int q, int l, double value) {
+			throw new UnsupportedOperationException("The checkpointed Viterbi-variables are read-only");
+		}
+	}
+	
+	/**
+	 * @param sites  of the current state, or null
+	 * @param lPrime the current l'
+	 * @param l      the current l
+	 * @param stride of the current state
+	 * @return the next l' to visit (not checked against the upper end of the
+	 *         range)
+	 */
+	static int nextLPrime(SiteIndex sites, int lPrime, int l, int stride) {
+		return sites == null ? lPrime + stride : sites.getNextStart(lPrime + 1, l, stride);
 	}
 	
 	/**
 	 * Computes all most likely parses (and reports progress in System.out)
-	 * @return A List of Parses (where each parse is a list of pairs of a state and the emission-length from that state)
+	 * @return A List of Parses (where each parse is a list of pairs of a state and the emission-length from that state);
+	 *         at most {@link #getMaximumNumberOfParses()}, in the order of {@link ParseGraph#iterator()}
 	 */
 	public List<Parse> computeParses() {
+		return computeParseGraph().getParses(maximumNumberOfParses);
+	}
+	
+	/**
+	 * Computes the Viterbi-variables and traces all most likely parses back, each
+	 * step (q, l) only once, even if it is on several parses (and reports
+	 * progress in System.out)
+	 * 
+	 * @return the graph of all most likely parses (up to the tie tolerance, cf.
+	 *         {@link #setTieTolerance(double)})
+	 */
+	public ParseGraph computeParseGraph() {
 		computeViterbiVariables();
-		ArrayList<ViterbiSeed> workLoad = new ArrayList<ViterbiSeed>();
-		ArrayList<ViterbiSeed> finished = new ArrayList<ViterbiSeed>(); // here put all seeds that reach l=0
+		ParseGraph graph = new ParseGraph(model);
+		int stateCount = model.getNumberOfStates();
+		// nodes by l * stateCount + q; the start (0, 0) is node 0
+		Map<Long, Integer> nodes = new HashMap<Long, Integer>();
+		nodes.put(0L, 0);
+		// traced back from the end of the sequence, so that columns are read in descending order
+		PriorityQueue<Integer> pending = new PriorityQueue<Integer>((a, b) -> graph.getPosition(a) != graph.getPosition(b)
+				? Integer.compare(graph.getPosition(b), graph.getPosition(a))
+				: Integer.compare(graph.getState(a), graph.getState(b)));
 		
 		// Initialisation
 		double initialMax = Double.NEGATIVE_INFINITY;
-		for(int q1 = 2; q1 < model.getNumberOfStates(); q1++) {
-			double candidate = viterbiVariables[q1][sequence.length()] + model.getLogTransitionProbability(q1, 1);
-			if(initialMax <= candidate) {
-				if(initialMax < candidate) {
-					// TODO: is hard exact maximum sensible, or should there be a little double-tolerance?
-					initialMax = candidate;
-					workLoad.clear();
-				}
-				workLoad.add(new ViterbiSeed(model, sequence, q1, sequence.length(), null, abbreviating)); // the ends of the parses point to null.
+		double[] endScores = new double[stateCount];
+		for(int q1 = 2; q1 < stateCount; q1++) {
+			endScores[q1] = viterbiVariables.get(q1, sequence.length()) + model.getLogTransitionToTerminal(q1);
+			initialMax = Math.max(initialMax, endScores[q1]);
+		}
+		List<Integer> ends = new ArrayList<Integer>();
+		for(int q1 = 2; q1 < stateCount; q1++) {
+			// ties within the tolerance of the maximum are kept (exact ties only by default, cf. setTieTolerance)
+			if(endScores[q1] >= initialMax - tieTolerance && !(tieTolerance > 0 && endScores[q1] == Double.NEGATIVE_INFINITY)) {
+				int node = graph.addNode(q1, sequence.length());
+				nodes.put((long) sequence.length() * stateCount + q1, node);
+				ends.add(node);
+				pending.add(node);
 			}
 		}
+		graph.setEnds(toArray(ends));
+		
+		logLikelihood = initialMax;
+		if(columnMaxima != null) {
+			double bound = Double.NEGATIVE_INFINITY;
+			for(int q1 = 2; q1 < stateCount; q1++) {
+				bound = Math.max(bound, upperBounds[upperBoundIndex(q1, sequence.length())]
+						+ model.getLogTransitionToTerminal(q1));
+			}
+			lossBound = bound > logLikelihood ? bound - logLikelihood : 0;
+			System.out.println("Beam of " + beamMargin + " pruned " + getNumberOfPrunedCells()
+					+ " predecessor cells; log-likelihood of the parse: " + logLikelihood
+					+ " (the exact maximum is at most " + lossBound + " higher)");
+		}
 		
 		// 'Recursion': working through the viterbi-variable-matrix
-		while(!workLoad.isEmpty()) {
-			ViterbiSeed current = workLoad.remove(0);
-			List<ViterbiSeed> stepped = current.step(viterbiVariables);
-			if(stepped.size() > 1)
-				System.out.println("Encountered ambiguous parse: |Workload|=" + workLoad.size());
-			for(ViterbiSeed s : stepped) {
-				if(s.isFinished()) {
-					finished.add(s);
-				} else {
-					workLoad.add(s);
+		int next = -1;
+		while(next >= 0 || !pending.isEmpty()) {
+			int node = next >= 0 ? next : pending.poll();
+			next = -1;
+			if(pending.isEmpty()) {
+				// predecessors lie strictly before a node, so no node traced so far can be reached again
+				nodes.clear();
+				nodes.put(0L, 0);
+			}
+			ViterbiSeed current = new ViterbiSeed(model, sequence, graph.getState(node), graph.getPosition(node), null);
+			List<ViterbiSeed> stepped = backpointers != null ? current.step(backpointers)
+					: current.step(viterbiVariables, tieTolerance);
+			if(stepped.size() == 1 && pending.isEmpty()) {
+				// the usual case: a single step back (which need not be looked up)
+				ViterbiSeed s = stepped.get(0);
+				int predecessor = s.getL() == 0 && s.getQ() == 0 ? 0 : graph.addNode(s.getQ(), s.getL());
+				graph.setPredecessors(node, new int[] { predecessor });
+				if(!s.isFinished())
+					next = predecessor;
+				continue;
+			}
+			int[] predecessors = new int[stepped.size()];
+			for(int i = 0; i < predecessors.length; i++) {
+				ViterbiSeed s = stepped.get(i);
+				long key = (long) s.getL() * stateCount + s.getQ();
+				Integer predecessor = nodes.get(key);
+				if(predecessor == null) {
+					predecessor = graph.addNode(s.getQ(), s.getL());
+					nodes.put(key, predecessor);
+					if(!s.isFinished())
+						pending.add(predecessor);
 				}
+				predecessors[i] = predecessor;
 			}
+			graph.setPredecessors(node, predecessors);
 		}
 		
-		// This corresponds to the finalisation described by Stanke on page 15.
-		ArrayList<Parse> parses = new ArrayList<Parse>();
-		for (ViterbiSeed startSeed : finished) {
-			Parse parse = new Parse();
-			ViterbiSeed current = startSeed;
-			while (current.getPrevious() != null) {
-				parse.add(model.getState(current.getPrevious().getQ()), current.getPrevious().getL() - current.getL());
-				current = current.getPrevious();
-			}
-
-			parses.add(parse);
+		if(graph.getNumberOfBranchingNodes() > 0) {
+			long count = graph.countParses();
+			System.out.println("Encountered ambiguous parse: " + (count == Long.MAX_VALUE ? "too many" : count)
+					+ " parses, branching at " + graph.getNumberOfBranchingNodes() + " of " + graph.getNumberOfNodes()
+					+ " steps");
+		}
+		return graph;
+	}
+	
+	/**
+	 * Computes the Viterbi-variables and enumerates the k most likely parses, by
+	 * descending log-likelihood (which is set on each parse, cf.
+	 * {@link Parse#getLogLikelihood()}); the first one is a most likely parse,
+	 * any ties follow it. This always decodes exactly, i.e. without beam, and
+	 * reads the matrix at arbitrary positions, so backpointers are not
+	 * recorded (checkpoints still work, but may recompute columns repeatedly).
+	 * The log-likelihoods are summed from the stored variables, so a lossy
+	 * {@link ScoreStorage} is replaced by DOUBLE here (at its memory).
+	 * Cf. {@link KBestTraceback} for the cost.
+	 * 
+	 * @param k number of parses, at least 1
+	 * @return at most k parses (fewer if the sequence does not have that many)
+	 */
+	public List<Parse> computeKBestParses(int k) {
+		if(k < 1)
+			throw new IllegalArgumentException("Need to return at least one parse, not " + k);
+		boolean recording = recordingBackpointers;
+		double margin = beamMargin;
+		ScoreStorage storage = scoreStorage;
+		recordingBackpointers = false;
+		beamMargin = Double.POSITIVE_INFINITY;
+		if(!storage.isExact())
+			scoreStorage = ScoreStorage.DOUBLE;
+		try {
+			computeViterbiVariables();
+		} finally {
+			recordingBackpointers = recording;
+			beamMargin = margin;
+			scoreStorage = storage;
 		}
 		
-		return parses;
+		KBestTraceback traceback = new KBestTraceback(model, sequence, viterbiVariables);
+		List<Parse> result = new ArrayList<Parse>();
+		while(result.size() < k) {
+			Parse parse = traceback.next();
+			if(parse == null)
+				break;
+			result.add(parse);
+		}
+		logLikelihood = result.isEmpty() ? Double.NEGATIVE_INFINITY : result.get(0).getLogLikelihood();
+		System.out.println("Found the " + result.size() + " best parse(s), touching " + traceback.getNumberOfNodes()
+				+ " steps");
+		return result;
+	}
+	
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
 	}
 	
 }
@@ -1,11 +1,15 @@
 package de.vetter.pogigwasc;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Iterator;
 
+import de.vetter.pogigwasc.states.SiteIndex;
+
 /**
- * Class for traceback/parse-retrieval: Key-method is {@link #step(double[][])},
+ * Class for traceback/parse-retrieval: Key-method is {@link #step(ScoreMatrix)},
  * which will 'spawn' a number (at least 1) of Viterbi-Seeds that have regressed
  * backwards into the sequence: To compute the viterbi-parses, step the initial
  * seeds through the matrix, until they reach the start of the sequence<br>
@@ -17,39 +21,22 @@ import java.util.Iterator;
  */
 public class ViterbiSeed {
 	
-	private GHMM model;
-	private String sequence;
-	private boolean abbreviating = false;
+	private CompiledGHMM model;
+	private EncodedSequence sequence;
 	private int q, l;
 	private ViterbiSeed previous;
 
 	/**
-	 * @param model      the gHMM which is assumed to have produced the sequence
-	 * @param sequence   the total sequence emitted by that gHMM (could also pass
-	 *                   this just to step)
-	 * @param q          current state
-	 * @param l          current position in the sequence
-	 * @param previous   the parent-seed that spawned this one; may be {@code null}
-	 *                   (i.e. this seed is a final seed)
-	 * @param abbreviate whether to abbreviate the computation of the
-	 *                   emission-probabilities by omitting the emission history,
-	 *                   cf. {@link Viterbi#setAbbreviating(boolean)}; defaults to
-	 *                   {@code false}
-	 */
-	public ViterbiSeed(GHMM model, String sequence, int q, int l, ViterbiSeed previous, boolean abbreviate) {
-		this(model, sequence, q, l, previous);
-		this.abbreviating = abbreviate;
-	}
-	
-	/**
-	 * Use default-value for abbreviating, otherwise same as {@link #ViterbiSeed(GHMM, String, int, int, ViterbiSeed, boolean)}
-	 * @param model
-	 * @param sequence
-	 * @param q
-	 * @param l
-	 * @param previous
+	 * @param model    the (compiled) gHMM which is assumed to have produced the
+	 *                 sequence
+	 * @param sequence the total sequence emitted by that gHMM (could also pass
+	 *                 this just to step)
+	 * @param q        current state
+	 * @param l        current position in the sequence
+	 * @param previous the parent-seed that spawned this one; may be {@code null}
+	 *                 (i.e. this seed is a final seed)
 	 */
-	public ViterbiSeed(GHMM model, String sequence, int q, int l, ViterbiSeed previous) {
+	public ViterbiSeed(CompiledGHMM model, EncodedSequence sequence, int q, int l, ViterbiSeed previous) {
 		this.model = model;
 		this.sequence = sequence;
 		this.q = q;
@@ -66,7 +53,7 @@ public class ViterbiSeed {
 	
 	/**
 	 * @return Whether this Seed has reached the start of the sequence -- trying to
-	 *         call {@link #step(double[][])} will then no longer yield results of
+	 *         call {@link #step(ScoreMatrix)} will then no longer yield results of
 	 *         any value
 	 */
 	public boolean isFinished() {
@@ -93,52 +80,232 @@ public class ViterbiSeed {
 	 * the current entry in the viterbi-matrix most probably came). <br>
 	 * For the intended usage, refer to {@link Viterbi#computeParses()}
 	 * 
-	 * @param viterbiVariables
+	 * @param viterbiVariables as computed by {@link Viterbi}; only columns l -
+	 *                         {@link CompiledGHMM#getMaximumEmissionLength()} to
+	 *                         l are read
 	 * @return a list, containing equally probable seeds
 	 */
-	public List<ViterbiSeed> step(double[][] viterbiVariables) {
+	public List<ViterbiSeed> step(ScoreMatrix viterbiVariables) {
+		return step(viterbiVariables, 0);
+	}
+	
+	/**
+	 * Like {@link #step(ScoreMatrix)}, but also yields the seeds that are less
+	 * likely than the most likely one by at most the given tolerance: finds the
+	 * most likely predecessor first, then enumerates those within the tolerance
+	 * of it (cf. {@link #forEachPredecessor(ScoreMatrix, double, PredecessorConsumer)}),
+	 * by state and then position
+	 * 
+	 * @param tolerance in natural log-units, non-negative
+	 */
+	public List<ViterbiSeed> step(ScoreMatrix viterbiVariables, double tolerance) {
+		if (tolerance == 0)
+			return stepToTies(viterbiVariables);
+		double[] max = { Double.NEGATIVE_INFINITY };
+		forEachPredecessor(viterbiVariables, Double.NEGATIVE_INFINITY,
+				(qPrime, lPrime, logTransition, logEmission) -> max[0] = Math.max(max[0],
+						score(viterbiVariables, qPrime, lPrime, logTransition, logEmission)));
+		List<Pair<Integer, Integer>> argmaxes = new ArrayList<Pair<Integer, Integer>>();
+		if (max[0] > Double.NEGATIVE_INFINITY) {
+			forEachPredecessor(viterbiVariables, max[0] - tolerance, (qPrime, lPrime, logTransition,
+					logEmission) -> argmaxes.add(new Pair<Integer, Integer>(qPrime, lPrime)));
+		}
+		Collections.sort(argmaxes, BY_STATE_AND_POSITION);
+		ArrayList<ViterbiSeed> result = new ArrayList<ViterbiSeed>(argmaxes.size());
+		for (Pair<Integer, Integer> p : argmaxes) {
+			result.add(new ViterbiSeed(model, sequence, p.getFirst(), p.getSecond(), this));
+		}
+		return result;
+	}
+	
+	/** the order of enumerating predecessors first, then positions */
+	private static final Comparator<Pair<Integer, Integer>> BY_STATE_AND_POSITION = new Comparator<Pair<Integer, Integer>>() {
+		@Override
+		public int compare(Pair<Integer, Integer> a, Pair<Integer, Integer> b) {
+			int byState = a.getFirst().compareTo(b.getFirst());
+			return byState != 0 ? byState : a.getSecond().compareTo(b.getSecond());
+		}
+	};
+	
+	/**
+	 * @return V[q'][l'] + logTransition + logEmission, the score of a predecessor
+	 *         as the decoder computes it (V[0][0] = 0)
+	 */
+	private static double score(ScoreMatrix viterbiVariables, int qPrime, int lPrime, double logTransition,
+			double logEmission) {
+		double previous = qPrime == 0 ? 0 : viterbiVariables.get(qPrime, lPrime);
+		return (previous + logTransition) + logEmission;
+	}
+	
+	/**
+	 * {@link #step(ScoreMatrix)}: the exact ties only, in a single pass
+	 */
+	private List<ViterbiSeed> stepToTies(ScoreMatrix viterbiVariables) {
 		ArrayList<ViterbiSeed> result = new ArrayList<ViterbiSeed>();
 		
 		double max = Double.NEGATIVE_INFINITY;
 		// here need same optimisations as in Viterbi!
 		ArrayList<Pair<Integer, Integer>> argmaxes = new ArrayList<Pair<Integer, Integer>>();
-		for (int qPrime = 0; qPrime < viterbiVariables.length; qPrime++) {
-			if(qPrime == 1) {
-				// cannot leave terminal state, so no need to check there.
-				continue;
-			}
+		int firstLPrime = model.getFirstLPrime(q, l);
+		int lastLPrime = model.getLastLPrime(q, l);
+		int stride = model.getLPrimeStride(q);
+		SiteIndex sites = model.getState(q).getPermissibleSites(sequence);
+		if (sites != null) {
+			firstLPrime = sites.getNextStart(firstLPrime, l, stride);
+		}
+		for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+			int qPrime = model.getPredecessorState(k);
+			double logTransition = model.getPredecessorLogTransition(k);
 			if (qPrime == 0) {
-				double candidate = viterbiVariables[qPrime][0] + model.getLogTransitionProbability(qPrime, q)
-						+ model.getLogEmissionProbability(qPrime, q, "", sequence.substring(0, l));
-				if (max <= candidate) {
-					if (max < candidate) {
-						argmaxes.clear();
-						max = candidate;
-					}
-					argmaxes.add(new Pair<Integer, Integer>(0, 0));
+				// V[0][0] = 0
+				double candidate = 0 + logTransition
+						+ model.getLogEmissionProbability(qPrime, q, sequence, 0, l);
+				max = offer(argmaxes, max, candidate, 0, 0);
+			} else if (!model.isIndependentOfPreviousState(q)) {
+				for(int lPrime = firstLPrime; lPrime <= lastLPrime; lPrime = Viterbi.nextLPrime(sites, lPrime, l, stride)) {
+					double candidate = viterbiVariables.get(qPrime, lPrime) + logTransition
+							+ model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
+					max = offer(argmaxes, max, candidate, qPrime, lPrime);
 				}
-			} else {
-				for(int lPrime : model.getState(q).iteratePermissibleLPrimes(l)) {
-					double candidate = viterbiVariables[qPrime][lPrime] + model.getLogTransitionProbability(qPrime, q)
-							+ model.getLogEmissionProbability(qPrime, q, 
-									abbreviating ? null : sequence.substring(0, lPrime),
-									sequence.substring(lPrime, l));
-					if(max <= candidate) {
-						if (max < candidate) {
-							argmaxes.clear();
-							max = candidate;
-						}
-						argmaxes.add(new Pair<Integer, Integer>(qPrime, lPrime));
+			}
+		}
+		
+		if (model.isIndependentOfPreviousState(q)) {
+			// as in Viterbi: score each emission only once
+			for (int lPrime = firstLPrime; lPrime <= lastLPrime; lPrime = Viterbi.nextLPrime(sites, lPrime, l, stride)) {
+				double emission = Double.NaN;
+				for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+					int qPrime = model.getPredecessorState(k);
+					if (qPrime == 0)
+						continue;
+					double predecessor = viterbiVariables.get(qPrime, lPrime) + model.getPredecessorLogTransition(k);
+					if (predecessor == Double.NEGATIVE_INFINITY)
+						continue;
+					if (Double.isNaN(emission)) {
+						emission = model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
 					}
+					double candidate = predecessor + emission;
+					max = offer(argmaxes, max, candidate, qPrime, lPrime);
 				}
 			}
+			// restore the order of enumerating predecessors first, then positions
+			Collections.sort(argmaxes, BY_STATE_AND_POSITION);
 		}
 
 		for(Pair<Integer, Integer> p : argmaxes) {
-			result.add(new ViterbiSeed(model, sequence, p.getFirst(), p.getSecond(), this, abbreviating));
+			result.add(new ViterbiSeed(model, sequence, p.getFirst(), p.getSecond(), this));
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Receives the predecessors of a seed, cf.
+	 * {@link ViterbiSeed#forEachPredecessor(ScoreMatrix, PredecessorConsumer)}
+	 */
+	interface PredecessorConsumer {
+		/**
+		 * @param logTransition from qPrime to the seed's state
+		 * @param logEmission   of the seed's state, on sequence[lPrime, l)
+		 */
+		void accept(int qPrime, int lPrime, double logTransition, double logEmission);
+	}
+	
+	/**
+	 * Enumerates every possible predecessor (q', l') of this seed, i.e. all with
+	 * finite Viterbi-variable, transition and emission (not only the most likely
+	 * ones, as {@link #step(ScoreMatrix)} does); the Viterbi-variable of this
+	 * seed is the maximum of V[q'][l'] + logTransition + logEmission over these.
+	 * The initial state is reported as (0, 0).
+	 */
+	void forEachPredecessor(ScoreMatrix viterbiVariables, PredecessorConsumer consumer) {
+		forEachPredecessor(viterbiVariables, Double.NEGATIVE_INFINITY, consumer);
+	}
+	
+	/**
+	 * Like {@link #forEachPredecessor(ScoreMatrix, PredecessorConsumer)}, but
+	 * only enumerates the predecessors whose score V[q'][l'] + logTransition +
+	 * logEmission is at least the given one
+	 */
+	void forEachPredecessor(ScoreMatrix viterbiVariables, double least, PredecessorConsumer consumer) {
+		int firstLPrime = model.getFirstLPrime(q, l);
+		int lastLPrime = model.getLastLPrime(q, l);
+		int stride = model.getLPrimeStride(q);
+		SiteIndex sites = model.getState(q).getPermissibleSites(sequence);
+		if (sites != null) {
+			firstLPrime = sites.getNextStart(firstLPrime, l, stride);
+		}
+		boolean independent = model.isIndependentOfPreviousState(q);
+		for (int lPrime = firstLPrime; lPrime <= lastLPrime; lPrime = Viterbi.nextLPrime(sites, lPrime, l, stride)) {
+			// with an emission independent of the previous state, it is scored once per l'
+			double independentEmission = Double.NaN;
+			for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+				int qPrime = model.getPredecessorState(k);
+				if (qPrime == 0 || viterbiVariables.get(qPrime, lPrime) == Double.NEGATIVE_INFINITY)
+					continue;
+				double emission;
+				if (independent) {
+					if (Double.isNaN(independentEmission))
+						independentEmission = model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
+					emission = independentEmission;
+				} else {
+					emission = model.getLogEmissionProbability(qPrime, q, sequence, lPrime, l);
+				}
+				double logTransition = model.getPredecessorLogTransition(k);
+				if (emission > Double.NEGATIVE_INFINITY
+						&& score(viterbiVariables, qPrime, lPrime, logTransition, emission) >= least)
+					consumer.accept(qPrime, lPrime, logTransition, emission);
+			}
+		}
+		for (int k = model.getPredecessorStart(q); k < model.getPredecessorEnd(q); k++) {
+			if (model.getPredecessorState(k) == 0 && l <= model.getState(q).getSupremumPermissibleEmissionLength()) {
+				double emission = model.getLogEmissionProbability(0, q, sequence, 0, l);
+				double logTransition = model.getPredecessorLogTransition(k);
+				if (emission > Double.NEGATIVE_INFINITY && score(viterbiVariables, 0, 0, logTransition, emission) >= least)
+					consumer.accept(0, 0, logTransition, emission);
+			}
+		}
+	}
+	
+	/**
+	 * Adds (qPrime, lPrime) to the argmaxes if it ties with the maximum so far,
+	 * or replaces them if it exceeds it
+	 * 
+	 * @return the new maximum
+	 */
+	private static double offer(List<Pair<Integer, Integer>> argmaxes, double max, double candidate, int qPrime,
+			int lPrime) {
+		if (candidate < max)
+			return max;
+		if (candidate > max)
+			argmaxes.clear();
+		argmaxes.add(new Pair<Integer, Integer>(qPrime, lPrime));
+		return candidate;
+	}
+	
+	/**
+	 * Like {@link #step(ScoreMatrix)}, but reads the argmaxes that were recorded
+	 * in the forward pass
+	 * 
+	 * @param backpointers as recorded by {@link Viterbi}
+	 * @return a list, containing equally probable seeds (empty if this seed is
+	 *         not on any path)
+	 */
+	List<ViterbiSeed> step(Backpointers backpointers) {
+		int[] argmaxes = backpointers.getArgmaxes(q, l);
+		ArrayList<ViterbiSeed> result = new ArrayList<ViterbiSeed>(argmaxes.length / 2);
+		for (int i = 0; i < argmaxes.length; i += 2) {
+			result.add(new ViterbiSeed(model, sequence, argmaxes[i], argmaxes[i + 1], this));
+		}
+		return result;
+	}
+	
+	/**
+	 * @see #step(ScoreMatrix)
+	 * @param viterbiVariables the entire matrix, as [state][position]
+	 */
+	public List<ViterbiSeed> step(double[][] viterbiVariables) {
+		return step(new FullScoreMatrix(viterbiVariables));
+	}
+	
 }
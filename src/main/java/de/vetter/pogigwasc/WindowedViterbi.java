@@ -0,0 +1,339 @@
+package de.vetter.pogigwasc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.NoncodingState;
+
+/**
+ * Decodes a (very long) sequence in overlapping windows: each window is decoded
+ * on its own by a {@link Viterbi}-instance (in parallel, on a bounded pool of
+ * threads), and consecutive windows are stitched together at an
+ * <i>anchor</i>, i.e. a position in their overlap where both parses switch
+ * from one noncoding emission to another. Thereby, memory grows with the size
+ * of the windows instead of the length of the sequence.<br>
+ *
+ * The result is an approximation of the MAP-parse: a gene is only predicted
+ * as it would be on the whole sequence if the overlap is considerably longer
+ * than a gene. If two windows do not share an anchor, this is counted as a
+ * <i>disagreement</i>, and the later window is decoded again, starting at an
+ * anchor of the earlier one: preferably within the overlap, otherwise further
+ * upstream, but never such that the decoded stretch exceeds two windows (which
+ * bounds memory at twice that of a window). If there is no such anchor, i.e.
+ * no noncoding stretch within a window's length upstream of the overlap,
+ * decoding fails; a larger window or overlap is needed then.<br>
+ *
+ * This relies on every parse of the model starting and ending in a
+ * {@link NoncodingState} (as in {@link LoxodesMagnusGHMM}), so that windows
+ * can be joined at any anchor.
+ */
+public class WindowedViterbi {
+
+	private final CompiledGHMM model;
+	private final EncodedSequence sequence;
+	private final int windowSize;
+	private final int overlap;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private Viterbi.Checkpointing checkpointing = Viterbi.Checkpointing.OFF;
+	private boolean recordingBackpointers = false;
+	private double beamMargin = Double.POSITIVE_INFINITY;
+	private Viterbi.ScoreStorage scoreStorage = Viterbi.ScoreStorage.DOUBLE;
+
+	private int numberOfWindows = 0;
+	private int numberOfDisagreements = 0;
+
+	/**
+	 * @param model      compiled model, shared by all windows
+	 * @param sequence   the sequence to decode
+	 * @param windowSize number of bases per window
+	 * @param overlap    number of bases shared by consecutive windows; should be
+	 *                   well above the length of a gene
+	 * @throws IllegalArgumentException unless 0 &lt; overlap &lt; windowSize
+	 */
+	public WindowedViterbi(CompiledGHMM model, EncodedSequence sequence, int windowSize, int overlap) {
+		if (overlap < 1 || overlap >= windowSize) {
+			throw new IllegalArgumentException(
+					"The overlap (" + overlap + ") has to be positive and less than the window size (" + windowSize + ")");
+		}
+		this.model = model;
+		this.sequence = sequence;
+		this.windowSize = windowSize;
+		this.overlap = overlap;
+	}
+
+	/**
+	 * @param threads maximal number of windows decoded at the same time
+	 */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("Need at least one thread, not " + threads);
+		this.threads = threads;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param checkpointing used for every window, cf.
+	 *                      {@link Viterbi#setCheckpointing(Viterbi.Checkpointing)}
+	 */
+	public void setCheckpointing(Viterbi.Checkpointing checkpointing) {
+		this.checkpointing = checkpointing;
+	}
+
+	/**
+	 * @param record used for every window, cf.
+	 *               {@link Viterbi#setRecordingBackpointers(boolean)}
+	 */
+	public void setRecordingBackpointers(boolean record) {
+		this.recordingBackpointers = record;
+	}
+
+	/**
+	 * @param margin used for every window, cf.
+	 *               {@link Viterbi#setBeamMargin(double)}
+	 */
+	public void setBeamMargin(double margin) {
+		this.beamMargin = margin;
+	}
+
+	/**
+	 * @param storage used for every window, cf.
+	 *                {@link Viterbi#setScoreStorage(Viterbi.ScoreStorage)}
+	 */
+	public void setScoreStorage(Viterbi.ScoreStorage storage) {
+		this.scoreStorage = storage;
+	}
+
+	/**
+	 * @return the number of windows of the last run
+	 */
+	public int getNumberOfWindows() {
+		return numberOfWindows;
+	}
+
+	/**
+	 * @return the number of consecutive windows in the last run that did not
+	 *         share an anchor (and had to be decoded again)
+	 */
+	public int getNumberOfDisagreements() {
+		return numberOfDisagreements;
+	}
+
+	/**
+	 * Decodes all windows, stitches them together and reports window size,
+	 * overlap and the number of disagreements in System.out
+	 *
+	 * @return a parse of the whole sequence (of each window, only the first of
+	 *         several most likely parses is used)
+	 * @throws IllegalStateException if some window has no parse at all, or if two
+	 *                               windows share no anchor, and no anchor is
+	 *                               close enough to decode the later window again
+	 */
+	public Parse computeParse() {
+		int step = windowSize - overlap;
+		List<int[]> windows = new ArrayList<int[]>();
+		for (int start = 0;; start += step) {
+			int end = Math.min(start + windowSize, sequence.length());
+			windows.add(new int[] { start, end });
+			if (end == sequence.length())
+				break;
+		}
+		numberOfWindows = windows.size();
+		numberOfDisagreements = 0;
+		System.out.println("Decoding " + numberOfWindows + " window(s) of " + windowSize + " bases, overlapping by "
+				+ overlap + " bases");
+
+		List<Segmentation> decoded = decodeAll(windows);
+
+		Segmentation stitched = decoded.get(0);
+		int lastCut = 0;
+		for (int w = 1; w < windows.size(); w++) {
+			int start = windows.get(w)[0];
+			int end = stitched.getEnd();
+			int middle = (start + end) / 2;
+			Segmentation next = decoded.get(w);
+
+			int cut = closestAnchor(stitched, next, Math.max(lastCut, start), end, middle);
+			if (cut < 0) {
+				numberOfDisagreements++;
+				int windowEnd = windows.get(w)[1];
+				// decoding again from cut covers [cut, windowEnd), at most two windows
+				int limit = Math.max(lastCut, windowEnd - 2 * windowSize);
+				cut = closestAnchor(stitched, null, Math.max(limit, start), end, middle);
+				if (cut < 0)
+					cut = closestAnchor(stitched, null, limit, end, middle);
+				if (cut < 0 && lastCut >= windowEnd - 2 * windowSize)
+					cut = lastCut;
+				if (cut < 0) {
+					throw new IllegalStateException("Windows " + (w - 1) + " and " + w
+							+ " share no anchor, and the parse has none in [" + limit + ", " + end
+							+ "): choose a larger window or overlap than " + windowSize + " and " + overlap);
+				}
+				System.out.println("Windows " + (w - 1) + " and " + w + " share no anchor, decoding again from " + cut);
+				next = decode(cut, windowEnd);
+			}
+			stitched.truncate(cut);
+			stitched.append(next, cut);
+			lastCut = cut;
+		}
+
+		System.out.println("Stitched " + numberOfWindows + " window(s), " + numberOfDisagreements
+				+ " disagreement(s)");
+		return stitched.toParse();
+	}
+
+	/**
+	 * Decodes the given windows on a pool of at most {@link #getThreads()}
+	 * threads
+	 */
+	private List<Segmentation> decodeAll(List<int[]> windows) {
+		List<Segmentation> result = new ArrayList<Segmentation>();
+		if (windows.size() == 1) {
+			result.add(decode(0, sequence.length()));
+			return result;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, windows.size()));
+		try {
+			List<Future<Segmentation>> futures = new ArrayList<Future<Segmentation>>();
+			for (final int[] window : windows) {
+				futures.add(pool.submit(() -> decode(window[0], window[1])));
+			}
+			for (Future<Segmentation> future : futures) {
+				result.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while decoding windows", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		return result;
+	}
+
+	/**
+	 * @return the first most likely parse of sequence[start, end)
+	 */
+	private Segmentation decode(int start, int end) {
+		Viterbi viterbi = new Viterbi(model, sequence.subsequence(start, end));
+		viterbi.setCheckpointing(checkpointing);
+		viterbi.setRecordingBackpointers(recordingBackpointers);
+		viterbi.setBeamMargin(beamMargin);
+		viterbi.setScoreStorage(scoreStorage);
+		List<Parse> parses = viterbi.computeParses();
+		if (parses.isEmpty())
+			throw new IllegalStateException("No parse for the window [" + start + ", " + end + ")");
+		return new Segmentation(parses.get(0), start);
+	}
+
+	/**
+	 * @param other if not null, the anchor has to be one of other as well
+	 * @return the anchor p of first (with from &lt; p &lt; to) that is closest
+	 *         to middle (the smaller one on ties), or -1 if there is none
+	 */
+	private static int closestAnchor(Segmentation first, Segmentation other, int from, int to, int middle) {
+		int best = -1;
+		for (int i = first.indexOf(from + 1, true); i < first.size && first.starts[i] < to; i++) {
+			int p = first.starts[i];
+			if (first.isAnchor(i) && (other == null || other.isAnchor(other.indexOf(p, false)))
+					&& (best < 0 || Math.abs(p - middle) < Math.abs(best - middle))) {
+				best = p;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * A parse in terms of absolute start positions of its steps, which can be cut
+	 * and joined
+	 */
+	private static class Segmentation {
+		private HMMState[] states;
+		private int[] starts;
+		private int size;
+		private int end;
+
+		Segmentation(Parse parse, int offset) {
+			size = parse.getNumberOfSteps();
+			states = new HMMState[Math.max(size, 1)];
+			starts = new int[Math.max(size, 1)];
+			int position = offset;
+			for (int i = 0; i < size; i++) {
+				states[i] = parse.get(i).getFirst();
+				starts[i] = position;
+				position += parse.get(i).getSecond();
+			}
+			end = position;
+		}
+
+		int getEnd() {
+			return end;
+		}
+
+		/**
+		 * @param atLeast whether to return the first step starting at or after
+		 *                position if no step starts exactly there
+		 * @return index of the step starting at position; otherwise -1 (or the
+		 *         first step after it, cf. atLeast)
+		 */
+		int indexOf(int position, boolean atLeast) {
+			int index = Arrays.binarySearch(starts, 0, size, position);
+			if (index >= 0)
+				return index;
+			return atLeast ? -index - 1 : -1;
+		}
+
+		/**
+		 * @return whether the steps index-1 and index are both noncoding
+		 */
+		boolean isAnchor(int index) {
+			return index > 0 && index < size && states[index - 1] instanceof NoncodingState
+					&& states[index] instanceof NoncodingState;
+		}
+
+		/**
+		 * Drops every step from position on (a step has to start there)
+		 */
+		void truncate(int position) {
+			size = indexOf(position, false);
+			end = position;
+		}
+
+		/**
+		 * Appends the steps of other from position on (a step of other has to start
+		 * there)
+		 */
+		void append(Segmentation other, int position) {
+			int from = other.indexOf(position, false);
+			int count = other.size - from;
+			if (size + count > states.length) {
+				states = Arrays.copyOf(states, Math.max(size + count, 2 * states.length));
+				starts = Arrays.copyOf(starts, states.length);
+			}
+			System.arraycopy(other.states, from, states, size, count);
+			System.arraycopy(other.starts, from, starts, size, count);
+			size += count;
+			end = other.end;
+		}
+
+		Parse toParse() {
+			Parse parse = new Parse();
+			for (int i = 0; i < size; i++)
+				parse.add(states[i], (i + 1 < size ? starts[i + 1] : end) - starts[i]);
+			return parse;
+		}
+	}
+}
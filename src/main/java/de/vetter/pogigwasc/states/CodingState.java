@@ -1,9 +1,7 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
-import de.vetter.pogigwasc.Utilities;
 
 /**
  * GHMM-State representation of a CDS: Always emits a single codon (permissible lengths={3}) 
@@ -19,21 +17,21 @@ public class CodingState extends HMMStateWithStrandAndParameters {
 	}
 
 	/**
-	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int, java.lang.String, java.lang.String)
+	 * On packed contigs, the score is read from the {@link CodonScoreTrack}
+	 * (computed once per contig and strand)
+	 * 
+	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int, EncodedSequence, int, int)
 	 */
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if(newEmission.length() != 3)
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		if(end - start != 3)
 			return Double.NEGATIVE_INFINITY;
 		
-		if(isReverse())
-			newEmission = Utilities.reverseComplement(newEmission);
-		
-		double result = 0;
-		for(int i = 0; i < 3; i++)
-			result += parameters.getLogBaseProbabilityCDS(newEmission.charAt(i), i);
-		
-		return result;
+		CodonScoreTrack track = getCodonScoreTrack(sequence, start, end);
+		if(track != null)
+			return track.getCodingScore(end);
+		return parameters.getLogCodonProbabilityCDS(ModelParameters.codonIndex(getBaseOnStrand(sequence, start, end, 0),
+				getBaseOnStrand(sequence, start, end, 1), getBaseOnStrand(sequence, start, end, 2)));
 	}
 	
 	/**
@@ -46,33 +44,21 @@ public class CodingState extends HMMStateWithStrandAndParameters {
 	}
 	
 	/**
-	 * CDS allows only steps of size 3 -> thus, iterate only once
-	 * @see de.vetter.pogigwasc.states.HMMState#iteratePermissibleLPrimes(int)
+	 * A codon is scored the same after any previous state
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - 3);
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						int result = currentLPrime;
-						currentLPrime = l;
-						return result;
-					}
-				};
-			}
-			
-		};
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
+	/**
+	 * CDS allows only steps of size 3 -> thus, only one l' to check
+	 * @see de.vetter.pogigwasc.states.HMMState#getFixedEmissionLength()
+	 */
+	@Override
+	public int getFixedEmissionLength() {
+		return 3;
 	}
 	
 
@@ -0,0 +1,174 @@
+package de.vetter.pogigwasc.states;
+
+import java.util.Arrays;
+
+import de.vetter.pogigwasc.EncodedSequence;
+import de.vetter.pogigwasc.ModelParameters;
+import de.vetter.pogigwasc.Utilities;
+
+/**
+ * Per-contig and per-strand tracks of the emissions made of codons, from which
+ * {@link CodingState}, {@link StopRegionState} and {@link StartRegionState}
+ * read their scores in constant time: the log-probability of the codon (as CDS)
+ * ending at every position, i.e. in all three frames, and the score of the stop
+ * and start region ending at every position. All are computed once, in a
+ * linear pass over the contig, and shared by every thread decoding it.<br>
+ *
+ * Each value is summed in exactly the order in which the state would score the
+ * emission itself (a stop region as the sum of its codons from the first to
+ * the last), so decoding with the tracks yields the very same scores.<br>
+ *
+ * Positions are ends (exclusive) of emissions on the (forward) sequence; on
+ * the reverse strand, the emission [end - size, end) is read from end leftwards.
+ */
+final class CodonScoreTrack {
+
+	/**
+	 * Key for {@link EncodedSequence#getPrecomputed(EncodedSequence.Precomputation)}:
+	 * all codon-emitting states of one strand and parameter set share a single
+	 * track
+	 */
+	static final class Key implements EncodedSequence.Precomputation<CodonScoreTrack> {
+		private final ModelParameters parameters;
+		private final boolean strand;
+
+		Key(ModelParameters parameters, boolean strand) {
+			this.parameters = parameters;
+			this.strand = strand;
+		}
+
+		@Override
+		public CodonScoreTrack compute(EncodedSequence sequence) {
+			return new CodonScoreTrack(sequence, parameters, strand);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return parameters == other.parameters && strand == other.strand;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(parameters) * 2 + (strand ? 1 : 0);
+		}
+	}
+
+	/** the stop and start codon, cf. {@link ModelParameters#codonIndex(int, int, int)} */
+	private static final int TGA = ModelParameters.codonIndex(0, 3, 2), ATG = ModelParameters.codonIndex(2, 0, 3);
+
+	/** score (as CDS) of the codon ending at p */
+	private final double[] codingScores;
+	/** score of the stop region ending at p (-infinity if it does not end in TGA) */
+	private final double[] stopRegionScores;
+	/** score of the start region ending at p (-infinity if it does not end in ATG) */
+	private final double[] startRegionScores;
+
+	/**
+	 * @param sequence   has to be packed, cf. {@link EncodedSequence#isPacked()}
+	 * @param parameters to take the codon and base probabilities from
+	 * @param strand     whether on the forward strand
+	 */
+	CodonScoreTrack(EncodedSequence sequence, ModelParameters parameters, boolean strand) {
+		int length = sequence.length();
+		int stopSize = parameters.getStopRegionSize(), startSize = parameters.getStartRegionSize();
+		codingScores = new double[length + 1];
+		stopRegionScores = new double[length + 1];
+		startRegionScores = new double[length + 1];
+		Arrays.fill(codingScores, 0, Math.min(3, length + 1), Double.NEGATIVE_INFINITY);
+		Arrays.fill(stopRegionScores, Double.NEGATIVE_INFINITY);
+		Arrays.fill(startRegionScores, Double.NEGATIVE_INFINITY);
+
+		// the codons ending at p (as read on the strand), and their scores within a stop region
+		byte[] codons = new byte[length + 1];
+		double[] stopCodonScores = new double[length + 1];
+		// the last three bases, the one read first in the highest bits
+		int codon = 0;
+		for (int p = 1; p <= length; p++) {
+			int base = strand ? sequence.baseAt(p - 1) : Utilities.complementIndex(sequence.baseAt(p - 1));
+			codon = strand ? ((codon << 2) | base) & 63 : (codon >>> 2) | (base << 4);
+			if (p < 3)
+				continue;
+			codons[p] = (byte) codon;
+			codingScores[p] = parameters.getLogCodonProbabilityCDS(codon);
+			stopCodonScores[p] = parameters.getLogCodonProbabilityStopRegion(codon);
+		}
+
+		// a region ends with its motif when read on the strand, i.e. on the reverse
+		// strand, the motif is the codon ending at start + 3
+		for (int p = stopSize; p <= length; p++) {
+			if (codons[strand ? p : p - stopSize + 3] == TGA)
+				stopRegionScores[p] = sumStopRegion(stopCodonScores, strand, p - stopSize, p);
+		}
+		for (int p = startSize; p <= length; p++) {
+			if (codons[strand ? p : p - startSize + 3] == ATG)
+				startRegionScores[p] = scoreStartRegion(sequence, parameters, strand, p - startSize, p);
+		}
+	}
+
+	/**
+	 * @return the sum of the codons before the final TGA of the stop region
+	 *         [start, end), from the first to the last, as in
+	 *         {@link StopRegionState}
+	 */
+	private static double sumStopRegion(double[] stopCodonScores, boolean strand, int start, int end) {
+		double result = 0;
+		// the codon at offset i of the region ends at start + i + 3, or (reverse) at end - i
+		for (int i = 0; i < end - start - 3; i += 3)
+			result += stopCodonScores[strand ? start + i + 3 : end - i];
+		return result;
+	}
+
+	/**
+	 * @return the score of the bases before the final ATG of the start region
+	 *         [start, end), as in {@link StartRegionState}
+	 */
+	private static double scoreStartRegion(EncodedSequence sequence, ModelParameters parameters, boolean strand,
+			int start, int end) {
+		int size = end - start;
+		if (parameters.isStartRegionUpstreamTabulated()) {
+			int kmer = 0;
+			for (int i = 0; i < size - 3; i++)
+				kmer = (kmer << 2) | baseOnStrand(sequence, strand, start, end, i);
+			return parameters.getLogKmerProbabilityStartRegionUpstream(kmer);
+		}
+		double result = 0;
+		for (int i = 0; i < size - 3; i++)
+			result += parameters.getLogBaseProbabilityStartRegion(baseOnStrand(sequence, strand, start, end, i));
+		return result;
+	}
+
+	/**
+	 * @return the i-th base of the emission [start, end) as read on the strand,
+	 *         cf. {@link HMMStateWithStrandAndParameters#getBaseOnStrand(EncodedSequence, int, int, int)}
+	 */
+	private static int baseOnStrand(EncodedSequence sequence, boolean strand, int start, int end, int i) {
+		return strand ? sequence.baseAt(start + i) : Utilities.complementIndex(sequence.baseAt(end - 1 - i));
+	}
+
+	/**
+	 * @param end end (exclusive) of a codon
+	 * @return its log-probability as CDS
+	 */
+	double getCodingScore(int end) {
+		return codingScores[end];
+	}
+
+	/**
+	 * @param end end (exclusive) of a stop region
+	 * @return its log emission probability
+	 */
+	double getStopRegionScore(int end) {
+		return stopRegionScores[end];
+	}
+
+	/**
+	 * @param end end (exclusive) of a start region
+	 * @return its log emission probability
+	 */
+	double getStartRegionScore(int end) {
+		return startRegionScores[end];
+	}
+}
@@ -1,6 +1,6 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
+import de.vetter.pogigwasc.EncodedSequence;
 
 /**
  * States like the old start-codon only emit exactly one sequence with probability one.
@@ -19,7 +19,23 @@ public class FixedSequenceState extends HMMState {
 	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
 		return newEmission.equals(sequence) ? 0 : Double.NEGATIVE_INFINITY;
 	}
+	
+	@Override
+	public double computeLogEmissionProbability(int previousState, EncodedSequence emission, int start, int end) {
+		if(end - start != sequence.length())
+			return Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < sequence.length(); i++) {
+			if(emission.charAt(start + i) != sequence.charAt(i))
+				return Double.NEGATIVE_INFINITY;
+		}
+		return 0;
+	}
 
+
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
 	
 	public String getSequence() {
 		return sequence;
@@ -42,28 +58,7 @@ public class FixedSequenceState extends HMMState {
 	 * Can only make step of size |fixedSequence|
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - sequence.length());
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						int result = currentLPrime;
-						currentLPrime = l;
-						return result;
-					}
-				};
-			}
-			
-		};
+	public int getFixedEmissionLength() {
+		return sequence.length();
 	}
 }
@@ -2,6 +2,8 @@ package de.vetter.pogigwasc.states;
 
 import java.util.Iterator;
 
+import de.vetter.pogigwasc.EncodedSequence;
+
 /**
  * Abstract class to generalise over different types of states (mainly
  * differentiated by their emmission distributions)
@@ -11,6 +13,9 @@ import java.util.Iterator;
  */
 public abstract class HMMState {
 	
+	/** Returned by {@link #getFixedEmissionLength()} by states without a fixed emission length */
+	public static final int VARIABLE_EMISSION_LENGTH = -1;
+	
 	private String name; // mainly for output/human-readability
 	
 	public HMMState(String name) {
@@ -35,27 +40,137 @@ public abstract class HMMState {
 	}
 	
 	/**
-	 * Override this in inheriting states to limit the iteration to only sensible lPrimes.
+	 * Override this in inheriting states whose emission probability does not
+	 * depend on the previous state: The decoder then scores every emission only
+	 * once, instead of once for each possible predecessor.
+	 * 
+	 * @return whether {@link #computeLogEmissionProbability(int, String, String)}
+	 *         ignores its first argument ({@code false} by default)
+	 */
+	public boolean isIndependentOfPreviousState() {
+		return false;
+	}
+	
+	/**
+	 * Override this in inheriting states that only ever emit words of one
+	 * particular length: The decoder then only has to check the single l' = l -
+	 * length, and the range-methods below need not be overridden.
+	 * 
+	 * @return the only permissible emission length, or
+	 *         {@link #VARIABLE_EMISSION_LENGTH} (by default)
+	 */
+	public int getFixedEmissionLength() {
+		return VARIABLE_EMISSION_LENGTH;
+	}
+	
+	/**
+	 * Override this (together with {@link #getMaximumLPrime(int)} and possibly
+	 * {@link #getLPrimeStride()}) in inheriting states to limit the iteration to
+	 * only sensible lPrimes. The permissible lPrimes are min, min+stride, ... up
+	 * to max (inclusive); values below 0 are skipped by the decoder.
+	 * 
+	 * @param l from viterbi-recursion: the end (exclusive) of the emission
+	 * @return the smallest permissible start of the emission (0 in the basic
+	 *         form)
+	 */
+	public int getMinimumLPrime(int l) {
+		int fixedLength = getFixedEmissionLength();
+		return fixedLength == VARIABLE_EMISSION_LENGTH ? 0 : l - fixedLength;
+	}
+	
+	/**
+	 * @see #getMinimumLPrime(int)
+	 * @param l from viterbi-recursion: the end (exclusive) of the emission
+	 * @return the largest permissible start of the emission (l-1 in the basic
+	 *         form)
+	 */
+	public int getMaximumLPrime(int l) {
+		int fixedLength = getFixedEmissionLength();
+		return fixedLength == VARIABLE_EMISSION_LENGTH ? l - 1 : l - fixedLength;
+	}
+	
+	/**
+	 * @see #getMinimumLPrime(int)
+	 * @return the distance between two consecutive permissible lPrimes (1 in the
+	 *         basic form)
+	 */
+	public int getLPrimeStride() {
+		return 1;
+	}
+	
+	/**
+	 * Override this in inheriting states whose emissions always contain a
+	 * particular motif at a fixed distance from their end (e.g. a start codon):
+	 * The decoder then skips this state wherever the motif does not occur. Any
+	 * emission without the motif must have probability 0.
+	 * 
+	 * @return the motif, or {@code null} (by default) if there is none
+	 */
+	public RequiredMotif getRequiredMotif() {
+		return null;
+	}
+	
+	/**
+	 * Override this in inheriting states that can only start and end at
+	 * particular sites of the sequence (e.g. introns at splice sites): The decoder
+	 * then only visits l' that are permissible starts, and only at l that are
+	 * permissible ends (within the range given by {@link #getMinimumLPrime(int)}
+	 * etc.). Any emission not starting and ending at such sites must have
+	 * probability 0.<br>
+	 * Compute the index via {@link EncodedSequence#getPrecomputed(EncodedSequence.Precomputation)},
+	 * as this is asked once per decoding.
+	 * 
+	 * @param sequence the sequence that is to be decoded
+	 * @return the index of permissible sites on that sequence, or {@code null} (by
+	 *         default) if all positions are permissible
+	 */
+	public SiteIndex getPermissibleSites(EncodedSequence sequence) {
+		return null;
+	}
+	
+	/**
+	 * @param l from viterbi-recursion: the end (exclusive) of the emission
+	 * @return the smallest non-negative permissible lPrime (which is larger than
+	 *         {@link #getMaximumLPrime(int)} if there is none)
+	 */
+	public final int getFirstPermissibleLPrime(int l) {
+		int min = getMinimumLPrime(l);
+		if(min >= 0)
+			return min;
+		int stride = getLPrimeStride();
+		return min + ((stride - 1 - min) / stride) * stride;
+	}
+	
+	/**
+	 * Convenience-method, enumerating the range given by
+	 * {@link #getMinimumLPrime(int)}, {@link #getMaximumLPrime(int)} and
+	 * {@link #getLPrimeStride()}; the decoder uses these directly, to avoid
+	 * allocating (and boxing) anything.
 	 * 
 	 * @param l from viterbi-recursion: this is the upper limit (exclusive) of the values that are to be iterated.
-	 * @return an iterator iterating from 0 to l-1 (inclusive), in the basic form
+	 * @return an iterator iterating over the permissible lPrimes, in ascending order
 	 */
 	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
+		final int min = getFirstPermissibleLPrime(l);
+		final int max = getMaximumLPrime(l);
+		final int stride = getLPrimeStride();
 		return new Iterable<Integer>() {
 
 			@Override
 			public Iterator<Integer> iterator() {
 				return new Iterator<Integer>() {
-					private int currentLPrime = 0;
+					private int currentLPrime = min;
 					
 					@Override
 					public boolean hasNext() {
-						return currentLPrime < l;
+						return currentLPrime <= max;
 					}
 
 					@Override
 					public Integer next() {
-						return currentLPrime++;
+						int result = currentLPrime;
+						currentLPrime += stride;
+						return result;
 					}
 				};
 			}
@@ -68,13 +183,38 @@ public abstract class HMMState {
 	 * current State, having before been in previousState and having (from the
 	 * start) previously emitted emissionHistory.<br>
 	 * 
-	 * To be implemented by concrete instances (probably ad-hoc-inheritors)
+	 * To be implemented by concrete instances (probably ad-hoc-inheritors). The
+	 * decoder uses {@link #computeLogEmissionProbability(int, EncodedSequence, int, int)},
+	 * which by default falls back to this method, with the emission history
+	 * built from the sequence (unless the decoder is abbreviating, cf.
+	 * Viterbi#setAbbreviating(boolean)).
 	 * 
 	 * @param previousState
-	 * @param emissionHistory
+	 * @param emissionHistory {@code null} if the decoder is abbreviating
 	 * @param newEmission
 	 * @return log_2 of e as specified by Stanke.
 	 */
 	public abstract double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission);
+	
+	/**
+	 * Index-based variant of
+	 * {@link #computeLogEmissionProbability(int, String, String)}, which is the one
+	 * used by the decoder: The new emission is sequence[start, end), and the
+	 * emission history is sequence[0, start).<br>
+	 * 
+	 * Override this to score emissions directly on the encoded sequence; by
+	 * default, the new emission and the history are handed to the String-based
+	 * method as substrings (which takes time linear in start, for every
+	 * emission).
+	 * 
+	 * @param previousState
+	 * @param sequence      the entire sequence being decoded
+	 * @param start         start (inclusive) of the new emission
+	 * @param end           end (exclusive) of the new emission
+	 * @return log_2 of e as specified by Stanke.
+	 */
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		return computeLogEmissionProbability(previousState, sequence.substring(0, start), sequence.substring(start, end));
+	}
 
 }
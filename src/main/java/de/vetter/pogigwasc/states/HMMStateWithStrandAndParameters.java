@@ -1,11 +1,18 @@
 package de.vetter.pogigwasc.states;
 
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
+import de.vetter.pogigwasc.Utilities;
 
 public abstract class HMMStateWithStrandAndParameters extends HMMState {
 
+	/** indices of the bases, cf. {@link Utilities#baseToIndex(char)} */
+	protected static final int T = 0, C = 1, A = 2, G = 3;
+	
 	private boolean strand;
 	protected ModelParameters parameters;
+	/** key of the {@link CodonScoreTrack} of this strand and parameter set */
+	private final CodonScoreTrack.Key codonScoreTrackKey;
 	
 	/**
 	 * 
@@ -22,8 +29,55 @@ public abstract class HMMStateWithStrandAndParameters extends HMMState {
 		super(name);
 		this.strand = strand;
 		this.parameters = parameters;
+		this.codonScoreTrackKey = new CodonScoreTrack.Key(parameters, strand);
 	}
 
+	/**
+	 * Adapter for the String-based API: encodes the new emission and scores it
+	 * via {@link #computeLogEmissionProbability(int, EncodedSequence, int, int)}
+	 * 
+	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int,
+	 *      java.lang.String, java.lang.String)
+	 */
+	@Override
+	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+		return computeLogEmissionProbability(previousState, new EncodedSequence(newEmission), 0, newEmission.length());
+	}
+	
+	@Override
+	public abstract double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start,
+			int end);
+	
+	/**
+	 * @param sequence the sequence being decoded
+	 * @param start    start (inclusive) of an emission
+	 * @param end      end (exclusive) of that emission
+	 * @param i        position within the emission
+	 * @return index of the i-th base of the emission, as read on this state's
+	 *         strand (i.e. of its reverse complement, for the reverse strand,
+	 *         which is read from the shared
+	 *         {@link EncodedSequence#getReverseComplement()})
+	 */
+	protected final int getBaseOnStrand(EncodedSequence sequence, int start, int end, int i) {
+		return strand ? sequence.baseAt(start + i)
+				: sequence.getReverseComplement().baseAt(sequence.length() - end + i);
+	}
+	
+	/**
+	 * @param sequence the sequence being decoded
+	 * @param start    start (inclusive) of an emission
+	 * @param end      end (exclusive) of that emission
+	 * @return the (shared) {@link CodonScoreTrack} of the sequence on this
+	 *         state's strand, or null if the emission is better scored directly:
+	 *         if the sequence is not packed, or is nothing but the emission (as
+	 *         in the String-based API)
+	 */
+	final CodonScoreTrack getCodonScoreTrack(EncodedSequence sequence, int start, int end) {
+		if (!sequence.isPacked() || sequence.length() == end - start)
+			return null;
+		return sequence.getPrecomputed(codonScoreTrackKey);
+	}
+	
 	/**
 	 * @return whether this state is concerned with the forward strand
 	 */
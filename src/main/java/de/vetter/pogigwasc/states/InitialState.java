@@ -1,5 +1,7 @@
 package de.vetter.pogigwasc.states;
 
+import de.vetter.pogigwasc.EncodedSequence;
+
 /**
  * The special initial state (cf. Stanke's dissertation): Can only emit the
  * empty word. It has the reserved name {@link #INITIAL_STATE_NAME}
@@ -21,6 +23,16 @@ public class InitialState extends HMMState {
 		return newEmission.length() == 0 ? 0 : Double.NEGATIVE_INFINITY;
 	}
 
+	@Override
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		return end == start ? 0 : Double.NEGATIVE_INFINITY;
+	}
+
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+
 	
 	
 }
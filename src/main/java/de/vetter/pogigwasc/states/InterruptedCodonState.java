@@ -1,9 +1,7 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
-import de.vetter.pogigwasc.Utilities;
 
 /**
  * State for modeling codons interrupted by an intron: Such a codo-part has a
@@ -26,20 +24,19 @@ public class InterruptedCodonState extends HMMStateWithStrandAndParameters {
 	}
 	
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if (newEmission.length() != length)
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		if (end - start != length)
 			return Double.NEGATIVE_INFINITY;
 
 		double logProbability = 0;
 		
 		if(isReverse()) {
-			newEmission = Utilities.reverseComplement(newEmission);
 			for (int i = 0; i < length; i++) {
-				logProbability += parameters.getLogBaseProbabilityCDS(newEmission.charAt(i), left ? i + 3 - getLength() : i);
+				logProbability += parameters.getLogBaseProbabilityCDS(getBaseOnStrand(sequence, start, end, i), left ? i + 3 - getLength() : i);
 			}
 		} else {
 			for (int i = 0; i < length; i++) {
-				logProbability += parameters.getLogBaseProbabilityCDS(newEmission.charAt(i), left ? i : (i + 3 - getLength()));
+				logProbability += parameters.getLogBaseProbabilityCDS(getBaseOnStrand(sequence, start, end, i), left ? i : (i + 3 - getLength()));
 			}
 		}
 		return logProbability;
@@ -61,33 +58,21 @@ public class InterruptedCodonState extends HMMStateWithStrandAndParameters {
 		return length;
 	}
 	
+	/**
+	 * The part of a codon is scored the same after any previous state
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
+	 */
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
 	/**
 	 * constant length -> only one previous l' to check
-	 * @see de.vetter.pogigwasc.states.HMMState#iteratePermissibleLPrimes(int)
+	 * @see de.vetter.pogigwasc.states.HMMState#getFixedEmissionLength()
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - length);
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						int result = currentLPrime;
-						currentLPrime = l;
-						return result;
-					}
-				};
-			}
-			
-		};
+	public int getFixedEmissionLength() {
+		return length;
 	}
 }
@@ -0,0 +1,161 @@
+package de.vetter.pogigwasc.states;
+
+import de.vetter.pogigwasc.EncodedSequence;
+import de.vetter.pogigwasc.ModelParameters;
+import de.vetter.pogigwasc.Utilities;
+
+/**
+ * Per-contig and per-strand table, from which the base usage of any intron can
+ * be read in constant time (cf. {@link IntronState}): the log-probabilities of
+ * the interior bases are kept as (compensated) cumulative sums, and the
+ * scores of the splice donor (SDS) and acceptor (SAS) sites are kept for every
+ * position at which such a site could start or end.<br>
+ * 
+ * Positions are positions of the (forward) sequence; on the reverse strand, an
+ * intron on [start, end) begins at end and ends at start.
+ */
+final class IntronScoreTable {
+
+	/**
+	 * Key for {@link EncodedSequence#getPrecomputed(EncodedSequence.Precomputation)}:
+	 * all intron states of one strand and parameter set share a single table
+	 */
+	static final class Key implements EncodedSequence.Precomputation<IntronScoreTable> {
+		private final ModelParameters parameters;
+		private final boolean strand;
+
+		Key(ModelParameters parameters, boolean strand) {
+			this.parameters = parameters;
+			this.strand = strand;
+		}
+
+		@Override
+		public IntronScoreTable compute(EncodedSequence sequence) {
+			return new IntronScoreTable(sequence, parameters, strand);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return parameters == other.parameters && strand == other.strand;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(parameters) * 2 + (strand ? 1 : 0);
+		}
+	}
+
+	private final boolean strand;
+	private final int sdsSize, sasSize;
+
+	/**
+	 * sum of the finite interior log-probabilities of the bases before p, and the
+	 * rounding errors of that sum (compensated summation): the prefixes grow with
+	 * the contig, while the difference of two of them has to be as exact as a sum
+	 * over a single intron
+	 */
+	private final double[] interiorPrefix, interiorError;
+	/**
+	 * number of bases before p that may not occur inside an intron; null if there
+	 * are none
+	 */
+	private final int[] impossiblePrefix;
+	/** score of an SDS starting (on the strand) at p */
+	private final double[] donorScores;
+	/** score of an SAS ending (on the strand) at p */
+	private final double[] acceptorScores;
+
+	/**
+	 * @param sequence   has to be packed, cf. {@link EncodedSequence#isPacked()}
+	 * @param parameters to take the base probabilities from
+	 * @param strand     whether on the forward strand
+	 */
+	IntronScoreTable(EncodedSequence sequence, ModelParameters parameters, boolean strand) {
+		this.strand = strand;
+		sdsSize = parameters.getSDSSize();
+		sasSize = parameters.getSASSize();
+
+		int length = sequence.length();
+		int[] bases = new int[length];
+		boolean anyImpossible = false;
+		for (int p = 0; p < length; p++) {
+			bases[p] = strand ? sequence.baseAt(p) : Utilities.complementIndex(sequence.baseAt(p));
+			anyImpossible |= parameters.getLogBaseProbabilityIntron(bases[p]) == Double.NEGATIVE_INFINITY;
+		}
+
+		interiorPrefix = new double[length + 1];
+		interiorError = new double[length + 1];
+		impossiblePrefix = anyImpossible ? new int[length + 1] : null;
+		for (int p = 0; p < length; p++) {
+			double logProbability = parameters.getLogBaseProbabilityIntron(bases[p]);
+			boolean impossible = logProbability == Double.NEGATIVE_INFINITY;
+			double term = impossible ? 0 : logProbability;
+			double sum = interiorPrefix[p] + term;
+			// the exact rounding error of the addition (TwoSum)
+			double virtualTerm = sum - interiorPrefix[p];
+			double error = (interiorPrefix[p] - (sum - virtualTerm)) + (term - virtualTerm);
+			interiorPrefix[p + 1] = sum;
+			interiorError[p + 1] = interiorError[p] + error;
+			if (anyImpossible)
+				impossiblePrefix[p + 1] = impossiblePrefix[p] + (impossible ? 1 : 0);
+		}
+
+		donorScores = new double[length + 1];
+		acceptorScores = new double[length + 1];
+		for (int p = 0; p <= length; p++) {
+			double donor = Double.NEGATIVE_INFINITY, acceptor = Double.NEGATIVE_INFINITY;
+			if (strand) {
+				if (p + sdsSize <= length) {
+					donor = 0;
+					for (int i = 0; i < sdsSize; i++)
+						donor += parameters.getLogBaseProbabilitySDS(bases[p + i], i);
+				}
+				if (p - sasSize >= 0) {
+					acceptor = 0;
+					for (int i = 0; i < sasSize; i++)
+						acceptor += parameters.getLogBaseProbabilitySAS(bases[p - sasSize + i], i);
+				}
+			} else {
+				// reading leftwards: the i-th base of a site is at p - 1 - i or p + sasSize - 1 - i
+				if (p - sdsSize >= 0) {
+					donor = 0;
+					for (int i = 0; i < sdsSize; i++)
+						donor += parameters.getLogBaseProbabilitySDS(bases[p - 1 - i], i);
+				}
+				if (p + sasSize <= length) {
+					acceptor = 0;
+					for (int i = 0; i < sasSize; i++)
+						acceptor += parameters.getLogBaseProbabilitySAS(bases[p + sasSize - 1 - i], i);
+				}
+			}
+			donorScores[p] = donor;
+			acceptorScores[p] = acceptor;
+		}
+	}
+
+	/**
+	 * @param start start (inclusive) of the intron
+	 * @param end   end (exclusive) of the intron; end - start has to be at least
+	 *              the combined size of SDS and SAS
+	 * @return the summed log-probabilities of all bases of the intron (without the
+	 *         length-probability)
+	 */
+	double getLogBaseUsage(int start, int end) {
+		int donorAt = strand ? start : end;
+		int acceptorAt = strand ? end : start;
+		int interiorStart = strand ? start + sdsSize : start + sasSize;
+		int interiorEnd = strand ? end - sasSize : end - sdsSize;
+
+		double interior;
+		if (impossiblePrefix != null && impossiblePrefix[interiorEnd] > impossiblePrefix[interiorStart]) {
+			interior = Double.NEGATIVE_INFINITY;
+		} else {
+			interior = (interiorPrefix[interiorEnd] - interiorPrefix[interiorStart])
+					+ (interiorError[interiorEnd] - interiorError[interiorStart]);
+		}
+		return donorScores[donorAt] + interior + acceptorScores[acceptorAt];
+	}
+}
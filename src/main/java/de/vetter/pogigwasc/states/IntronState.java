@@ -1,9 +1,7 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
-import de.vetter.pogigwasc.Utilities;
 
 /**
  * Implements a state for introns, which only allows a certain range of intron
@@ -16,9 +14,49 @@ import de.vetter.pogigwasc.Utilities;
  * @author David Emanuel Vetter
  */
 public class IntronState extends HMMStateWithStrandAndParameters {
+	
+	private final IntronScoreTable.Key scoreTableKey;
+	private final SpliceSites spliceSites;
 		
 	public IntronState(String name, boolean strand, ModelParameters parameters) {
 		super(name, strand, parameters);
+		scoreTableKey = new IntronScoreTable.Key(parameters, strand);
+		spliceSites = new SpliceSites(strand);
+	}
+	
+	/**
+	 * Key for the per-contig index of the splice sites of one strand, cf.
+	 * {@link IntronState#getPermissibleSites(EncodedSequence)}
+	 */
+	private static final class SpliceSites implements EncodedSequence.Precomputation<SiteIndex> {
+		/**
+		 * motifs at the start and end of an intron, as read on the forward strand: GT...AG,
+		 * or for the reverse strand CT...AC
+		 */
+		private static final int[] FORWARD_START = { G, T }, FORWARD_END = { A, G }, REVERSE_START = { C, T },
+				REVERSE_END = { A, C };
+		
+		private final boolean strand;
+		
+		private SpliceSites(boolean strand) {
+			this.strand = strand;
+		}
+		
+		@Override
+		public SiteIndex compute(EncodedSequence sequence) {
+			return strand ? SiteIndex.ofMotifs(sequence, FORWARD_START, FORWARD_END)
+					: SiteIndex.ofMotifs(sequence, REVERSE_START, REVERSE_END);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SpliceSites && ((SpliceSites) obj).strand == strand;
+		}
+		
+		@Override
+		public int hashCode() {
+			return strand ? 1 : 0;
+		}
 	}
 
 	/**
@@ -27,38 +65,44 @@ public class IntronState extends HMMStateWithStrandAndParameters {
 	 * at the SDS and SAS into account. Internal base frequency (inside intron,
 	 * outside SDS and SAS) will be similar to NCS base frequency. While the
 	 * base-distribution depends on the position in the emission, each position is
-	 * modeled as an independent random variable.
+	 * modeled as an independent random variable.<br>
+	 * 
+	 * On packed sequences, the base usage is read from an {@link IntronScoreTable}
+	 * (computed once per contig and strand), i.e. in constant time.
 	 * 
 	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int,
-	 *      java.lang.String, java.lang.String)
+	 *      EncodedSequence, int, int)
 	 */
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if (newEmission.length() < parameters.getMinIntronSize()
-				|| newEmission.length() > parameters.getMaxIntronSize())
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		int length = end - start;
+		if (length < parameters.getMinIntronSize()
+				|| length > parameters.getMaxIntronSize())
 			return Double.NEGATIVE_INFINITY;
 		
-		if(isReverse())
-			newEmission = Utilities.reverseComplement(newEmission);
-		
 		// TODO/Note: This is purely for speedup, but leads to a loss of generality
-		if(! (newEmission.startsWith("GT") && newEmission.endsWith("AG")))
+		if(getBaseOnStrand(sequence, start, end, 0) != G || getBaseOnStrand(sequence, start, end, 1) != T
+				|| getBaseOnStrand(sequence, start, end, length - 2) != A
+				|| getBaseOnStrand(sequence, start, end, length - 1) != G)
 		 	return Double.NEGATIVE_INFINITY;
 		
-		int length = newEmission.length();
-		
 		double lengthProb = parameters.getLogProbabilityIntronLength(length);
 		
+		if (sequence.isPacked() && length >= parameters.getSDSSize() + parameters.getSASSize()) {
+			return lengthProb + sequence.getPrecomputed(scoreTableKey).getLogBaseUsage(start, end);
+		}
+		
 		double baseUsage = 0;
 		/* GT AG have probability 1 */
 		for(int i = 0; i < length; i++) {
 			
+			int base = getBaseOnStrand(sequence, start, end, i);
 			if(i < parameters.getSDSSize()) {
-				baseUsage += parameters.getLogBaseProbabilitySDS(newEmission.charAt(i), i); 
+				baseUsage += parameters.getLogBaseProbabilitySDS(base, i); 
 			} else if (i >= length - parameters.getSASSize()) {
-				baseUsage += parameters.getLogBaseProbabilitySAS(newEmission.charAt(i), i - (length - parameters.getSASSize()));
+				baseUsage += parameters.getLogBaseProbabilitySAS(base, i - (length - parameters.getSASSize()));
 			} else {
-				baseUsage += parameters.getLogBaseProbabilityIntron(newEmission.charAt(i));
+				baseUsage += parameters.getLogBaseProbabilityIntron(base);
 			}
 			// TODO/Note: This is purely for speedup, with no loss of generality -- the speedup is however smaller than for the above version.
 			// if(baseUsage == Double.NEGATIVE_INFINITY)
@@ -68,6 +112,17 @@ public class IntronState extends HMMStateWithStrandAndParameters {
 		return lengthProb + baseUsage;
 	}
 
+	/**
+	 * Introns have to start with GT and end with AG (on their strand), so the
+	 * decoder only needs to visit the splice sites
+	 * 
+	 * @see de.vetter.pogigwasc.states.HMMState#getPermissibleSites(EncodedSequence)
+	 */
+	@Override
+	public SiteIndex getPermissibleSites(EncodedSequence sequence) {
+		return sequence.getPrecomputed(spliceSites);
+	}
+
 	/**
 	 * Intron allows maximum intron length
 	 * @see de.vetter.pogigwasc.states.HMMState#getSupremumPermissibleEmissionLength()
@@ -77,33 +132,32 @@ public class IntronState extends HMMStateWithStrandAndParameters {
 		return parameters.getMaxIntronSize();
 	}
 	
+	/**
+	 * An intron is scored the same after any previous state (the interrupted
+	 * codon around it consists of states of its own)
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
+	 */
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
 	/**
 	 * introns could maybe take arbitrary lengths >= 4, for performance, limit it to
 	 * the allowed range of {l-max, ..., l-min} (note the inclusive upper end)
 	 * 
-	 * @see de.vetter.pogigwasc.states.HMMState#iteratePermissibleLPrimes(int)
+	 * @see de.vetter.pogigwasc.states.HMMState#getMinimumLPrime(int)
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - parameters.getMaxIntronSize());
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l - parameters.getMinIntronSize() + 1;
-					}
-
-					@Override
-					public Integer next() {
-						return currentLPrime++;
-					}
-				};
-			}
-			
-		};
+	public int getMinimumLPrime(int l) {
+		return l - parameters.getMaxIntronSize();
+	}
+	
+	/**
+	 * @see #getMinimumLPrime(int)
+	 */
+	@Override
+	public int getMaximumLPrime(int l) {
+		return l - parameters.getMinIntronSize();
 	}
 }
@@ -1,7 +1,6 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
 
 public class NoncodingState extends HMMStateWithStrandAndParameters {
@@ -9,12 +8,12 @@ public class NoncodingState extends HMMStateWithStrandAndParameters {
 	public NoncodingState(String name, ModelParameters params) { super(name, true, params); }
 
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if(newEmission.length() > 1) {
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		if(end - start > 1) {
 			return Double.NEGATIVE_INFINITY;
 		}
 		
-		return parameters.getLogBaseProbabilityNCS(newEmission.charAt(0));
+		return parameters.getLogBaseProbabilityNCS(sequence.baseAt(start));
 	}
 	
 	/**
@@ -27,30 +26,20 @@ public class NoncodingState extends HMMStateWithStrandAndParameters {
 	}
 	
 	/**
-	 * NCS allows only steps of size 1 -> thus, iterate only once
+	 * NCS is scored the same after any previous state
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - 1);
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						return currentLPrime++;
-					}
-				};
-			}
-			
-		};
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
+	/**
+	 * NCS allows only steps of size 1 -> thus, only one l' to check
+	 */
+	@Override
+	public int getFixedEmissionLength() {
+		return 1;
 	}
 
 }
@@ -0,0 +1,85 @@
+package de.vetter.pogigwasc.states;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import de.vetter.pogigwasc.EncodedSequence;
+import de.vetter.pogigwasc.Utilities;
+
+/**
+ * A motif that every emission of a state must contain at a fixed position
+ * relative to its end l (e.g. the ATG at the end of a start region), cf.
+ * {@link HMMState#getRequiredMotif()}: The decoder finds all occurrences once
+ * per contig, and skips the state at any l where the motif does not occur.<br>
+ * 
+ * Instances are keys for {@link EncodedSequence#getPrecomputed(EncodedSequence.Precomputation)}
+ * (equal motifs share their bitmap), the result being the set of all
+ * permissible l.
+ */
+public final class RequiredMotif implements EncodedSequence.Precomputation<BitSet> {
+
+	private final int[] bases;
+	private final int offsetFromEnd;
+
+	/**
+	 * @param bases         base indices of the motif, as read on the forward
+	 *                      strand (cf. {@link Utilities#baseToIndex(char)})
+	 * @param offsetFromEnd the motif has to start at l - offsetFromEnd
+	 */
+	public RequiredMotif(int[] bases, int offsetFromEnd) {
+		this.bases = bases.clone();
+		this.offsetFromEnd = offsetFromEnd;
+	}
+
+	/**
+	 * @param motifOnStrand base indices of the motif, as read on the given strand
+	 * @param strand        whether on the forward strand
+	 * @param length        the (fixed) length of the emission
+	 * @return the motif that has to end an emission of the given length, on the
+	 *         given strand; on the reverse strand, this is the reverse complement at
+	 *         the start of the emission
+	 */
+	public static RequiredMotif atEndOfEmission(int[] motifOnStrand, boolean strand, int length) {
+		if (strand)
+			return new RequiredMotif(motifOnStrand, motifOnStrand.length);
+		int[] reverseComplement = new int[motifOnStrand.length];
+		for (int i = 0; i < motifOnStrand.length; i++)
+			reverseComplement[i] = Utilities.complementIndex(motifOnStrand[motifOnStrand.length - 1 - i]);
+		return new RequiredMotif(reverseComplement, length);
+	}
+
+	/**
+	 * @return the positions l of the sequence at which the motif occurs at l -
+	 *         offsetFromEnd
+	 */
+	@Override
+	public BitSet compute(EncodedSequence sequence) {
+		BitSet permissible = new BitSet(sequence.length() + 1);
+		for (int l = 0; l <= sequence.length(); l++) {
+			if (SiteIndex.matches(sequence, l - offsetFromEnd, bases))
+				permissible.set(l);
+		}
+		return permissible;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof RequiredMotif))
+			return false;
+		RequiredMotif other = (RequiredMotif) obj;
+		return offsetFromEnd == other.offsetFromEnd && Arrays.equals(bases, other.bases);
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(bases) * 31 + offsetFromEnd;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder();
+		for (int base : bases)
+			result.append("TCAG".charAt(base));
+		return result + " at l-" + offsetFromEnd;
+	}
+}
@@ -0,0 +1,110 @@
+package de.vetter.pogigwasc.states;
+
+import java.util.BitSet;
+
+import de.vetter.pogigwasc.EncodedSequence;
+
+/**
+ * Per-contig index of the positions at which the emissions of a state may
+ * start and end, e.g. the splice donor and acceptor sites of introns (cf.
+ * {@link HMMState#getPermissibleSites(EncodedSequence)}): The decoder then only
+ * visits these positions, instead of every l' in the range of the state.
+ */
+public final class SiteIndex {
+
+	/** nextStart[p] is the smallest permissible start >= p (or Integer.MAX_VALUE) */
+	private final int[] nextStart;
+	private final BitSet ends;
+
+	/**
+	 * @param length length of the sequence
+	 * @param starts permissible starts (inclusive) of emissions
+	 * @param ends   permissible ends (exclusive) of emissions
+	 */
+	public SiteIndex(int length, BitSet starts, BitSet ends) {
+		nextStart = new int[length + 2];
+		int next = Integer.MAX_VALUE;
+		for (int p = length + 1; p >= 0; p--) {
+			if (starts.get(p))
+				next = p;
+			nextStart[p] = next;
+		}
+		this.ends = (BitSet) ends.clone();
+	}
+
+	/**
+	 * Index of the occurrences of two motifs: emissions have to start with the
+	 * first and end with the second motif
+	 * 
+	 * @param sequence  to search
+	 * @param startMotif base indices (cf. {@link de.vetter.pogigwasc.Utilities#baseToIndex(char)})
+	 *                  of the motif at the start of an emission
+	 * @param endMotif  base indices of the motif at the end of an emission
+	 * @return the index of all occurrences
+	 */
+	public static SiteIndex ofMotifs(EncodedSequence sequence, int[] startMotif, int[] endMotif) {
+		BitSet starts = new BitSet(sequence.length() + 1);
+		BitSet ends = new BitSet(sequence.length() + 1);
+		for (int p = 0; p <= sequence.length(); p++) {
+			if (matches(sequence, p, startMotif))
+				starts.set(p);
+			if (matches(sequence, p - endMotif.length, endMotif))
+				ends.set(p);
+		}
+		return new SiteIndex(sequence.length(), starts, ends);
+	}
+
+	static boolean matches(EncodedSequence sequence, int position, int[] motif) {
+		if (position < 0 || position + motif.length > sequence.length())
+			return false;
+		for (int i = 0; i < motif.length; i++) {
+			if (sequence.baseAt(position + i) != motif[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param l end (exclusive) of an emission
+	 * @return whether an emission may end at l
+	 */
+	public boolean isPermissibleEnd(int l) {
+		return ends.get(l);
+	}
+
+	/**
+	 * @param from   smallest l' to consider
+	 * @param l      end (exclusive) of the emission
+	 * @param stride only l' with l - l' divisible by stride are considered (cf.
+	 *               {@link HMMState#getLPrimeStride()})
+	 * @return the smallest permissible start l' >= from, or Integer.MAX_VALUE if
+	 *         there is none
+	 */
+	public int getNextStart(int from, int l, int stride) {
+		if (from >= nextStart.length)
+			return Integer.MAX_VALUE;
+		int lPrime = nextStart[Math.max(0, from)];
+		while (stride > 1 && lPrime < l && (l - lPrime) % stride != 0) {
+			lPrime = nextStart[lPrime + 1];
+		}
+		return lPrime;
+	}
+
+	/**
+	 * @return the number of permissible starts
+	 */
+	public int getNumberOfStarts() {
+		int count = 0;
+		for (int p = 0; p < nextStart.length; p = nextStart[p] + 1) {
+			if (nextStart[p] == Integer.MAX_VALUE)
+				break;
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "SiteIndex: " + getNumberOfStarts() + " starts, " + ends.cardinality() + " ends";
+	}
+}
@@ -1,9 +1,7 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
-import de.vetter.pogigwasc.Utilities;
 
 public class StartRegionState extends HMMStateWithStrandAndParameters {
 	
@@ -11,23 +9,43 @@ public class StartRegionState extends HMMStateWithStrandAndParameters {
 		super(name, strand, parameters);
 	}
 
+	/**
+	 * The bases before the final ATG, scored as upstream of a start codon; on
+	 * packed contigs, this is read from the {@link CodonScoreTrack} (computed
+	 * once per contig and strand)
+	 * 
+	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int, EncodedSequence, int, int)
+	 */
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if(newEmission.length() != parameters.getStartRegionSize()) {
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		int size = parameters.getStartRegionSize();
+		if(end - start != size) {
 			return Double.NEGATIVE_INFINITY;
 		}
 		
-		if(isReverse()) {
-			newEmission = Utilities.reverseComplement(newEmission);
+		CodonScoreTrack track = getCodonScoreTrack(sequence, start, end);
+		if(track != null) {
+			return track.getStartRegionScore(end);
 		}
 		
-		if(!newEmission.endsWith("ATG")) {
+		// has to end with ATG
+		if(getBaseOnStrand(sequence, start, end, size - 3) != A
+				|| getBaseOnStrand(sequence, start, end, size - 2) != T
+				|| getBaseOnStrand(sequence, start, end, size - 1) != G) {
 			return Double.NEGATIVE_INFINITY;
 		}
 		
+		if(parameters.isStartRegionUpstreamTabulated()) {
+			int kmer = 0;
+			for(int i = 0; i < size - 3; i++) {
+				kmer = (kmer << 2) | getBaseOnStrand(sequence, start, end, i);
+			}
+			return parameters.getLogKmerProbabilityStartRegionUpstream(kmer);
+		}
+		
 		double result = 0;
-		for(int i = 0; i < parameters.getStartRegionSize() - 3; i++) {
-			result += parameters.getLogBaseProbabilityStartRegion(newEmission.charAt(i));
+		for(int i = 0; i < size - 3; i++) {
+			result += parameters.getLogBaseProbabilityStartRegion(getBaseOnStrand(sequence, start, end, i));
 		}
 		
 		return result;
@@ -41,33 +59,30 @@ public class StartRegionState extends HMMStateWithStrandAndParameters {
 		return parameters.getStartRegionSize();
 	}
 	
+	/**
+	 * A start region is scored the same after any previous state
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
+	 */
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
 	/**
 	 * StartRegion allows only size 6 nt (3 before ATG, then ATG)
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - parameters.getStartRegionSize());
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						int result = currentLPrime;
-						currentLPrime = l;
-						return result;
-					}
-				};
-			}
-			
-		};
+	public int getFixedEmissionLength() {
+		return parameters.getStartRegionSize();
+	}
+	
+	/**
+	 * The start region ends with ATG (on its strand)
+	 * @see de.vetter.pogigwasc.states.HMMState#getRequiredMotif()
+	 */
+	@Override
+	public RequiredMotif getRequiredMotif() {
+		return RequiredMotif.atEndOfEmission(new int[] { A, T, G }, isForward(), parameters.getStartRegionSize());
 	}
 	
 }
@@ -1,9 +1,7 @@
 package de.vetter.pogigwasc.states;
 
-import java.util.Iterator;
-
+import de.vetter.pogigwasc.EncodedSequence;
 import de.vetter.pogigwasc.ModelParameters;
-import de.vetter.pogigwasc.Utilities;
 
 public class StopRegionState extends HMMStateWithStrandAndParameters {
 	
@@ -11,21 +9,33 @@ public class StopRegionState extends HMMStateWithStrandAndParameters {
 		super(name, strand, parameters);
 	}
 
+	/**
+	 * The codons before the final TGA, scored as in a stop region; on packed
+	 * contigs, this is read from the {@link CodonScoreTrack} (computed once per
+	 * contig and strand)
+	 * 
+	 * @see de.vetter.pogigwasc.states.HMMState#computeLogEmissionProbability(int, EncodedSequence, int, int)
+	 */
 	@Override
-	public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
-		if(newEmission.length() != parameters.getStopRegionSize())
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		int size = parameters.getStopRegionSize();
+		if(end - start != size)
 			return Double.NEGATIVE_INFINITY;
 		
-		if(isReverse()) {
-			newEmission = Utilities.reverseComplement(newEmission);
-		}
+		CodonScoreTrack track = getCodonScoreTrack(sequence, start, end);
+		if(track != null)
+			return track.getStopRegionScore(end);
 		
-		if(!newEmission.endsWith("TGA"))
+		// has to end with TGA
+		if(getBaseOnStrand(sequence, start, end, size - 3) != T
+				|| getBaseOnStrand(sequence, start, end, size - 2) != G
+				|| getBaseOnStrand(sequence, start, end, size - 1) != A)
 			return Double.NEGATIVE_INFINITY;
 		
 		double result = 0;
-		for(int i = 0; i < parameters.getStopRegionSize() - 3; i += 3)
-			result += parameters.getLogCodonProbabilityStopRegion(newEmission.substring(i, i+3));
+		for(int i = 0; i < size - 3; i += 3)
+			result += parameters.getLogCodonProbabilityStopRegion(ModelParameters.codonIndex(getBaseOnStrand(sequence, start, end, i),
+					getBaseOnStrand(sequence, start, end, i + 1), getBaseOnStrand(sequence, start, end, i + 2)));
 		
 		return result;
 	}
@@ -39,32 +49,29 @@ public class StopRegionState extends HMMStateWithStrandAndParameters {
 	}
 	
 	/**
-	 * StopRegion allows only steps of size 24 -> thus, iterate only once
+	 * A stop region is scored the same after any previous state
+	 * @see de.vetter.pogigwasc.states.HMMState#isIndependentOfPreviousState()
 	 */
 	@Override
-	public Iterable<Integer> iteratePermissibleLPrimes(final int l) {
-		return new Iterable<Integer>() {
-
-			@Override
-			public Iterator<Integer> iterator() {
-				return new Iterator<Integer>() {
-					private int currentLPrime = Math.max(0, l - parameters.getStopRegionSize());
-					
-					@Override
-					public boolean hasNext() {
-						return currentLPrime < l;
-					}
-
-					@Override
-					public Integer next() {
-						int result = currentLPrime;
-						currentLPrime = l;
-						return result;
-					}
-				};
-			}
-			
-		};
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+	
+	/**
+	 * StopRegion allows only steps of size 24 -> thus, only one l' to check
+	 */
+	@Override
+	public int getFixedEmissionLength() {
+		return parameters.getStopRegionSize();
+	}
+	
+	/**
+	 * The stop region ends with TGA (on its strand)
+	 * @see de.vetter.pogigwasc.states.HMMState#getRequiredMotif()
+	 */
+	@Override
+	public RequiredMotif getRequiredMotif() {
+		return RequiredMotif.atEndOfEmission(new int[] { T, G, A }, isForward(), parameters.getStopRegionSize());
 	}
 
 }
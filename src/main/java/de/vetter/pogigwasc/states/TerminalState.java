@@ -1,5 +1,7 @@
 package de.vetter.pogigwasc.states;
 
+import de.vetter.pogigwasc.EncodedSequence;
+
 public class TerminalState extends HMMState {
 	
 	/** Name of the terminal state; reserved for this state alone */
@@ -14,4 +16,14 @@ public class TerminalState extends HMMState {
 		return newEmission.length() == 0 ? 0 : Double.NEGATIVE_INFINITY;
 	}
 
+	@Override
+	public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start, int end) {
+		return end == start ? 0 : Double.NEGATIVE_INFINITY;
+	}
+
+	@Override
+	public boolean isIndependentOfPreviousState() {
+		return true;
+	}
+
 }
@@ -11,7 +11,7 @@ import org.junit.runners.Suite.SuiteClasses;
  * @author David Emanuel Vetter
  */
 @RunWith(value=Suite.class)
-@SuiteClasses(value={TestGHMM.class, TestViterbi.class, TestPair.class, TestModelParameters.class, TestUtilities.class, TestParse.class, TestParseToGFF.class})
+@SuiteClasses(value={TestGHMM.class, TestCompiledGHMM.class, TestHMMState.class, TestEncodedSequence.class, TestViterbi.class, TestScoreMatrix.class, TestWindowedViterbi.class, TestContigScheduler.class, TestOnlineViterbi.class, TestPair.class, TestModelParameters.class, TestModelSnapshot.class, TestIntronLengthDistribution.class, TestUtilities.class, TestFastaReader.class, TestParse.class, TestParseToGFF.class})
 public class AllTests {
 
 }
@@ -0,0 +1,58 @@
+package de.vetter.pogigwasc;
+
+import java.io.IOException;
+
+/**
+ * Not a test: compares the forward pass with the states of each column
+ * evaluated serially and in parallel (cf. {@link Viterbi#setParallelism(int)}),
+ * for several contig lengths, and prints the time per column. Run the main
+ * method on the test classpath, optionally with the largest number of threads
+ * to try as argument. Parallel evaluation only pays off once a column costs
+ * clearly more than handing a task to another thread and waiting for it (a
+ * few microseconds); with the model of Loxodes magnus, a column costs about
+ * that much, so {@link Viterbi#DEFAULT_MINIMUM_PARALLEL_LENGTH} keeps short
+ * contigs and windows serial. The benchmark lowers it to measure every length.
+ */
+public class ParallelColumnsBenchmark {
+
+	private static final int REPETITIONS = 3;
+
+	public static void main(String[] args) throws IOException {
+		int maximalThreads = args.length > 0 ? Integer.parseInt(args[0])
+				: Math.max(2, Runtime.getRuntime().availableProcessors());
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+
+		StringBuilder report = new StringBuilder();
+		report.append(String.format("%d processor(s)%n%10s %8s %12s %8s%n", Runtime.getRuntime().availableProcessors(),
+				"length", "threads", "ns/column", "speedup"));
+		for (int length : new int[] { 2000, 20000, 200000 }) {
+			EncodedSequence sequence = TestViterbi.plantedGenes(length, 1);
+			double serial = 0;
+			for (int threads = 1; threads <= maximalThreads; threads *= 2) {
+				double nanosPerColumn = time(model, sequence, threads) / sequence.length();
+				if (threads == 1)
+					serial = nanosPerColumn;
+				report.append(String.format("%10d %8d %12.0f %8.2f%n", sequence.length(), threads, nanosPerColumn,
+						serial / nanosPerColumn));
+			}
+		}
+		System.out.print(report);
+	}
+
+	/**
+	 * @return the fastest of a few runs (after a warm-up), in nanoseconds
+	 */
+	private static double time(CompiledGHMM model, EncodedSequence sequence, int threads) {
+		long best = Long.MAX_VALUE;
+		for (int run = 0; run <= REPETITIONS; run++) {
+			Viterbi viterbi = new Viterbi(model, sequence);
+			viterbi.setParallelism(threads);
+			viterbi.setMinimumParallelLength(0);
+			long start = System.nanoTime();
+			viterbi.computeParses();
+			if (run > 0)
+				best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+}
@@ -0,0 +1,101 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import de.vetter.pogigwasc.states.FixedSequenceState;
+import de.vetter.pogigwasc.states.InitialState;
+import de.vetter.pogigwasc.states.TerminalState;
+
+public class TestCompiledGHMM {
+
+	@Test
+	public void testPredecessorsLoxodesMagnus() throws IOException {
+		FileReader reader = new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties"));
+		GHMM ghmm = new LoxodesMagnusGHMM(new ModelParameters(reader));
+		CompiledGHMM compiled = ghmm.compile();
+
+		// all states of the model are in use
+		assertEquals(ghmm.getNumberOfStates(), compiled.getNumberOfStates());
+		assertTrue(compiled.getState(0) instanceof InitialState);
+		assertTrue(compiled.getState(1) instanceof TerminalState);
+
+		// +CDS is entered from +M, +CDS, +intron 0-0, +2 nts after intron and +1 nt after intron
+		int[] expected = { 3, 4, 6, 9, 12 };
+		assertEquals(expected.length, compiled.getPredecessorEnd(4) - compiled.getPredecessorStart(4));
+		for (int i = 0; i < expected.length; i++) {
+			int k = compiled.getPredecessorStart(4) + i;
+			assertEquals(expected[i], compiled.getPredecessorState(k));
+			assertEquals(ghmm.getLogTransitionProbability(expected[i], 4), compiled.getPredecessorLogTransition(k),
+					1e-12);
+		}
+
+		// NCS is the only state leading to the terminal state
+		assertEquals(ghmm.getLogTransitionProbability(2, 1), compiled.getLogTransitionToTerminal(2), 1e-12);
+		assertEquals(Double.NEGATIVE_INFINITY, compiled.getLogTransitionToTerminal(4), 1e-12);
+	}
+
+	@Test
+	public void testDropsUnreachableStates() {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new FixedSequenceState("a", "A"));
+		ghmm.addState(new FixedSequenceState("unreachable", "C"));
+		ghmm.addState(new FixedSequenceState("b", "G"));
+		ghmm.addState(new FixedSequenceState("dead end", "T"));
+		ghmm.initialiseTransitionMatrix();
+		ghmm.clearTransitionMatrix();
+		ghmm.setTransitionProbability(1, 1, 1);
+		ghmm.setTransitionProbability(0, 2, 1);
+		ghmm.setTransitionProbability(2, 4, 0.5);
+		ghmm.setTransitionProbability(2, 5, 0.5);
+		ghmm.setTransitionProbability(3, 4, 1);
+		ghmm.setTransitionProbability(4, 1, 1);
+		ghmm.setTransitionProbability(5, 5, 1);
+
+		CompiledGHMM compiled = ghmm.compile();
+		assertEquals(4, compiled.getNumberOfStates());
+		assertEquals("a", compiled.getState(2).getName());
+		assertEquals("b", compiled.getState(3).getName());
+		assertEquals(4, compiled.getOriginalIndex(3));
+
+		// b is only entered from a (the unreachable state is gone)
+		assertEquals(1, compiled.getPredecessorEnd(3) - compiled.getPredecessorStart(3));
+		assertEquals(2, compiled.getPredecessorState(compiled.getPredecessorStart(3)));
+		assertEquals(Math.log(0.5), compiled.getPredecessorLogTransition(compiled.getPredecessorStart(3)), 1e-12);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTransitions() {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new FixedSequenceState("a", "A"));
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.5);
+		ghmm.compile();
+	}
+
+	@Test
+	public void testViterbiOnCompiledModel() {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new FixedSequenceState("a", "AC"));
+		ghmm.addState(new FixedSequenceState("unreachable", "C"));
+		ghmm.initialiseTransitionMatrix();
+		ghmm.clearTransitionMatrix();
+		ghmm.setTransitionProbability(1, 1, 1);
+		ghmm.setTransitionProbability(0, 2, 1);
+		ghmm.setTransitionProbability(2, 2, 0.5);
+		ghmm.setTransitionProbability(2, 1, 0.5);
+		ghmm.setTransitionProbability(3, 1, 1);
+
+		Viterbi viterbi = new Viterbi(ghmm.compile(), "ACACAC");
+		Parse parse = viterbi.computeParses().get(0);
+		assertEquals(3, parse.getNumberOfSteps());
+		assertEquals(6, parse.getLength());
+		assertEquals("a", parse.get(2).getFirst().getName());
+	}
+}
@@ -0,0 +1,125 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestContigScheduler {
+
+	private ModelParameters mp;
+	private CompiledGHMM model;
+
+	@Before
+	public void setup() throws IOException {
+		FileReader reader = new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties"));
+		mp = new ModelParameters(reader);
+		model = new LoxodesMagnusGHMM(mp).compile();
+	}
+
+	private String predictAll(int threads) throws IOException {
+		return predictAll(threads, new DecodingOptions());
+	}
+
+	private String predictAll(int threads, DecodingOptions options) throws IOException {
+		StringWriter result = new StringWriter();
+		BufferedWriter writer = new BufferedWriter(result);
+		ContigScheduler scheduler = new ContigScheduler(model, mp, options, writer, threads);
+		// contigs of very different lengths, so that they finish out of order
+		for (int i = 0; i < 7; i++) {
+			scheduler.submit("contig" + i, TestViterbi.plantedGenes(i % 2 == 0 ? 6000 : 900, i).toString());
+		}
+		scheduler.finish();
+		writer.flush();
+		return result.toString();
+	}
+
+	@Test
+	public void testSameOutputForAnyNumberOfThreads() throws IOException {
+		String expected = predictAll(1);
+		assertTrue(expected.indexOf("contig0") < expected.indexOf("contig1"));
+		assertTrue(expected.indexOf("contig5") < expected.indexOf("contig6"));
+		assertEquals(expected, predictAll(3));
+	}
+
+	@Test
+	public void testOnlineOutputInInputOrder() throws IOException {
+		DecodingOptions options = new DecodingOptions();
+		options.setOnline(true);
+		String expected = predictAll(1, options);
+		assertEquals(predictAll(1), expected);
+		assertEquals(expected, predictAll(3, options));
+	}
+
+	@Test
+	public void testWindowsOnOneThreadWhenContigsAreParallel() throws IOException {
+		DecodingOptions options = new DecodingOptions();
+		options.setWindows(3000, 1000);
+		options.setThreads(4);
+		StringWriter sequential = new StringWriter(), parallel = new StringWriter();
+		BufferedWriter sequentialWriter = new BufferedWriter(sequential), parallelWriter = new BufferedWriter(parallel);
+		ContigScheduler single = new ContigScheduler(model, mp, options, sequentialWriter, 1);
+		ContigScheduler several = new ContigScheduler(model, mp, options, parallelWriter, 3);
+		assertEquals(4, single.getOptions().getThreads());
+		assertEquals(1, several.getOptions().getThreads());
+		assertEquals(3000, several.getOptions().getWindowSize());
+		assertEquals(4, options.getThreads());
+
+		for (ContigScheduler scheduler : new ContigScheduler[] { single, several }) {
+			for (int i = 0; i < 3; i++)
+				scheduler.submit("contig" + i, TestViterbi.plantedGenes(7000, i).toString());
+			scheduler.finish();
+		}
+		sequentialWriter.flush();
+		parallelWriter.flush();
+		assertTrue(sequential.toString().contains("contig2"));
+		assertEquals(sequential.toString(), parallel.toString());
+	}
+
+	private String shiftedGFF(String segment, int offset) {
+		List<Parse> parses = new Viterbi(model, segment).computeParses();
+		assertEquals(1, parses.size());
+		return LoxodesMagnusGHMM.parseToGFF("scaffold", parses.get(0), mp, offset);
+	}
+
+	@Test
+	public void testSplitScaffolds() throws IOException {
+		String first = TestViterbi.plantedGenes(3000, 1).toString(), second = TestViterbi.plantedGenes(2500, 2).toString();
+		String scaffold = "NNN" + first + "NNNNNNNNNN" + "ACGTTAG" + "N" + second;
+		DecodingOptions options = new DecodingOptions();
+		options.setSplittingScaffolds(100);
+
+		// as if the segments were contigs of their own, shifted onto the scaffold
+		String expected = shiftedGFF(first, 3) + shiftedGFF(second, scaffold.indexOf(second));
+		assertTrue(expected.contains("CDS"));
+		assertEquals(expected, App.predict(model, "scaffold", scaffold, mp, options));
+
+		for (int threads : new int[] { 1, 3 }) {
+			StringWriter result = new StringWriter();
+			BufferedWriter writer = new BufferedWriter(result);
+			ContigScheduler scheduler = new ContigScheduler(model, mp, options, writer, threads);
+			scheduler.submit("scaffold", scaffold);
+			scheduler.submit("contig", first);
+			scheduler.finish();
+			writer.flush();
+			assertEquals(expected + App.predict(model, "contig", first, mp, options), result.toString());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testErrorsArePassedOn() throws IOException {
+		ContigScheduler scheduler = new ContigScheduler(model, mp, new DecodingOptions(),
+				new BufferedWriter(new StringWriter()), 2);
+		scheduler.submit("fine", "ACGTTAGCAT");
+		scheduler.submit("scaffold", "ACGTNNNNNNACGT");
+		scheduler.finish();
+	}
+}
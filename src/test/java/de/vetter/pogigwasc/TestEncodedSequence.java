@@ -0,0 +1,61 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestEncodedSequence {
+
+	@Test
+	public void testPacked() {
+		// longer than 32 bases, to cover more than one word
+		String sequence = "TCAGGACTTTAAACCCGGGTATATCGCGATGCATGCAAATGTCA";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		assertTrue(encoded.isPacked());
+		assertEquals(sequence.length(), encoded.length());
+		for (int i = 0; i < sequence.length(); i++) {
+			assertEquals(Utilities.baseToIndex(sequence.charAt(i)), encoded.baseAt(i));
+			assertEquals(sequence.charAt(i), encoded.charAt(i));
+		}
+		assertEquals(sequence, encoded.toString());
+		assertEquals(sequence.substring(30, 40), encoded.substring(30, 40));
+		assertEquals("", encoded.substring(5, 5));
+	}
+
+	@Test
+	public void testLowerCase() {
+		EncodedSequence encoded = new EncodedSequence("acgtNa".substring(0, 4));
+		assertTrue(encoded.isPacked());
+		assertEquals("ACGT", encoded.toString());
+		assertEquals(Utilities.baseToIndex('C'), encoded.baseAt(1));
+	}
+
+	@Test
+	public void testNotPackable() {
+		EncodedSequence encoded = new EncodedSequence("AC1GN");
+		assertFalse(encoded.isPacked());
+		assertEquals("AC1GN", encoded.toString());
+		assertEquals("1G", encoded.substring(2, 4));
+		assertEquals(Utilities.baseToIndex('C'), encoded.baseAt(1));
+		assertEquals(-1, encoded.baseAt(2));
+	}
+
+	@Test
+	public void testReverseComplement() {
+		String sequence = "TCAGGACTTTAAACCCGGGTATATCGCGATGCATGCAAATGTCAG";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		EncodedSequence reverse = encoded.getReverseComplement();
+		assertTrue(reverse.isPacked());
+		assertEquals(Utilities.reverseComplement(sequence), reverse.toString());
+		assertSame(reverse, encoded.getReverseComplement());
+		assertSame(encoded, reverse.getReverseComplement());
+
+		EncodedSequence raw = new EncodedSequence("ACNT");
+		assertEquals("ANGT", raw.getReverseComplement().toString());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testSubstringOutOfBounds() {
+		new EncodedSequence("ACGT").substring(2, 5);
+	}
+}
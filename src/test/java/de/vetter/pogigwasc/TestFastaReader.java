@@ -0,0 +1,76 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestFastaReader {
+
+	@Test
+	public void testRecords() throws IOException {
+		FastaReader reader = new FastaReader(
+				new StringReader("\n>first contig\r\nACgt\r\nTT ga\r\n\r\n>second\nNNAC\n>empty\n>last\ncc"));
+		FastaReader.Record record = reader.next();
+		assertEquals("first contig", record.getHeader());
+		assertEquals("ACGTTTGA", record.getSequence().toString());
+		assertEquals(8, record.length());
+
+		record = reader.next();
+		assertEquals("second", record.getHeader());
+		assertEquals("NNAC", record.getSequence().toString());
+
+		record = reader.next();
+		assertEquals("empty", record.getHeader());
+		assertEquals(0, record.length());
+
+		record = reader.next();
+		assertEquals("last", record.getHeader());
+		assertEquals("CC", record.getSequence().toString());
+
+		assertNull(reader.next());
+		assertNull(reader.next());
+		reader.close();
+	}
+
+	@Test
+	public void testLongRecords() throws IOException {
+		// longer than the initial buffer, in lines of 60 bases
+		Random random = new Random(7);
+		StringBuilder fasta = new StringBuilder();
+		String[] sequences = new String[3];
+		for (int r = 0; r < sequences.length; r++) {
+			StringBuilder sequence = new StringBuilder();
+			for (int i = 0; i < 100000 + 777 * r; i++)
+				sequence.append("TCAG".charAt(random.nextInt(4)));
+			sequences[r] = sequence.toString();
+			fasta.append(">contig").append(r).append('\n');
+			for (int i = 0; i < sequence.length(); i += 60)
+				fasta.append(sequence, i, Math.min(i + 60, sequence.length())).append('\n');
+		}
+
+		FastaReader reader = new FastaReader(new StringReader(fasta.toString()));
+		for (int r = 0; r < sequences.length; r++) {
+			FastaReader.Record record = reader.next();
+			assertEquals("contig" + r, record.getHeader());
+			assertEquals(sequences[r].length(), record.length());
+			assertEquals(sequences[r], record.getSequence().toString());
+			assertEquals(sequences[r].substring(500, 900), record.getSequence().subSequence(500, 900).toString());
+		}
+		assertNull(reader.next());
+	}
+
+	@Test(expected = IOException.class)
+	public void testSequenceBeforeHeader() throws IOException {
+		new FastaReader(new StringReader("ACGT\n>contig\nACGT\n")).next();
+	}
+
+	@Test
+	public void testNoRecords() throws IOException {
+		assertNull(new FastaReader(new StringReader("")).next());
+		assertNull(new FastaReader(new StringReader("\r\n\n")).next());
+	}
+}
@@ -0,0 +1,296 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.vetter.pogigwasc.states.CodingState;
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.HMMStateWithStrandAndParameters;
+import de.vetter.pogigwasc.states.InterruptedCodonState;
+import de.vetter.pogigwasc.states.IntronState;
+import de.vetter.pogigwasc.states.NoncodingState;
+import de.vetter.pogigwasc.states.SiteIndex;
+import de.vetter.pogigwasc.states.StartRegionState;
+import de.vetter.pogigwasc.states.StopRegionState;
+
+public class TestHMMState {
+
+	private ModelParameters mp;
+
+	@Before
+	public void setup() throws IOException {
+		FileReader reader = new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties"));
+		mp = new ModelParameters(reader);
+	}
+
+	private static List<Integer> collect(HMMState state, int l) {
+		List<Integer> result = new ArrayList<Integer>();
+		for (int lPrime : state.iteratePermissibleLPrimes(l))
+			result.add(lPrime);
+		return result;
+	}
+
+	@Test
+	public void testDefaultRange() {
+		HMMState state = new HMMState("any") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory,
+					String newEmission) {
+				return 0;
+			}
+		};
+		assertEquals(HMMState.VARIABLE_EMISSION_LENGTH, state.getFixedEmissionLength());
+		assertEquals(0, state.getFirstPermissibleLPrime(4));
+		assertEquals(3, state.getMaximumLPrime(4));
+		assertEquals(1, state.getLPrimeStride());
+		assertEquals(4, collect(state, 4).size());
+	}
+
+	@Test
+	public void testIndependenceOfPreviousState() {
+		// states have to claim it themselves
+		HMMState state = new HMMStateWithStrandAndParameters("any", true, mp) {
+			@Override
+			public double computeLogEmissionProbability(int previousState, EncodedSequence sequence, int start,
+					int end) {
+				return previousState;
+			}
+		};
+		assertFalse(state.isIndependentOfPreviousState());
+
+		assertTrue(new NoncodingState("ncs", mp).isIndependentOfPreviousState());
+		assertTrue(new StartRegionState("+start", true, mp).isIndependentOfPreviousState());
+		assertTrue(new CodingState("+cds", true, mp).isIndependentOfPreviousState());
+		assertTrue(new InterruptedCodonState("+ic", true, true, 1, mp).isIndependentOfPreviousState());
+		assertTrue(new IntronState("+intron", true, mp).isIndependentOfPreviousState());
+		assertTrue(new StopRegionState("-stop", false, mp).isIndependentOfPreviousState());
+	}
+
+	@Test
+	public void testStrideIsAlignedAtStartOfSequence() {
+		HMMState state = new HMMState("multiples of three") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory,
+					String newEmission) {
+				return 0;
+			}
+
+			@Override
+			public int getMinimumLPrime(int l) {
+				return l - 12;
+			}
+
+			@Override
+			public int getMaximumLPrime(int l) {
+				return l - 3;
+			}
+
+			@Override
+			public int getLPrimeStride() {
+				return 3;
+			}
+		};
+		// l - l' has to be a multiple of three, so the range may not simply be cut off at 0
+		assertEquals(1, state.getFirstPermissibleLPrime(10));
+		List<Integer> lPrimes = collect(state, 10);
+		assertEquals(3, lPrimes.size());
+		assertEquals(1, (int) lPrimes.get(0));
+		assertEquals(7, (int) lPrimes.get(2));
+
+		assertEquals(0, collect(state, 2).size());
+	}
+
+	@Test
+	public void testFixedLengthRange() {
+		CodingState cds = new CodingState("cds", true, mp);
+		assertEquals(3, cds.getFixedEmissionLength());
+		assertEquals(7, cds.getFirstPermissibleLPrime(10));
+		assertEquals(7, cds.getMaximumLPrime(10));
+		assertEquals(1, collect(cds, 10).size());
+		assertEquals(0, collect(cds, 2).size());
+	}
+
+	@Test
+	public void testIndexBasedEmissionMatchesStringBased() {
+		String sequence = "TTGTAAGTCTTTTTTTTTAAGCATGAAATGAAAAAAAAAAAAAAAAAAAATGA";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		HMMState[] states = { new CodingState("+cds", true, mp), new CodingState("-cds", false, mp),
+				new IntronState("+intron", true, mp), new IntronState("-intron", false, mp),
+				new InterruptedCodonState("-1 before", false, true, 1, mp),
+				new InterruptedCodonState("+2 after", true, false, 2, mp), new StartRegionState("+M", true, mp),
+				new StartRegionState("-M", false, mp), new StopRegionState("+Stop", true, mp),
+				new StopRegionState("-Stop", false, mp), new NoncodingState("NCS", mp) };
+		for (HMMState state : states) {
+			for (int start = 0; start < sequence.length(); start++) {
+				for (int end = start + 1; end <= sequence.length() && end - start <= 30; end++) {
+					assertEquals(state.getName() + " on [" + start + ", " + end + ")",
+							state.computeLogEmissionProbability(0, null, sequence.substring(start, end)),
+							state.computeLogEmissionProbability(0, encoded, start, end), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCodonScoreTrack() {
+		Random random = new Random(3);
+		StringBuilder sequence = new StringBuilder();
+		while (sequence.length() < 2000)
+			sequence.append(random.nextInt(4) == 0 ? (random.nextBoolean() ? "TGA" : "ATG") : "TCAG".charAt(random.nextInt(4)));
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		HMMState[] states = { new CodingState("+cds", true, mp), new CodingState("-cds", false, mp),
+				new StartRegionState("+M", true, mp), new StartRegionState("-M", false, mp),
+				new StopRegionState("+Stop", true, mp), new StopRegionState("-Stop", false, mp) };
+		int finite = 0;
+		for (HMMState state : states) {
+			int length = state.getFixedEmissionLength();
+			for (int end = length; end <= sequence.length(); end++) {
+				// scored from the track of the whole sequence, and directly from the emission alone
+				double tracked = state.computeLogEmissionProbability(0, encoded, end - length, end);
+				assertEquals(state.getName() + " ending at " + end,
+						state.computeLogEmissionProbability(0, new EncodedSequence(sequence.substring(end - length, end)), 0, length),
+						tracked, 0);
+				if (tracked > Double.NEGATIVE_INFINITY)
+					finite++;
+			}
+		}
+		assertTrue(finite > 2 * 2000);
+	}
+
+	@Test
+	public void testIntronScoreTable() {
+		String intron = "GTAAGTCTTTTTTTTTTTTTTTTAATAACAG";
+		String sequence = "CCGA" + intron + "TTAC";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		EncodedSequence reverse = new EncodedSequence(Utilities.reverseComplement(sequence));
+		int start = 4, end = 4 + intron.length();
+
+		double expected = mp.getLogProbabilityIntronLength(intron.length());
+		for (int i = 0; i < intron.length(); i++) {
+			if (i < mp.getSDSSize())
+				expected += mp.getLogBaseProbabilitySDS(intron.charAt(i), i);
+			else if (i >= intron.length() - mp.getSASSize())
+				expected += mp.getLogBaseProbabilitySAS(intron.charAt(i), i - (intron.length() - mp.getSASSize()));
+			else
+				expected += mp.getLogBaseProbabilityIntron(intron.charAt(i));
+		}
+		assertEquals(expected, new IntronState("+intron", true, mp).computeLogEmissionProbability(0, encoded, start, end), 1e-9);
+		assertEquals(expected, new IntronState("-intron", false, mp).computeLogEmissionProbability(0, reverse,
+				sequence.length() - end, sequence.length() - start), 1e-9);
+		assertEquals(Double.NEGATIVE_INFINITY,
+				new IntronState("-intron", false, mp).computeLogEmissionProbability(0, encoded, start, end), 0);
+	}
+
+	/**
+	 * The table sums along the whole contig, and has to stay as exact as the
+	 * direct sum over a single intron: up to 1e-12 of its magnitude
+	 */
+	@Test
+	public void testIntronScoreTableOnLongSequence() {
+		Random random = new Random(5);
+		char[] bases = new char[2000000];
+		for (int p = 0; p < bases.length; p++)
+			bases[p] = "ACGT".charAt(random.nextInt(4));
+		int[] starts = new int[100], ends = new int[100];
+		for (int i = 0; i < starts.length; i++) {
+			int length = mp.getMinIntronSize() + random.nextInt(mp.getMaxIntronSize() - mp.getMinIntronSize() + 1);
+			ends[i] = bases.length - random.nextInt(100000);
+			starts[i] = ends[i] - length;
+			bases[starts[i]] = 'G';
+			bases[starts[i] + 1] = 'T';
+			bases[ends[i] - 2] = 'A';
+			bases[ends[i] - 1] = 'G';
+		}
+		String sequence = new String(bases);
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		EncodedSequence reverse = new EncodedSequence(Utilities.reverseComplement(sequence));
+		IntronState forwardIntron = new IntronState("+intron", true, mp);
+		IntronState reverseIntron = new IntronState("-intron", false, mp);
+
+		for (int i = 0; i < starts.length; i++) {
+			String intron = sequence.substring(starts[i], ends[i]);
+			if (!intron.startsWith("GT") || !intron.endsWith("AG"))
+				continue; // overwritten by another one
+			double expected = mp.getLogProbabilityIntronLength(intron.length());
+			for (int j = 0; j < intron.length(); j++) {
+				if (j < mp.getSDSSize())
+					expected += mp.getLogBaseProbabilitySDS(intron.charAt(j), j);
+				else if (j >= intron.length() - mp.getSASSize())
+					expected += mp.getLogBaseProbabilitySAS(intron.charAt(j), j - (intron.length() - mp.getSASSize()));
+				else
+					expected += mp.getLogBaseProbabilityIntron(intron.charAt(j));
+			}
+			double tolerance = 1e-12 * Math.abs(expected);
+			assertEquals(expected, forwardIntron.computeLogEmissionProbability(0, encoded, starts[i], ends[i]), tolerance);
+			assertEquals(expected, reverseIntron.computeLogEmissionProbability(0, reverse,
+					sequence.length() - ends[i], sequence.length() - starts[i]), tolerance);
+		}
+	}
+
+	@Test
+	public void testSpliceSites() {
+		String sequence = "AGTCAGGTTTTTACAGCTAC";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		SiteIndex forward = new IntronState("+intron", true, mp).getPermissibleSites(encoded);
+		assertEquals(1, forward.getNextStart(0, 20, 1));
+		assertEquals(6, forward.getNextStart(2, 20, 1));
+		assertEquals(Integer.MAX_VALUE, forward.getNextStart(7, 20, 1));
+		assertEquals(2, forward.getNumberOfStarts());
+		assertTrue(forward.isPermissibleEnd(6));
+		assertTrue(forward.isPermissibleEnd(16));
+		assertFalse(forward.isPermissibleEnd(15));
+
+		SiteIndex reverse = new IntronState("-intron", false, mp).getPermissibleSites(encoded);
+		assertEquals(16, reverse.getNextStart(0, 20, 1));
+		assertTrue(reverse.isPermissibleEnd(14));
+		assertTrue(reverse.isPermissibleEnd(20));
+		assertFalse(reverse.isPermissibleEnd(16));
+
+		// the stride is respected
+		assertEquals(6, forward.getNextStart(0, 9, 3));
+		assertEquals(1, forward.getNextStart(0, 10, 3));
+		assertEquals(Integer.MAX_VALUE, forward.getNextStart(2, 10, 3));
+	}
+
+	@Test
+	public void testRequiredMotifsMatchEmissions() {
+		Random random = new Random(7);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			builder.append("TCAG".charAt(random.nextInt(4)));
+		EncodedSequence encoded = new EncodedSequence(builder);
+		HMMState[] states = { new StartRegionState("+M", true, mp), new StartRegionState("-M", false, mp),
+				new StopRegionState("+Stop", true, mp), new StopRegionState("-Stop", false, mp) };
+		for (HMMState state : states) {
+			BitSet permissible = encoded.getPrecomputed(state.getRequiredMotif());
+			assertTrue(permissible.cardinality() > 0);
+			int length = state.getFixedEmissionLength();
+			for (int l = length; l <= encoded.length(); l++) {
+				boolean possible = state.computeLogEmissionProbability(0, encoded, l - length,
+						l) > Double.NEGATIVE_INFINITY;
+				// the motif is necessary, not sufficient (e.g. in-frame stops inside the stop region)
+				assertTrue(state.getName() + " at " + l, !possible || permissible.get(l));
+			}
+		}
+	}
+
+	@Test
+	public void testIntronRange() {
+		IntronState intron = new IntronState("intron", true, mp);
+		List<Integer> lPrimes = collect(intron, 100);
+		assertEquals(mp.getMaxIntronSize() - mp.getMinIntronSize() + 1, lPrimes.size());
+		assertEquals(100 - mp.getMaxIntronSize(), (int) lPrimes.get(0));
+		assertEquals(100 - mp.getMinIntronSize(), (int) lPrimes.get(lPrimes.size() - 1));
+	}
+}
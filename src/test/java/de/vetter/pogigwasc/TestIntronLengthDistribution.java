@@ -0,0 +1,92 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class TestIntronLengthDistribution {
+
+	private static final double TOLERANCE = 1e-10;
+
+	private static double sumOf(double[] logProbabilities) {
+		double sum = 0;
+		for (double logProbability : logProbabilities)
+			sum += Math.exp(logProbability);
+		return sum;
+	}
+
+	@Test
+	public void testTruncatedPoissonAsBefore() {
+		// long enough for Utilities.logFactorial to leave its table
+		int minimum = 20, maximum = 400;
+		double mean = 95;
+		double[] table = IntronLengthDistribution.truncatedPoisson(mean).tabulate(minimum, maximum);
+		assertEquals(maximum - minimum + 1, table.length);
+
+		// the distribution as it was computed for each length on its own
+		double lambda = mean - minimum;
+		double sumOverValid = 0;
+		for (int l = 0; l <= maximum - minimum; l++)
+			sumOverValid += Math.exp(l * Math.log(lambda) - Utilities.logFactorial(l));
+		double normaliser = (1 - Math.exp(Math.log(sumOverValid) - lambda)) / (maximum - minimum + 1);
+		for (int k = 0; k <= maximum - minimum; k++) {
+			double poisson = k * Math.log(lambda) - lambda;
+			poisson -= Utilities.logFactorial(k);
+			assertEquals(Math.log(Math.exp(poisson) + normaliser), table[k], 0);
+		}
+		assertEquals(1, sumOf(table), 1e-9);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTruncatedPoissonMeanOutOfRange() {
+		IntronLengthDistribution.truncatedPoisson(50).tabulate(12, 30);
+	}
+
+	@Test
+	public void testHistogram() {
+		Map<Integer, Double> counts = new HashMap<Integer, Double>();
+		counts.put(10, 2d);
+		counts.put(12, 6d);
+		double[] table = IntronLengthDistribution.histogram(counts, 0).tabulate(10, 13);
+		assertEquals(Math.log(0.25), table[0], TOLERANCE);
+		assertEquals(Double.NEGATIVE_INFINITY, table[1], 0);
+		assertEquals(Math.log(0.75), table[2], TOLERANCE);
+
+		table = IntronLengthDistribution.histogram(counts, 1).tabulate(10, 13);
+		assertEquals(Math.log(1 / 12d), table[3], TOLERANCE);
+		assertEquals(1, sumOf(table), TOLERANCE);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHistogramOutOfRange() {
+		Map<Integer, Double> counts = new HashMap<Integer, Double>();
+		counts.put(9, 1d);
+		IntronLengthDistribution.histogram(counts, 0).tabulate(10, 13);
+	}
+
+	@Test
+	public void testGeometricTail() {
+		IntronLengthDistribution body = IntronLengthDistribution.truncatedPoisson(40);
+		double[] expected = body.tabulate(12, 200);
+		double[] table = IntronLengthDistribution.withGeometricTail(body, 60, 10).tabulate(12, 200);
+		for (int k = 0; k <= 60 - 12; k++)
+			assertEquals(expected[k], table[k], 0);
+		double tailMass = 0;
+		for (int k = 61 - 12; k < table.length; k++) {
+			tailMass += Math.exp(expected[k]);
+			if (k > 61 - 12)
+				assertEquals(Math.log(0.9), table[k] - table[k - 1], TOLERANCE);
+		}
+		assertEquals(1, sumOf(table), 1e-9);
+		double sum = 0;
+		for (int k = 61 - 12; k < table.length; k++)
+			sum += Math.exp(table[k]);
+		assertEquals(tailMass, sum, 1e-12);
+
+		// a tail beyond the maximum changes nothing
+		assertArrayEquals(expected, IntronLengthDistribution.withGeometricTail(body, 200, 10).tabulate(12, 200), 0);
+	}
+}
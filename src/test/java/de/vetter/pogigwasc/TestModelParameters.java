@@ -6,6 +6,9 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -91,6 +94,81 @@ public class TestModelParameters {
 		assertEquals(0.1, array[4], TOLERANCE);
 	}
 	
+	@Test
+	public void testParseLengthCounts() {
+		Map<Integer, Double> counts = ModelParameters.parseLengthCounts("{ 12: 3, 13 :10.5,\n 20:0}");
+		assertEquals(3, counts.size());
+		assertEquals(3d, counts.get(12), TOLERANCE);
+		assertEquals(10.5, counts.get(13), TOLERANCE);
+		assertEquals(0d, counts.get(20), TOLERANCE);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void testParseLengthCountsInvalid() {
+		ModelParameters.parseLengthCounts("{12: 3, 13}");
+	}
+	
+	/**
+	 * @return the example parameters, with the given lines appended (which
+	 *         override earlier values)
+	 */
+	private static ModelParameters exampleWith(String... lines) throws IOException {
+		File file = File.createTempFile("parameters", ".properties");
+		try {
+			StringBuilder content = new StringBuilder(new String(Files.readAllBytes(
+					new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties").toPath()),
+					StandardCharsets.ISO_8859_1));
+			for (String line : lines)
+				content.append("\n").append(line);
+			Files.write(file.toPath(), content.toString().getBytes(StandardCharsets.ISO_8859_1));
+			try (FileReader reader = new FileReader(file)) {
+				return new ModelParameters(reader);
+			}
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void testIntronLengthHistogram() throws IOException {
+		ModelParameters histogram = exampleWith("intron_length_distribution: histogram",
+				"intron_length_histogram: {12: 1, 15: 6, 30: 3}");
+		assertEquals(Math.log(0.1), histogram.getLogProbabilityIntronLength(12), TOLERANCE);
+		assertEquals(Math.log(0.6), histogram.getLogProbabilityIntronLength(15), TOLERANCE);
+		assertEquals(Double.NEGATIVE_INFINITY, histogram.getLogProbabilityIntronLength(16), 0);
+		
+		ModelParameters smoothed = exampleWith("intron_length_distribution: histogram",
+				"intron_length_histogram: {12: 1, 15: 6, 30: 3}", "intron_length_histogram_pseudocount: 0.5");
+		assertEquals(Math.log(0.5 / 19.5), smoothed.getLogProbabilityIntronLength(16), TOLERANCE);
+		
+		try {
+			exampleWith("intron_length_distribution: histogram");
+			fail("the histogram is missing");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("intron_length_histogram"));
+		}
+		try {
+			exampleWith("intron_length_distribution: gamma");
+			fail("there is no such distribution");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("gamma"));
+		}
+	}
+	
+	@Test
+	public void testIntronLengthGeometricTail() throws IOException {
+		ModelParameters tailed = exampleWith("intron_length_geometric_tail_start: 20",
+				"intron_length_geometric_tail_mean: 4");
+		for (int length = mp.getMinIntronSize(); length <= 20; length++)
+			assertEquals(mp.getLogProbabilityIntronLength(length), tailed.getLogProbabilityIntronLength(length), 0);
+		double sum = 0;
+		for (int length = mp.getMinIntronSize(); length <= mp.getMaxIntronSize(); length++)
+			sum += Math.exp(tailed.getLogProbabilityIntronLength(length));
+		assertEquals(1, sum, 1e-9);
+		assertEquals(Math.log(0.75), tailed.getLogProbabilityIntronLength(25) - tailed.getLogProbabilityIntronLength(24),
+				TOLERANCE);
+	}
+	
 	@Test(expected=IllegalArgumentException.class)
 	public void testParseRowVectorInvalidLength() {
 		double[] array = ModelParameters.parseRowVector("{-1.034, 2. 7, 8, -0, .1}", 3);
@@ -184,6 +262,45 @@ public class TestModelParameters {
 		assertEquals(0.265*0.16*0.14, Math.exp(mp.getLogCodonProbabilityStopRegion("GCG")), TOLERANCE);
 	}
 	
+	@Test
+	public void testCodonTables() {
+		String bases = "TCAG";
+		for (int first = 0; first < 4; first++) {
+			for (int second = 0; second < 4; second++) {
+				for (int third = 0; third < 4; third++) {
+					String codon = "" + bases.charAt(first) + bases.charAt(second) + bases.charAt(third);
+					int index = ModelParameters.codonIndex(first, second, third);
+					assertEquals(codon, mp.getLogCodonProbabilityStopRegion(codon),
+							mp.getLogCodonProbabilityStopRegion(index), 0);
+					assertEquals(codon, mp.getLogBaseProbabilityCDS(first, 0) + mp.getLogBaseProbabilityCDS(second, 1)
+							+ mp.getLogBaseProbabilityCDS(third, 2), mp.getLogCodonProbabilityCDS(index), 0);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testStartRegionKmerTable() {
+		assertTrue(mp.isStartRegionUpstreamTabulated());
+		int[] kmer = new int[mp.getStartRegionSize() - 3];
+		double expected = 0;
+		for (int i = 0; i < kmer.length; i++) {
+			kmer[i] = i % 4;
+			expected += mp.getLogBaseProbabilityStartRegion(kmer[i]);
+		}
+		assertEquals(expected, mp.getLogKmerProbabilityStartRegionUpstream(ModelParameters.kmerIndex(kmer)), 0);
+	}
+	
+	@Test
+	public void testIntronLengthTable() {
+		assertEquals(Double.NEGATIVE_INFINITY, mp.getLogProbabilityIntronLength(mp.getMinIntronSize() - 1), 0);
+		assertEquals(Double.NEGATIVE_INFINITY, mp.getLogProbabilityIntronLength(mp.getMaxIntronSize() + 1), 0);
+		double sum = 0;
+		for (int length = mp.getMinIntronSize(); length <= mp.getMaxIntronSize(); length++)
+			sum += Math.exp(mp.getLogProbabilityIntronLength(length));
+		assertEquals(1, sum, 1e-6);
+	}
+	
 	@Test(expected = IllegalArgumentException.class)
 	public void testGetLogCodonProbabilityStopRegionCodonTooLong() {
 		assertEquals(0, Math.exp(mp.getLogCodonProbabilityStopRegion("GAATTC")), TOLERANCE);
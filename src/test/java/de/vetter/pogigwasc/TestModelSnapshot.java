@@ -0,0 +1,194 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestModelSnapshot {
+
+	private ModelParameters mp;
+	private File file;
+
+	@Before
+	public void setup() throws IOException {
+		FileReader reader = new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties"));
+		mp = new ModelParameters(reader);
+		file = File.createTempFile("pogigwasc", ".snapshot");
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	private static void assertSameTopology(CompiledGHMM expected, CompiledGHMM actual) {
+		assertEquals(expected.getNumberOfStates(), actual.getNumberOfStates());
+		for (int q = 0; q < expected.getNumberOfStates(); q++) {
+			assertEquals(expected.getOriginalIndex(q), actual.getOriginalIndex(q));
+			assertEquals(expected.getState(q).getName(), actual.getState(q).getName());
+			assertEquals(expected.getPredecessorStart(q), actual.getPredecessorStart(q));
+			assertEquals(expected.getPredecessorEnd(q), actual.getPredecessorEnd(q));
+			assertEquals(expected.getLogTransitionToTerminal(q), actual.getLogTransitionToTerminal(q), 0);
+			for (int k = expected.getPredecessorStart(q); k < expected.getPredecessorEnd(q); k++) {
+				assertEquals(expected.getPredecessorState(k), actual.getPredecessorState(k));
+				assertEquals(expected.getPredecessorLogTransition(k), actual.getPredecessorLogTransition(k), 0);
+			}
+		}
+		assertEquals(expected.getMaximumEmissionLength(), actual.getMaximumEmissionLength());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		ModelSnapshot.write(mp, false, file);
+		assertTrue(ModelSnapshot.isSnapshot(file));
+		ModelSnapshot snapshot = ModelSnapshot.load(file);
+		assertFalse(snapshot.isIntronless());
+
+		ModelParameters loaded = snapshot.getParameters();
+		assertEquals(mp.getMinIntronSize(), loaded.getMinIntronSize());
+		assertEquals(mp.getMaxIntronSize(), loaded.getMaxIntronSize());
+		for (int length = mp.getMinIntronSize(); length <= mp.getMaxIntronSize(); length++)
+			assertEquals(mp.getLogProbabilityIntronLength(length), loaded.getLogProbabilityIntronLength(length), 0);
+		for (int codon = 0; codon < 64; codon++) {
+			assertEquals(mp.getLogCodonProbabilityCDS(codon), loaded.getLogCodonProbabilityCDS(codon), 0);
+			assertEquals(mp.getLogCodonProbabilityStopRegion(codon), loaded.getLogCodonProbabilityStopRegion(codon), 0);
+		}
+		for (int base = 0; base < 4; base++) {
+			assertEquals(mp.getLogBaseProbabilityNCS(base), loaded.getLogBaseProbabilityNCS(base), 0);
+			assertEquals(mp.getLogBaseProbabilityIntron(base), loaded.getLogBaseProbabilityIntron(base), 0);
+		}
+
+		CompiledGHMM expected = new LoxodesMagnusGHMM(mp).compile();
+		assertSameTopology(expected, snapshot.getModel());
+
+		EncodedSequence sequence = TestViterbi.plantedGenes(8000, 5);
+		List<Parse> expectedParses = new Viterbi(expected, sequence).computeParses();
+		List<Parse> actualParses = new Viterbi(snapshot.getModel(), sequence).computeParses();
+		assertEquals(expectedParses.size(), actualParses.size());
+		for (int p = 0; p < expectedParses.size(); p++) {
+			assertEquals(LoxodesMagnusGHMM.parseToGFF("contig", expectedParses.get(p), mp, 0),
+					LoxodesMagnusGHMM.parseToGFF("contig", actualParses.get(p), loaded, 0));
+		}
+	}
+
+	@Test
+	public void testIntronless() throws IOException {
+		ModelSnapshot.write(mp, true, file);
+		ModelSnapshot snapshot = ModelSnapshot.load(file);
+		assertTrue(snapshot.isIntronless());
+		assertSameTopology(new LoxodesMagnusIntronless(mp).compile(), snapshot.getModel());
+	}
+
+	@Test
+	public void testRejectsOtherFiles() throws IOException {
+		assertFalse(ModelSnapshot.isSnapshot(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties")));
+
+		ModelSnapshot.write(mp, false, file);
+		try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+			access.seek(4);
+			access.writeInt(ModelSnapshot.VERSION + 1);
+		}
+		assertTrue(ModelSnapshot.isSnapshot(file));
+		try {
+			ModelSnapshot.load(file);
+			fail("a snapshot of another version must not be loaded");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("version"));
+		}
+
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeInt(ModelSnapshot.MAGIC);
+			out.writeInt(ModelSnapshot.VERSION);
+			out.writeBoolean(false);
+			out.writeInt(3);
+		}
+		try {
+			ModelSnapshot.load(file);
+			fail("a truncated snapshot must not be loaded");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("damaged"));
+		}
+	}
+
+	@Test
+	public void testRejectsLengthsBeyondTheFile() throws IOException {
+		ModelSnapshot.write(mp, false, file);
+		try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+			// the length of the first array of the parameters, after magic, version,
+			// intronless, three doubles and four ints
+			access.seek(4 + 4 + 1 + 3 * 8 + 4 * 4);
+			access.writeInt(Integer.MAX_VALUE);
+		}
+		try {
+			ModelSnapshot.load(file);
+			fail("a length beyond the end of the snapshot must not be allocated");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("damaged"));
+		}
+
+		// each reader checks the length before it allocates
+		assertEquals(6, ModelSnapshot.readString(lengthAndTwelveBytes(6)).length());
+		assertEquals(3, ModelSnapshot.readInts(lengthAndTwelveBytes(3)).length);
+		assertEquals(1, ModelSnapshot.readDoubles(lengthAndTwelveBytes(1)).length);
+		assertUnderflow(() -> ModelSnapshot.readString(lengthAndTwelveBytes(7)));
+		assertUnderflow(() -> ModelSnapshot.readInts(lengthAndTwelveBytes(4)));
+		assertUnderflow(() -> ModelSnapshot.readDoubles(lengthAndTwelveBytes(2)));
+		assertUnderflow(() -> ModelSnapshot.readMatrix(lengthAndTwelveBytes(4)));
+		assertUnderflow(() -> ModelSnapshot.readInts(lengthAndTwelveBytes(-1)));
+	}
+
+	@Test
+	public void testRejectsNullForRequiredArrays() throws IOException {
+		ModelSnapshot.write(mp, false, file);
+		try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+			// the first array of the parameters (the NCS base probabilities) is required
+			access.seek(4 + 4 + 1 + 3 * 8 + 4 * 4);
+			access.writeInt(-1);
+		}
+		try {
+			ModelSnapshot.load(file);
+			fail("a required array must not be read as null");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("damaged"));
+		}
+
+		assertUnderflow(() -> ModelSnapshot.readDoubles(lengthAndTwelveBytes(-1)));
+		ByteBuffer optional = lengthAndTwelveBytes(-1);
+		assertNull(ModelSnapshot.readOptionalDoubles(optional));
+		assertEquals(4, optional.position());
+		assertEquals(1, ModelSnapshot.readOptionalDoubles(lengthAndTwelveBytes(1)).length);
+		assertUnderflow(() -> ModelSnapshot.readOptionalDoubles(lengthAndTwelveBytes(-2)));
+	}
+
+	/**
+	 * @return buffer with the given length, followed by 12 bytes
+	 */
+	private static ByteBuffer lengthAndTwelveBytes(int length) {
+		ByteBuffer in = ByteBuffer.allocate(4 + 12);
+		in.putInt(0, length);
+		return in;
+	}
+
+	private static void assertUnderflow(Runnable read) {
+		try {
+			read.run();
+			fail("the length does not fit the bytes left");
+		} catch (BufferUnderflowException e) {
+			// as expected
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import de.vetter.pogigwasc.states.HMMState;
+
+public class TestOnlineViterbi {
+
+	@Test
+	public void testSameParseAsViterbi() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		for (long seed = 1; seed <= 3; seed++) {
+			EncodedSequence encoded = TestViterbi.plantedGenes(15000, seed, "TTTAAAATTAAAG");
+			Viterbi viterbi = new Viterbi(model, encoded);
+			Parse expected = viterbi.computeParses().get(0);
+
+			OnlineViterbi online = new OnlineViterbi(model, encoded);
+			online.setCheckInterval(500);
+			Parse parse = online.computeParse();
+			TestViterbi.assertSameParses(Collections.singletonList(expected), Collections.singletonList(parse));
+			assertEquals(viterbi.getLogLikelihood(), online.getLogLikelihood(), 0);
+			// the parse was fixed along the way, so only a part of the sequence was held at once
+			assertTrue(online.getNumberOfCoalescences() > 5);
+			assertTrue(online.getMaximumUndecidedColumns() < encoded.length() / 2);
+		}
+	}
+
+	@Test
+	public void testSegmentsTranslateLikeTheWholeParse() throws IOException {
+		ModelParameters parameters = new ModelParameters(new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties")));
+		CompiledGHMM model = new LoxodesMagnusGHMM(parameters).compile();
+		EncodedSequence encoded = TestViterbi.plantedGenes(8000, 7, "TTTAAAATTAAAG");
+		String expected = LoxodesMagnusGHMM.parseToGFF("contig", new Viterbi(model, encoded).computeParses().get(0),
+				parameters);
+
+		StringBuilder gff = new StringBuilder();
+		int[] segments = new int[1];
+		int[] end = new int[1];
+		OnlineViterbi online = new OnlineViterbi(model, encoded);
+		online.setCheckInterval(200);
+		online.decode((segment, start) -> {
+			// consecutive, without gaps
+			assertEquals(end[0], start);
+			end[0] = start + segment.getLength();
+			segments[0]++;
+			gff.append(LoxodesMagnusGHMM.parseToGFF("contig", segment, parameters, start));
+		});
+		assertEquals(encoded.length(), end[0]);
+		assertTrue(segments[0] > 1);
+		assertEquals(expected, gff.toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnboundedEmissionsAreRejected() {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new HMMState("any length") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				return newEmission.length() * Math.log(0.5);
+			}
+		});
+		ghmm.initialiseTransitionMatrix();
+		new OnlineViterbi(ghmm.compile(), new EncodedSequence("TCAG"));
+	}
+}
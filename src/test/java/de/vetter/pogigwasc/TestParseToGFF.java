@@ -5,6 +5,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -154,4 +155,42 @@ public class TestParseToGFF {
 		assertEquals("+", stopCodonLine[6]);
 	}
 
+	/**
+	 * Appends noncoding bases and a single-exon gene on the forward strand to the parse
+	 */
+	private void addGene(Parse parse, int noncodingBases) {
+		for (int i = 0; i < noncodingBases; i++)
+			parse.add(ghmm.getState(2), 1);
+		parse.add(ghmm.getState(3), 6);
+		for (int i = 0; i < 7; i++)
+			parse.add(ghmm.getState(4), 3);
+		parse.add(ghmm.getState(5), 24);
+	}
+
+	@Test
+	public void testParsesToGFF() {
+		Parse first = new Parse(), second = new Parse();
+		addGene(first, 10);
+		addGene(first, 5);
+		addGene(second, 10);
+		addGene(second, 8);
+
+		String single = LoxodesMagnusGHMM.parsesToGFF("CONTIGNAME", Arrays.asList(first), mp);
+		assertEquals(LoxodesMagnusGHMM.parseToGFF("CONTIGNAME", first, mp), single);
+
+		String[] lines = LoxodesMagnusGHMM.parsesToGFF("CONTIGNAME", Arrays.asList(first, second), mp)
+				.split(System.lineSeparator());
+		assertEquals(6, lines.length);
+		// the first gene is shared, and written as usual
+		String[] firstGene = LoxodesMagnusGHMM.parseToGFF("CONTIGNAME", first, mp).split(System.lineSeparator());
+		assertEquals(firstGene[0], lines[0]);
+		assertEquals(firstGene[1], lines[1]);
+		// the second gene differs: first parse, then second parse (by start)
+		assertEquals("parses=1", lines[2].split("\t")[8]);
+		assertEquals("parses=2", lines[3].split("\t")[8]);
+		assertEquals("CDS", lines[3].split("\t")[2]);
+		assertEquals(Integer.parseInt(lines[2].split("\t")[3]) + 3, Integer.parseInt(lines[3].split("\t")[3]));
+		assertEquals("stop_codon", lines[5].split("\t")[2]);
+	}
+
 }
@@ -0,0 +1,140 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.vetter.pogigwasc.Viterbi.ScoreStorage;
+
+public class TestScoreMatrix {
+
+	/** a column as found far into a long contig: large values, close to each other */
+	private static final double[] COLUMN = { 0, Double.NEGATIVE_INFINITY, -536012.3206562325, -536012.3216562325,
+			-536020.75, -535990.0001, Double.NEGATIVE_INFINITY };
+
+	@Test
+	public void testExactStorage() {
+		for (ScoreStorage storage : new ScoreStorage[] { ScoreStorage.DOUBLE, ScoreStorage.POSITION_MAJOR }) {
+			ScoreMatrix matrix = storage.create(COLUMN.length, 3);
+			for (int l = 0; l < 3; l++) {
+				for (int q = 0; q < COLUMN.length; q++)
+					matrix.set(q, l, COLUMN[q] - l);
+			}
+			for (int l = 0; l < 3; l++) {
+				for (int q = 0; q < COLUMN.length; q++)
+					assertEquals(COLUMN[q] - l, matrix.get(q, l), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testCompactStorage() {
+		// a plain float could not tell the values 0.001 apart
+		assertEquals((float) COLUMN[2], (float) COLUMN[3], 0);
+
+		ScoreMatrix floats = ScoreStorage.FLOAT.create(COLUMN.length, 2);
+		ScoreMatrix integers = ScoreStorage.SCALED_INTEGER.create(COLUMN.length, 2);
+		for (int q = 1; q < COLUMN.length; q++) {
+			floats.set(q, 1, COLUMN[q]);
+			integers.set(q, 1, COLUMN[q]);
+		}
+		for (int q = 1; q < COLUMN.length; q++) {
+			if (COLUMN[q] == Double.NEGATIVE_INFINITY) {
+				assertEquals(Double.NEGATIVE_INFINITY, floats.get(q, 1), 0);
+				assertEquals(Double.NEGATIVE_INFINITY, integers.get(q, 1), 0);
+			} else {
+				// relative to the spread of the column (about 30 nats), not the magnitude of the values
+				assertEquals(COLUMN[q], floats.get(q, 1), 30 * Math.ulp(1f));
+				assertEquals(COLUMN[q], integers.get(q, 1), 0.5 / ScaledIntegerScoreMatrix.SCALE);
+			}
+		}
+		assertTrue(floats.get(2, 1) > floats.get(3, 1));
+		assertTrue(integers.get(2, 1) > integers.get(3, 1));
+		// the first finite value of a column is its base, which is exact
+		assertEquals(COLUMN[2], floats.get(2, 1), 0);
+		assertEquals(COLUMN[2], integers.get(2, 1), 0);
+	}
+
+	@Test
+	public void testDecodingAgainstDouble() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		EncodedSequence encoded = TestViterbi.plantedGenes(6000, 3);
+		Viterbi exact = new Viterbi(model, encoded);
+		List<Parse> expected = exact.computeParses();
+
+		for (ScoreStorage storage : ScoreStorage.values()) {
+			Viterbi viterbi = new Viterbi(model, encoded);
+			viterbi.setScoreStorage(storage);
+			List<Parse> parses = viterbi.computeParses();
+			if (storage.getBytesPerCell() == 8) {
+				TestViterbi.assertSameParses(expected, parses);
+				assertEquals(exact.getLogLikelihood(), viterbi.getLogLikelihood(), 0);
+			} else {
+				// rounding errors add up along the parse, but stay far below any real difference
+				TestViterbi.assertSameParses(expected.subList(0, 1), parses.subList(0, 1));
+				assertEquals(exact.getLogLikelihood(), viterbi.getLogLikelihood(),
+						1e-3 * expected.get(0).getNumberOfSteps());
+			}
+		}
+	}
+
+	@Test
+	public void testColumnBaseFixedBeforehand() {
+		ScoreMatrix floats = ScoreStorage.FLOAT.create(COLUMN.length, 2);
+		for (int q = 0; q < COLUMN.length; q++)
+			floats.set(q, 0, COLUMN[q]);
+		floats.startColumn(1);
+		// the base is the best value of the previous column, whatever is set first
+		floats.set(4, 1, -536020.75);
+		floats.set(5, 1, -10);
+		assertEquals(-536020.75, floats.get(4, 1), 30 * Math.ulp(1f));
+		assertEquals(-10, floats.get(5, 1), 0);
+	}
+
+	@Test
+	public void testParallelColumnsWithCompactStorage() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		EncodedSequence encoded = TestViterbi.plantedGenes(6000, 3);
+		for (ScoreStorage storage : new ScoreStorage[] { ScoreStorage.FLOAT, ScoreStorage.SCALED_INTEGER }) {
+			Viterbi sequential = new Viterbi(model, encoded);
+			sequential.setScoreStorage(storage);
+			List<Parse> expected = sequential.computeParses();
+			for (int threads : new int[] { 2, 5 }) {
+				Viterbi parallel = new Viterbi(model, encoded);
+				parallel.setScoreStorage(storage);
+				parallel.setParallelism(threads);
+				parallel.setMinimumParallelLength(0);
+				TestViterbi.assertSameParses(expected, parallel.computeParses());
+				assertEquals(sequential.getLogLikelihood(), parallel.getLogLikelihood(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testTiesUnderRounding() {
+		CompiledGHMM model = TestViterbi.tieModel();
+		String sequence = "1100000001110000000111000000011";
+		Set<String> tied = new HashSet<String>();
+		for (Parse parse : new Viterbi(model, sequence).computeParses())
+			tied.add(TestViterbi.describe(parse));
+		assertEquals(8, tied.size());
+
+		for (ScoreStorage storage : ScoreStorage.values()) {
+			Viterbi viterbi = new Viterbi(model, sequence);
+			viterbi.setScoreStorage(storage);
+			List<Parse> parses = viterbi.computeParses();
+			// exact storage keeps all ties; rounding may break some of them, but never
+			// introduces a parse that is not one of the most likely ones here
+			if (storage.getBytesPerCell() == 8)
+				assertEquals(8, parses.size());
+			assertFalse(parses.isEmpty());
+			for (Parse parse : parses)
+				assertTrue(storage + ": " + TestViterbi.describe(parse), tied.contains(TestViterbi.describe(parse)));
+		}
+	}
+}
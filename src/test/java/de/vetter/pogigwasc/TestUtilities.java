@@ -2,6 +2,8 @@ package de.vetter.pogigwasc;
 
 import static org.junit.Assert.*;
 
+import java.util.List;
+
 import org.junit.Test;
 
 public class TestUtilities {
@@ -42,5 +44,30 @@ public class TestUtilities {
 	public void testLogFactorialLarge() {
 		assertEquals(148.47776695177305, Utilities.logFactorial(50), 1e-10);
 	}
+	
+	@Test
+	public void testLogFactorials() {
+		double[] logFactorials = Utilities.logFactorials(120);
+		assertEquals(121, logFactorials.length);
+		for (int k = 0; k <= 120; k++)
+			assertEquals(Utilities.logFactorial(k), logFactorials[k], 0);
+	}
+	
+	@Test
+	public void testFindSegmentsBetweenNs() {
+		String scaffold = "NNACGTNNNNACnGTTACANTTNN";
+		List<Pair<Integer, Integer>> segments = Utilities.findSegmentsBetweenNs(scaffold, 0);
+		assertEquals(4, segments.size());
+		assertEquals("ACGT", scaffold.substring(segments.get(0).getFirst(), segments.get(0).getSecond()));
+		assertEquals("AC", scaffold.substring(segments.get(1).getFirst(), segments.get(1).getSecond()));
+		assertEquals("GTTACA", scaffold.substring(segments.get(2).getFirst(), segments.get(2).getSecond()));
+		assertEquals("TT", scaffold.substring(segments.get(3).getFirst(), segments.get(3).getSecond()));
+		
+		segments = Utilities.findSegmentsBetweenNs(scaffold, 4);
+		assertEquals(2, segments.size());
+		assertEquals(2, (int) segments.get(0).getFirst());
+		assertEquals(13, (int) segments.get(1).getFirst());
+		assertTrue(Utilities.findSegmentsBetweenNs("NNN", 0).isEmpty());
+	}
 
 }
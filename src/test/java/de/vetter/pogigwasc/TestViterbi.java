@@ -2,6 +2,15 @@ package de.vetter.pogigwasc;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
 import org.junit.Test;
 import de.vetter.pogigwasc.states.HMMState;
 
@@ -63,5 +72,489 @@ public class TestViterbi {
 		assertEquals(2, viterbi.computeParses().size());
 		
 	}
+	
+	/**
+	 * State emitting single characters, counting how often it is asked for an emission probability
+	 */
+	private static class CountingState extends HMMState {
+		private boolean independent;
+		private int calls = 0;
+		
+		public CountingState(String name, boolean independent) {
+			super(name);
+			this.independent = independent;
+		}
+		
+		@Override
+		public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+			calls++;
+			if(newEmission.length() != 1)
+				return Double.NEGATIVE_INFINITY;
+			return newEmission.equals(getName()) ? Math.log(0.9) : Math.log(0.1);
+		}
+		
+		@Override
+		public boolean isIndependentOfPreviousState() {
+			return independent;
+		}
+	}
+	
+	private static Parse decodeWithCountingStates(CountingState x, CountingState y, String sequence) {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(x);
+		ghmm.addState(y);
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.4);
+		ghmm.setTransitionProbability(2, 3, 0.4);
+		ghmm.setTransitionProbability(2, 1, 0.2);
+		ghmm.setTransitionProbability(3, 2, 0.5);
+		ghmm.setTransitionProbability(3, 3, 0.3);
+		ghmm.setTransitionProbability(3, 1, 0.2);
+		
+		Viterbi viterbi = new Viterbi(ghmm, sequence);
+		viterbi.setAbbreviating(true);
+		List<Parse> parses = viterbi.computeParses();
+		assertEquals(1, parses.size());
+		return parses.get(0);
+	}
+	
+	@Test
+	public void testEmissionHistory() {
+		final String sequence = "0110100011101";
+		final List<String> histories = new ArrayList<String>();
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new HMMState("repeat") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				histories.add(emissionHistory);
+				if(newEmission.length() != 1)
+					return Double.NEGATIVE_INFINITY;
+				if(emissionHistory == null || emissionHistory.isEmpty())
+					return Math.log(0.5);
+				return emissionHistory.endsWith(newEmission) ? Math.log(0.8) : Math.log(0.2);
+			}
+		});
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.9);
+		ghmm.setTransitionProbability(2, 1, 0.1);
+		
+		Viterbi viterbi = new Viterbi(ghmm, sequence);
+		viterbi.computeParses();
+		assertFalse(histories.isEmpty());
+		for(String history : histories)
+			assertTrue(sequence.startsWith(history));
+		// 5 repeats and 7 changes after the first base
+		assertEquals(13 * Math.log(0.9) + Math.log(0.1 / 0.9) + Math.log(0.5) + 5 * Math.log(0.8)
+				+ 7 * Math.log(0.2), viterbi.getLogLikelihood(), 1e-9);
+		
+		histories.clear();
+		viterbi = new Viterbi(ghmm, sequence);
+		viterbi.setAbbreviating(true);
+		viterbi.computeParses();
+		assertEquals(13 * Math.log(0.9) + Math.log(0.1 / 0.9) + 13 * Math.log(0.5), viterbi.getLogLikelihood(),
+				1e-9);
+		for(String history : histories)
+			assertNull(history);
+	}
+	
+	@Test
+	public void testIndependentOfPreviousStateScoresOnce() {
+		String sequence = "xxyyxyxxxyyyx";
+		CountingState dependentX = new CountingState("x", false);
+		CountingState dependentY = new CountingState("y", false);
+		Parse reference = decodeWithCountingStates(dependentX, dependentY, sequence);
+		
+		CountingState independentX = new CountingState("x", true);
+		CountingState independentY = new CountingState("y", true);
+		Parse parse = decodeWithCountingStates(independentX, independentY, sequence);
+		
+		assertEquals(reference.getNumberOfSteps(), parse.getNumberOfSteps());
+		for(int i = 0; i < parse.getNumberOfSteps(); i++) {
+			assertEquals(reference.get(i).getFirst().getName(), parse.get(i).getFirst().getName());
+			assertEquals(reference.get(i).getSecond(), parse.get(i).getSecond());
+		}
+		// y has two predecessors, so it is scored only about half as often
+		assertTrue(independentY.calls < dependentY.calls);
+		assertTrue(independentX.calls < dependentX.calls);
+	}
+	
+	static void assertSameParses(List<Parse> expected, List<Parse> actual) {
+		assertEquals(expected.size(), actual.size());
+		for(int p = 0; p < expected.size(); p++) {
+			assertEquals(expected.get(p).getNumberOfSteps(), actual.get(p).getNumberOfSteps());
+			for(int i = 0; i < expected.get(p).getNumberOfSteps(); i++) {
+				assertSame(expected.get(p).get(i).getFirst(), actual.get(p).get(i).getFirst());
+				assertEquals(expected.get(p).get(i).getSecond(), actual.get(p).get(i).getSecond());
+			}
+		}
+	}
+	
+	static CompiledGHMM loadLoxodesMagnus() throws IOException {
+		FileReader reader = new FileReader(
+				new File("resources//de//vetter//pogigwasc//parameter//parameters-examplefile.properties"));
+		return new LoxodesMagnusGHMM(new ModelParameters(reader)).compile();
+	}
+	
+	/**
+	 * @return random sequence with AT-rich NCS, with some genes planted (on both strands)
+	 */
+	static EncodedSequence plantedGenes(int length, long seed) {
+		return plantedGenes(length, seed, "TTAACCAAAG");
+	}
+	
+	/**
+	 * @param background the bases of the NCS are drawn from this (uniformly per character)
+	 */
+	static EncodedSequence plantedGenes(int length, long seed, String background) {
+		Random random = new Random(seed);
+		StringBuilder sequence = new StringBuilder();
+		String gene = "AAAATGAAAGCTTTAGCAGTAAGTATATTTTTAAGAAAGATAAAAGCTAAACAAGCTGAAAATTTATCAGAATAA"
+				+ "ATAAAAGAAGCTGAAAAAGCTAAACCAGAAAAAAGAAAAGAAAAATAAGCTAAAATAAATAAAATGA";
+		while(sequence.length() < length) {
+			for(int i = 0; i < 800; i++)
+				sequence.append(background.charAt(random.nextInt(background.length())));
+			sequence.append(random.nextBoolean() ? gene : Utilities.reverseComplement(gene));
+		}
+		return new EncodedSequence(sequence);
+	}
+	
+	@Test
+	public void testCheckpointingYieldsSameParses() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(20000, 11);
+		Viterbi full = new Viterbi(model, encoded);
+		List<Parse> expected = full.computeParses();
+		assertEquals(0, full.getCheckpointInterval());
+		
+		Viterbi checkpointed = new Viterbi(model, encoded);
+		checkpointed.setCheckpointing(Viterbi.Checkpointing.ON);
+		assertSameParses(expected, checkpointed.computeParses());
+		assertTrue(checkpointed.getCheckpointInterval() > 0);
+		assertTrue(checkpointed.getCheckpointInterval() < encoded.length() / 10);
+	}
+	
+	@Test
+	public void testBackpointersYieldSameParses() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(10000, 3);
+		Viterbi withBackpointers = new Viterbi(model, encoded);
+		withBackpointers.setRecordingBackpointers(true);
+		assertSameParses(new Viterbi(model, encoded).computeParses(), withBackpointers.computeParses());
+	}
+	
+	@Test
+	public void testParallelColumnsYieldSameParses() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(8000, 13);
+		List<Parse> expected = new Viterbi(model, encoded).computeParses();
+		for(int threads : new int[] { 2, 3, 64 }) {
+			Viterbi parallel = new Viterbi(model, encoded);
+			parallel.setParallelism(threads);
+			parallel.setMinimumParallelLength(0);
+			assertSameParses(expected, parallel.computeParses());
+		}
+		Viterbi checkpointed = new Viterbi(model, encoded);
+		checkpointed.setParallelism(4);
+		checkpointed.setMinimumParallelLength(0);
+		checkpointed.setCheckpointing(Viterbi.Checkpointing.ON);
+		assertSameParses(expected, checkpointed.computeParses());
+	}
+	
+	@Test
+	public void testBeam() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(6000, 17);
+		Viterbi exact = new Viterbi(model, encoded);
+		List<Parse> expected = exact.computeParses();
+		assertEquals(0, exact.getNumberOfPrunedCells());
+		assertEquals(0, exact.getLossBound(), 0);
+		
+		// a wide beam prunes, but keeps the most likely parse
+		Viterbi wide = new Viterbi(model, encoded);
+		wide.setBeamMargin(30);
+		assertSameParses(expected, wide.computeParses());
+		assertTrue(wide.getNumberOfPrunedCells() > 0);
+		assertEquals(exact.getLogLikelihood(), wide.getLogLikelihood(), 0);
+		assertEquals(0, wide.getLossBound(), 0);
+		
+		Viterbi narrow = new Viterbi(model, encoded);
+		narrow.setBeamMargin(0.5);
+		Parse parse = narrow.computeParses().get(0);
+		assertEquals(encoded.length(), parse.getLength());
+		assertTrue(narrow.getNumberOfPrunedCells() > wide.getNumberOfPrunedCells());
+		assertTrue(narrow.getLogLikelihood() < exact.getLogLikelihood());
+		// the bound covers the loss, and is tight
+		double loss = exact.getLogLikelihood() - narrow.getLogLikelihood();
+		assertEquals(loss, narrow.getLossBound(), 1e-6 * Math.abs(exact.getLogLikelihood()));
+		assertTrue(narrow.getLossBound() >= loss);
+		
+		// the same with checkpoints, which recompute columns for the traceback
+		Viterbi checkpointed = new Viterbi(model, encoded);
+		checkpointed.setBeamMargin(0.5);
+		checkpointed.setCheckpointing(Viterbi.Checkpointing.ON);
+		assertSameParses(narrow.computeParses(), checkpointed.computeParses());
+		assertEquals(narrow.getNumberOfPrunedCells(), checkpointed.getNumberOfPrunedCells());
+		assertEquals(narrow.getLossBound(), checkpointed.getLossBound(), 0);
+	}
+	
+	@Test
+	public void testStepFollowsOnlyPredecessorsWithinTolerance() {
+		CompiledGHMM model = tieModel();
+		String sequence = "1100000001110000000111000000011";
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		Viterbi viterbi = new Viterbi(model, encoded);
+		FullScoreMatrix scores = new FullScoreMatrix(model.getNumberOfStates(), sequence.length() + 1);
+		viterbi.prepareForwardPass();
+		viterbi.initialiseFirstColumn(scores);
+		for(int l = 1; l <= sequence.length(); l++) {
+			viterbi.computeColumn(scores, l, null);
+		}
+		
+		int checked = 0;
+		for(int l = 1; l <= sequence.length(); l++) {
+			for(int q = 2; q < model.getNumberOfStates(); q++) {
+				ViterbiSeed seed = new ViterbiSeed(model, encoded, q, l, null);
+				List<Double> candidates = new ArrayList<Double>();
+				seed.forEachPredecessor(scores, (qPrime, lPrime, logTransition, logEmission) -> candidates
+						.add((qPrime == 0 ? 0 : scores.get(qPrime, lPrime)) + logTransition + logEmission));
+				if(candidates.size() < 2)
+					continue;
+				candidates.sort(null);
+				double best = candidates.get(candidates.size() - 1);
+				assertEquals(scores.get(q, l), best, 0);
+				// the gap to the next-best predecessor, and how many are at least that likely
+				int within = 1;
+				while(within < candidates.size() && candidates.get(candidates.size() - 1 - within) == best)
+					within++;
+				if(within == candidates.size())
+					continue;
+				double gap = best - candidates.get(candidates.size() - 1 - within);
+				int next = within;
+				while(next < candidates.size() && best - candidates.get(candidates.size() - 1 - next) == gap)
+					next++;
+				// just outside the tolerance: not followed; just inside: followed
+				assertEquals(within, seed.step(scores, gap * (1 - 1e-9)).size());
+				assertEquals(next, seed.step(scores, gap * (1 + 1e-9)).size());
+				assertEquals(within, seed.step(scores).size());
+				checked++;
+			}
+		}
+		assertTrue(checked > 10);
+	}
+	
+	@Test
+	public void testBackpointersKeepTies() {
+		CompiledGHMM model = tieModel();
+		String sequence = "11011010110000000111111011";
+		List<Parse> expected = new Viterbi(model, sequence).computeParses();
+		assertEquals(2, expected.size());
+		Viterbi withBackpointers = new Viterbi(model, sequence);
+		withBackpointers.setRecordingBackpointers(true);
+		assertSameParses(expected, withBackpointers.computeParses());
+	}
+	
+	@Test
+	public void testParseGraph() {
+		CompiledGHMM model = tieModel();
+		// three runs of seven 0s: each may start or end with the single 0 of A
+		String sequence = "1100000001110000000111000000011";
+		Viterbi viterbi = new Viterbi(model, sequence);
+		ParseGraph graph = viterbi.computeParseGraph();
+		assertEquals(8, graph.countParses());
+		assertEquals(3, graph.getNumberOfBranchingNodes());
+		List<Parse> parses = viterbi.computeParses();
+		assertEquals(8, parses.size());
+		// the parses share their steps in the graph
+		assertTrue(graph.getNumberOfNodes() < 2 * parses.get(0).getNumberOfSteps());
+		for(Parse parse : parses) {
+			assertEquals(sequence.length(), parse.getLength());
+		}
+		
+		Viterbi capped = new Viterbi(model, sequence);
+		capped.setMaximumNumberOfParses(3);
+		assertSameParses(parses.subList(0, 3), capped.computeParses());
+		
+		Viterbi withBackpointers = new Viterbi(model, sequence);
+		withBackpointers.setRecordingBackpointers(true);
+		assertSameParses(parses, withBackpointers.computeParses());
+	}
+	
+	@Test
+	public void testTieTolerance() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(3000, 4);
+		Viterbi exact = new Viterbi(model, encoded);
+		assertEquals(1, exact.computeParses().size());
+		
+		Viterbi tolerant = new Viterbi(model, encoded);
+		tolerant.setTieTolerance(1);
+		tolerant.setMaximumNumberOfParses(50);
+		ParseGraph graph = tolerant.computeParseGraph();
+		assertTrue(graph.countParses() > 1);
+		List<Parse> parses = tolerant.computeParses();
+		assertTrue(parses.size() > 1 && parses.size() <= 50);
+		for(Parse parse : parses) {
+			assertEquals(encoded.length(), parse.getLength());
+		}
+	}
+	
+	@Test
+	public void testKBestParses() {
+		CompiledGHMM model = tieModel();
+		String sequence = "1100000001110000000111000000011";
+		Viterbi viterbi = new Viterbi(model, sequence);
+		Set<String> tied = new HashSet<String>();
+		for(Parse parse : viterbi.computeParses())
+			tied.add(describe(parse));
+		double best = viterbi.getLogLikelihood();
+		
+		List<Parse> ranked = new Viterbi(model, sequence).computeKBestParses(10);
+		assertEquals(10, ranked.size());
+		Set<String> seen = new HashSet<String>();
+		for(int i = 0; i < ranked.size(); i++) {
+			Parse parse = ranked.get(i);
+			assertEquals(sequence.length(), parse.getLength());
+			assertTrue(seen.add(describe(parse)));
+			if(i > 0)
+				assertTrue(parse.getLogLikelihood() <= ranked.get(i - 1).getLogLikelihood());
+			// the eight ties come first, in any order
+			if(i < 8) {
+				assertEquals(best, parse.getLogLikelihood(), 0);
+				assertTrue(tied.contains(describe(parse)));
+			} else {
+				assertTrue(parse.getLogLikelihood() < best);
+			}
+		}
+		
+		// asking for more than there are yields all of them
+		String shortSequence = "1000010000001";
+		List<Parse> all = new Viterbi(model, shortSequence).computeKBestParses(1000);
+		assertEquals(countParsesOfTieModel(shortSequence), all.size());
+	}
+	
+	@Test
+	public void testKBestParsesIgnoreLossyStorage() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(3000, 4);
+		List<Parse> expected = new Viterbi(model, encoded).computeKBestParses(20);
+		for(Viterbi.ScoreStorage storage : new Viterbi.ScoreStorage[] { Viterbi.ScoreStorage.FLOAT,
+				Viterbi.ScoreStorage.SCALED_INTEGER }) {
+			Viterbi lossy = new Viterbi(model, encoded);
+			lossy.setCheckpointing(Viterbi.Checkpointing.OFF);
+			lossy.setScoreStorage(storage);
+			List<Parse> ranked = lossy.computeKBestParses(20);
+			assertEquals(storage, lossy.getScoreStorage());
+			assertSameParses(expected, ranked);
+			for(int i = 0; i < ranked.size(); i++) {
+				assertEquals(expected.get(i).getLogLikelihood(), ranked.get(i).getLogLikelihood(), 0);
+			}
+		}
+	}
+	
+	@Test
+	public void testKBestParsesOfRealisticModel() throws IOException {
+		CompiledGHMM model = loadLoxodesMagnus();
+		EncodedSequence encoded = plantedGenes(3000, 4);
+		Viterbi exact = new Viterbi(model, encoded);
+		List<Parse> expected = exact.computeParses();
+		
+		Viterbi ranking = new Viterbi(model, encoded);
+		ranking.setCheckpointing(Viterbi.Checkpointing.ON);
+		ranking.setRecordingBackpointers(true);
+		List<Parse> ranked = ranking.computeKBestParses(20);
+		assertEquals(20, ranked.size());
+		assertSameParses(expected, ranked.subList(0, 1));
+		assertEquals(exact.getLogLikelihood(), ranked.get(0).getLogLikelihood(), 0);
+		assertEquals(exact.getLogLikelihood(), ranking.getLogLikelihood(), 0);
+		Set<String> seen = new HashSet<String>();
+		for(int i = 0; i < ranked.size(); i++) {
+			assertTrue(seen.add(describe(ranked.get(i))));
+			assertEquals(encoded.length(), ranked.get(i).getLength());
+			if(i > 0)
+				assertTrue(ranked.get(i).getLogLikelihood() <= ranked.get(i - 1).getLogLikelihood());
+		}
+	}
+	
+	static String describe(Parse parse) {
+		StringBuilder result = new StringBuilder();
+		for(int i = 0; i < parse.getNumberOfSteps(); i++)
+			result.append(parse.get(i).getFirst().getName()).append(':').append(parse.get(i).getSecond()).append(' ');
+		return result.toString();
+	}
+	
+	/**
+	 * @return the number of parses of the tie model: single bases of A, with runs
+	 *         of 4, 6, 8 or 10 0s of B in between, starting and ending with A
+	 */
+	private static long countParsesOfTieModel(String sequence) {
+		// ways[i]: parses of the first i bases that end in A
+		long[] ways = new long[sequence.length() + 1];
+		ways[1] = 1;
+		for(int i = 2; i <= sequence.length(); i++) {
+			ways[i] = ways[i - 1];
+			for(int b = 4; b <= 10; b += 2) {
+				if(i - 1 - b >= 1 && !sequence.substring(i - 1 - b, i - 1).contains("1"))
+					ways[i] += ways[i - 1 - b];
+			}
+		}
+		return ways[sequence.length()];
+	}
+	
+	/**
+	 * @return the model of testComputeParses, which has two equally likely parses on its sequence
+	 */
+	static CompiledGHMM tieModel() {
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new HMMState("A") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				if(newEmission.length() != 1)
+					return Double.NEGATIVE_INFINITY;
+				return newEmission.equals("1") ? Math.log(0.8) : Math.log(0.2);
+			}
+		});
+		ghmm.addState(new HMMState("B") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				if(newEmission.contains("1") || newEmission.length() % 2 != 0)
+					return Double.NEGATIVE_INFINITY;
+				return newEmission.length() >= 4 && newEmission.length() <= 10 ? Math.log(0.25) : Double.NEGATIVE_INFINITY;
+			}
+		});
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.7);
+		ghmm.setTransitionProbability(2, 3, 0.25);
+		ghmm.setTransitionProbability(2, 1, 0.05);
+		ghmm.setTransitionProbability(3, 2, 1);
+		ghmm.setTransitionProbability(3, 1, 0);
+		return ghmm.compile();
+	}
+	
+	@Test
+	public void testCheckpointingNeedsBoundedEmissions() {
+		String sequence = "xxyyxyxxxyyyx";
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new CountingState("x", false));
+		ghmm.addState(new HMMState("any length") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				return newEmission.length() * Math.log(0.5);
+			}
+		});
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.5);
+		ghmm.setTransitionProbability(2, 3, 0.3);
+		ghmm.setTransitionProbability(2, 1, 0.2);
+		ghmm.setTransitionProbability(3, 2, 0.5);
+		ghmm.setTransitionProbability(3, 1, 0.5);
+		CompiledGHMM model = ghmm.compile();
+		assertEquals(Integer.MAX_VALUE, model.getMaximumEmissionLength());
+		
+		Viterbi viterbi = new Viterbi(model, sequence);
+		viterbi.setCheckpointing(Viterbi.Checkpointing.ON);
+		List<Parse> parses = viterbi.computeParses();
+		assertEquals(0, viterbi.getCheckpointInterval());
+		assertSameParses(new Viterbi(model, sequence).computeParses(), parses);
+	}
 
 }
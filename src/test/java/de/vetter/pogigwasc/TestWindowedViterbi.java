@@ -0,0 +1,98 @@
+package de.vetter.pogigwasc;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import de.vetter.pogigwasc.states.HMMState;
+import de.vetter.pogigwasc.states.NoncodingState;
+
+public class TestWindowedViterbi {
+
+	@Test
+	public void testSameParseAsWholeSequence() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		// with stops in all frames, the background is predicted to be noncoding
+		EncodedSequence encoded = TestViterbi.plantedGenes(12000, 5, "TTTAAAATTAAAG");
+		Parse expected = new Viterbi(model, encoded).computeParses().get(0);
+
+		// the overlap is longer than a gene plus its surrounding noncoding sequence
+		WindowedViterbi windowed = new WindowedViterbi(model, encoded, 4000, 1500);
+		windowed.setThreads(2);
+		Parse parse = windowed.computeParse();
+		assertEquals(5, windowed.getNumberOfWindows());
+		assertEquals(0, windowed.getNumberOfDisagreements());
+		assertEquals(encoded.length(), parse.getLength());
+		TestViterbi.assertSameParses(Collections.singletonList(expected), Collections.singletonList(parse));
+	}
+
+	@Test
+	public void testSingleWindow() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		EncodedSequence encoded = TestViterbi.plantedGenes(2000, 2);
+		WindowedViterbi windowed = new WindowedViterbi(model, encoded, 5000, 1000);
+		Parse parse = windowed.computeParse();
+		assertEquals(1, windowed.getNumberOfWindows());
+		TestViterbi.assertSameParses(new Viterbi(model, encoded).computeParses().subList(0, 1),
+				Collections.singletonList(parse));
+	}
+
+	@Test
+	public void testDisagreementIsDecodedAgain() throws IOException {
+		CompiledGHMM model = TestViterbi.loadLoxodesMagnus();
+		EncodedSequence encoded = TestViterbi.plantedGenes(3000, 9);
+		// the overlap is too short to contain an anchor of both windows in most cases;
+		// the result still has to be a parse of the whole sequence
+		WindowedViterbi windowed = new WindowedViterbi(model, encoded, 300, 1);
+		Parse parse = windowed.computeParse();
+		assertEquals(encoded.length(), parse.getLength());
+		assertTrue(windowed.getNumberOfDisagreements() > 0);
+		assertTrue(parse.get(0).getFirst() instanceof NoncodingState);
+	}
+
+	@Test
+	public void testNoAnchorAtAll() {
+		// a model without noncoding states: windows never share an anchor
+		GHMM ghmm = new GHMM();
+		ghmm.addState(new HMMState("X") {
+			@Override
+			public double computeLogEmissionProbability(int previousState, String emissionHistory, String newEmission) {
+				return newEmission.length() == 1 ? Math.log(0.25) : Double.NEGATIVE_INFINITY;
+			}
+
+			@Override
+			public int getSupremumPermissibleEmissionLength() {
+				return 1;
+			}
+		});
+		ghmm.initialiseTransitionMatrix();
+		ghmm.setTransitionProbability(2, 2, 0.99);
+		ghmm.setTransitionProbability(2, 1, 0.01);
+
+		StringBuilder sequence = new StringBuilder();
+		for (int i = 0; i < 250; i++)
+			sequence.append("ACGT");
+		EncodedSequence encoded = new EncodedSequence(sequence);
+		// the second window is decoded again from the start, which spans less than two windows
+		WindowedViterbi windowed = new WindowedViterbi(ghmm.compile(), encoded, 700, 100);
+		assertEquals(encoded.length(), windowed.computeParse().getLength());
+		assertEquals(1, windowed.getNumberOfDisagreements());
+
+		// the third window would have to be decoded from the start, more than two windows
+		windowed = new WindowedViterbi(ghmm.compile(), encoded, 300, 50);
+		try {
+			windowed.computeParse();
+			fail("no anchor within two windows");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage().contains("share no anchor"));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidOverlap() throws IOException {
+		new WindowedViterbi(TestViterbi.loadLoxodesMagnus(), new EncodedSequence("ACGT"), 100, 100);
+	}
+}